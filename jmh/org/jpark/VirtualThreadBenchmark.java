@@ -0,0 +1,153 @@
+package org.jpark;
+
+import jdk.jfr.consumer.RecordingStream;
+import org.jpark.entity.Player;
+import org.jpark.pool.ConnectionPool;
+import org.jpark.stub.StubDriver;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * режим виртуальных потоков ({@link EntityManager#enableVirtualThreadMode()}) под нагрузкой:
+ * callers виртуальных потоков одновременно зовут findById через {@link ConnectionPool} на заглушке драйвера,
+ * которая держит каждый запрос latencyMicros, так что почти все потоки стоят в очереди семафора
+ * <p>
+ * замер - время, за которое отработают все потоки. итерация падает, если потоки не закончили за таймаут
+ * (дедлок или потерянное разрешение семафора) или кто-то из них упал, а весь прогон - если JFR
+ * поймал хоть одно событие jdk.VirtualThreadPinned (несущий поток запинен на парковке внутри synchronized)
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VirtualThreadBenchmark
+{
+	private static final long TIMEOUT_SECONDS = 60;
+
+	/**
+	 * имена параметров без префикса - они задаются из командной строки jmh: -p callers=10000
+	 */
+	@Param({"10000"})
+	public int callers;
+
+	@Param({"16"})
+	public int poolSize;
+
+	@Param({"500"})
+	public long latencyMicros;
+
+	private StubDriver _driver;
+	private ConnectionPool _pool;
+	private EntityManager _em;
+
+	private RecordingStream _pinnedEvents;
+	private final AtomicLong _pinnedCount = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		_driver = new StubDriver();
+		_driver.setLatency(latencyMicros, TimeUnit.MICROSECONDS);
+		_driver.setHandler(new StubDriver.Handler()
+		{
+			@Override
+			public StubDriver.Rows query(String sql, List<Object> params)
+			{
+				final Object id = params.get(0);
+				return new StubDriver.Rows("id", "name", "level").add(id, "player" + id, 1);
+			}
+
+			@Override
+			public int update(String sql, List<Object> params)
+			{
+				return 1;
+			}
+		});
+		_pool = new ConnectionPool(_driver, poolSize, poolSize);
+		_em = new EntityManager(true);
+		_em.setConnectionFactory(_pool);
+		_em.findEntities("org.jpark.entity");
+		_em.enableVirtualThreadMode();
+
+		_pinnedEvents = new RecordingStream();
+		_pinnedEvents.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+		_pinnedEvents.onEvent("jdk.VirtualThreadPinned", event ->
+		{
+			if (_pinnedCount.getAndIncrement() == 0)
+			{
+				System.err.println("virtual thread pinned: " + event);
+			}
+		});
+		_pinnedEvents.startAsync();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		// stop дожидается разбора всех записанных событий
+		_pinnedEvents.stop();
+		_pinnedEvents.close();
+		_pool.close();
+		if (_pinnedCount.get() > 0)
+		{
+			throw new IllegalStateException("Virtual threads were pinned " + _pinnedCount.get() + " times");
+		}
+		if (_driver.getMaxConcurrentExecutions() > poolSize)
+		{
+			throw new IllegalStateException("More concurrent statements than pool size: " + _driver.getMaxConcurrentExecutions());
+		}
+	}
+
+	@Benchmark
+	public int findById() throws InterruptedException
+	{
+		final AtomicInteger found = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+		try
+		{
+			for (int i = 0; i < callers; i++)
+			{
+				executor.execute(() ->
+				{
+					try
+					{
+						if (_em.findById(Player.class, ThreadLocalRandom.current().nextInt(1_000_000)) != null)
+						{
+							found.incrementAndGet();
+						}
+					}
+					catch (RuntimeException e)
+					{
+						failed.incrementAndGet();
+					}
+				});
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		if (!executor.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+		{
+			executor.shutdownNow();
+			throw new IllegalStateException("Callers did not finish in " + TIMEOUT_SECONDS + "s, waiting for permit: "
+					+ _em.getQueuedOperationCount() + ", pool waiters: " + _pool.getWaitingCount());
+		}
+		if (failed.get() > 0 || found.get() != callers)
+		{
+			throw new IllegalStateException("Found " + found.get() + " of " + callers + ", failed " + failed.get());
+		}
+		return found.get();
+	}
+}
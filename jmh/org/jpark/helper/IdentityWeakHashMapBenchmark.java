@@ -0,0 +1,102 @@
+package org.jpark.helper;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * сравнение {@link IdentityWeakHashMap} и {@link CompactIdentityWeakHashMap} на сценарии контекста сущностей:
+ * заполнение мапы (с расширениями таблицы), поиск по ключу, смешанная нагрузка вставка/поиск/удаление
+ * аллокации смотреть с профайлером gc: gradle jmh -Pjmh="IdentityWeakHashMapBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IdentityWeakHashMapBenchmark
+{
+	/**
+	 * имена параметров без префикса - они задаются из командной строки jmh: -p size=1000
+	 */
+	@Param({"legacy", "compact"})
+	public String implementation;
+
+	@Param({"1000", "100000"})
+	public int size;
+
+	private Object[] _keys;
+	private Map<Object, Object> _filled;
+	private int _cursor;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		_keys = new Object[size];
+		for (int i = 0; i < size; i++)
+		{
+			_keys[i] = new Object();
+		}
+		_filled = newMap();
+		for (Object key : _keys)
+		{
+			_filled.put(key, key);
+		}
+	}
+
+	private Map<Object, Object> newMap()
+	{
+		return "compact".equals(implementation) ? new CompactIdentityWeakHashMap<>() : new IdentityWeakHashMap<>();
+	}
+
+	/**
+	 * заполнение пустой мапы с нуля, все расширения таблицы входят в замер
+	 */
+	@Benchmark
+	public Map<Object, Object> fill()
+	{
+		final Map<Object, Object> map = newMap();
+		for (Object key : _keys)
+		{
+			map.put(key, key);
+		}
+		return map;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(1000)
+	public void get(Blackhole blackhole)
+	{
+		final Object[] keys = _keys;
+		int cursor = _cursor;
+		for (int i = 0; i < 1000; i++)
+		{
+			blackhole.consume(_filled.get(keys[cursor]));
+			cursor = cursor + 1 == keys.length ? 0 : cursor + 1;
+		}
+		_cursor = cursor;
+	}
+
+	/**
+	 * ключ удаляется и вставляется обратно с новой слабой ссылкой, размер мапы не меняется
+	 */
+	@Benchmark
+	@OperationsPerInvocation(1000)
+	public void churn(Blackhole blackhole)
+	{
+		final Object[] keys = _keys;
+		int cursor = _cursor;
+		for (int i = 0; i < 1000; i++)
+		{
+			final Object key = keys[cursor];
+			blackhole.consume(_filled.remove(key));
+			_filled.put(key, key);
+			blackhole.consume(_filled.get(keys[(cursor * 31) % keys.length]));
+			cursor = cursor + 1 == keys.length ? 0 : cursor + 1;
+		}
+		_cursor = cursor;
+	}
+}
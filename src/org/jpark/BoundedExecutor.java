@@ -0,0 +1,127 @@
+package org.jpark;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * пускает задачи в нижележащий executor не больше чем по maxInFlight одновременно
+ * лишние задачи ждут в очереди, вызывающий поток никогда не блокируется
+ * закончившая задача сама запускает следующую из очереди
+ * если нижележащий executor отказал в задаче, она не выполняется: ее слот освобождается,
+ * а отказ уходит в обработчик задачи. в вызывающем потоке (например в event loop) задачи никогда не выполняются
+ */
+class BoundedExecutor
+{
+	private final Executor _executor;
+	private final int _maxInFlight;
+
+	private final Queue<Task> _queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger _inFlight = new AtomicInteger();
+
+	BoundedExecutor(Executor executor, int maxInFlight)
+	{
+		if (maxInFlight <= 0)
+		{
+			throw new IllegalArgumentException("Wrong max in flight: " + maxInFlight);
+		}
+		_executor = executor;
+		_maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * @param onReject получит отказ нижележащего executor вместо выполнения задачи,
+	 * вызывается в потоке, который запускал задачу из очереди
+	 */
+	void execute(Runnable task, Consumer<RejectedExecutionException> onReject)
+	{
+		_queue.add(new Task(task, onReject));
+		drain();
+	}
+
+	/**
+	 * запускаем задачи из очереди пока есть свободные слоты
+	 */
+	private void drain()
+	{
+		while (!_queue.isEmpty())
+		{
+			final int inFlight = _inFlight.get();
+			if (inFlight >= _maxInFlight)
+			{
+				// освободившийся слот сам заберет очередь
+				return;
+			}
+			if (!_inFlight.compareAndSet(inFlight, inFlight + 1))
+			{
+				continue;
+			}
+			final Task task = _queue.poll();
+			if (task == null)
+			{
+				// очередь разобрали другие потоки
+				_inFlight.decrementAndGet();
+				continue;
+			}
+			try
+			{
+				_executor.execute(() -> run(task._runnable));
+			}
+			catch (RejectedExecutionException e)
+			{
+				// слот не занят, следующие задачи разбираем дальше в этом же цикле
+				_inFlight.decrementAndGet();
+				task._onReject.accept(e);
+			}
+		}
+	}
+
+	private void run(Runnable runnable)
+	{
+		try
+		{
+			runnable.run();
+		}
+		finally
+		{
+			_inFlight.decrementAndGet();
+			drain();
+		}
+	}
+
+	/**
+	 * сколько задач выполняется сейчас
+	 */
+	int getInFlightCount()
+	{
+		return _inFlight.get();
+	}
+
+	/**
+	 * сколько задач ждут свободного слота
+	 */
+	int getQueuedCount()
+	{
+		return _queue.size();
+	}
+
+	int getMaxInFlight()
+	{
+		return _maxInFlight;
+	}
+
+	private static final class Task
+	{
+		private final Runnable _runnable;
+		private final Consumer<RejectedExecutionException> _onReject;
+
+		Task(Runnable runnable, Consumer<RejectedExecutionException> onReject)
+		{
+			_runnable = runnable;
+			_onReject = onReject;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package org.jpark;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * подготовленный запрос, взятый из {@link StatementCache}
+ * закрытие возвращает запрос обратно в кэш, а не закрывает его (если кэша нет - закрывает)
+ */
+public final class CachedStatement implements AutoCloseable
+{
+	private final StatementCache _cache;
+	private final Connection _connection;
+	private final StatementCache.StatementKey _key;
+	private final PreparedStatement _statement;
+
+	CachedStatement(StatementCache cache, Connection connection, StatementCache.StatementKey key, PreparedStatement statement)
+	{
+		_cache = cache;
+		_connection = connection;
+		_key = key;
+		_statement = statement;
+	}
+
+	public PreparedStatement getStatement()
+	{
+		return _statement;
+	}
+
+	/**
+	 * физический коннект, по которому запрос лежит в кэше
+	 */
+	Connection getConnection()
+	{
+		return _connection;
+	}
+
+	StatementCache.StatementKey getKey()
+	{
+		return _key;
+	}
+
+	@Override
+	public void close() throws SQLException
+	{
+		if (_cache != null)
+		{
+			_cache.release(this);
+		}
+		else
+		{
+			_statement.close();
+		}
+	}
+}
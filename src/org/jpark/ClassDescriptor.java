@@ -1,8 +1,8 @@
 package org.jpark;
 
+import org.jpark.helper.ClassConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import sun.awt.windows.ThemeReader;
 
 import javax.persistence.*;
 import java.lang.reflect.Constructor;
@@ -14,6 +14,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.jpark.DatabasePlatform.APOSTROPHE_CHAR;
 import static org.jpark.DatabasePlatform.SEPARATE_CHAR;
@@ -33,16 +34,75 @@ public class ClassDescriptor
 	private List<DatabaseField> _primaryKeyFields;
 	private List<DatabaseField> _fields;
 
+	/**
+	 * поле версии для оптимистичной блокировки ({@link Version}), null если его нет
+	 */
+	private DatabaseField _versionField;
+	private int _versionIndex = -1;
+
+	/**
+	 * имя колонки или java поля -> индекс в {@link #_fields}
+	 */
+	private final Map<String, Integer> _fieldIndexes = new HashMap<>();
+
 	/**
 	 * кэшируем SQL запросы для типовых операций по одному ключу
+	 * строятся сразу при создании дескриптора, дальше только читаются из любых потоков
+	 * SQL которые зависят от запроса (маска апдейта, размер IN, текст запроса) кэшируются в конкурентных мапах
 	 */
 	private String _simpleInsertSql;
 	private String _simpleSelectSql;
 	private String _simpleDeleteSql;
-	private Map<String, String> _selectOneSql;
+	private final Map<String, String> _selectOneSql = new ConcurrentHashMap<>();
+
+	/**
+	 * DELETE ... WHERE pk IN (?, ...) по количеству параметров
+	 */
+	private final Map<Integer, String> _deleteInSql = new ConcurrentHashMap<>();
+
+	/**
+	 * SELECT ... WHERE pk IN (?, ...) по количеству параметров
+	 */
+	private final Map<Integer, String> _selectInSql = new ConcurrentHashMap<>();
+
+	/**
+	 * вставка с разрешением конфликта ключей, строится сразу для всех режимов
+	 */
+	private final Map<MergeMode, String> _mergeSql = new EnumMap<>(MergeMode.class);
+
+	/**
+	 * LOAD DATA LOCAL INFILE для {@link EntityManager#bulkLoad}
+	 */
+	private String _loadDataSql;
+
+	/**
+	 * апдейты кэшируем по маске изменившихся полей (индексы в {@link #_fields})
+	 */
+	private final Map<BitSet, String> _updateSql = new ConcurrentHashMap<>();
+
+	/**
+	 * апдейты по ид без проверки версии (только ее увеличение), по маске колонок
+	 * для сущностей без версии совпадают с {@link #_updateSql}
+	 */
+	private final Map<BitSet, String> _partialUpdateSql = new ConcurrentHashMap<>();
+
+	/**
+	 * планы чтения результата по тексту SQL запроса
+	 */
+	private final Map<String, ResultSetMapping> _resultSetMappings = new ConcurrentHashMap<>();
+
+	/**
+	 * больше стольки разных запросов не кэшируем, чтобы динамический SQL не раздувал кэш
+	 */
+	private static final int MAX_CACHED_MAPPINGS = 256;
 
 	private Constructor<?> _defaultConstructor;
 
+	/**
+	 * время жизни в кэше второго уровня, мс. 0 - не кэшируем, меньше 0 - без ограничения
+	 */
+	private long _cacheTtl;
+
 	public ClassDescriptor(Class<?> clazz) throws NoSuchMethodException, IllegalArgumentException
 	{
 		_fields = new ArrayList<>(8);
@@ -85,6 +145,7 @@ public class ClassDescriptor
 			_table.setTruncateOnDeploy(extendedData.truncate());
 			_table.setMigrateOnDeploy(extendedData.migrate());
 			_table.setCreationSuffix(extendedData.creationSuffix());
+			_cacheTtl = extendedData.cacheTtl() * 1000L;
 		}
 
 		// читаем поля класса
@@ -119,7 +180,67 @@ public class ClassDescriptor
 				idField.setPrimaryKey(true);
 				_primaryKeyFields.add(idField);
 			}
+
+			Version version = field.getAnnotation(Version.class);
+			if (version != null)
+			{
+				if (id != null)
+				{
+					throw new IllegalArgumentException("Version field can not be an id field: " + clazz.getName() + "." + field.getName());
+				}
+				if (_versionField != null)
+				{
+					throw new IllegalArgumentException("More than one version field in class: " + clazz.getName());
+				}
+				final Class<?> type = field.getType();
+				if (type != ClassConstants.PINT && type != ClassConstants.INTEGER && type != ClassConstants.PLONG && type != ClassConstants.LONG
+						&& type != ClassConstants.PSHORT && type != ClassConstants.SHORT)
+				{
+					throw new IllegalArgumentException("Version field must be int, long or short: " + clazz.getName() + "." + field.getName());
+				}
+				if (columnField == null)
+				{
+					columnField = new DatabaseField(field, _table);
+					_fields.add(columnField);
+				}
+				_versionField = columnField;
+				_versionIndex = _fields.indexOf(columnField);
+			}
+		}
+
+		for (int i = 0; i < _fields.size(); i++)
+		{
+			_fieldIndexes.put(_fields.get(i).getField().getName(), i);
 		}
+		// имя колонки важнее имени поля, если они совпали у разных полей
+		for (int i = 0; i < _fields.size(); i++)
+		{
+			_fieldIndexes.put(_fields.get(i).getName(), i);
+		}
+
+		buildSqlCache();
+	}
+
+	/**
+	 * построить типовые SQL запросы заранее, чтобы после регистрации дескриптор только читался
+	 */
+	private void buildSqlCache()
+	{
+		getSimpleInsertSql();
+		if (_primaryKeyFields.size() == 1)
+		{
+			getSimpleSelectSql();
+			getSimpleDeleteSql();
+		}
+		for (DatabaseField field : _fields)
+		{
+			getSelectOneSql(field.getName());
+		}
+		for (MergeMode mode : MergeMode.values())
+		{
+			_mergeSql.put(mode, buildMergeSql(mode));
+		}
+		_loadDataSql = buildLoadDataSql();
 	}
 
 	public void deploy(Connection connection) throws SQLException
@@ -403,6 +524,162 @@ public class ClassDescriptor
 		return _simpleInsertSql;
 	}
 
+	/**
+	 * вставка сущности с разрешением конфликта по первичному или уникальному ключу, параметры как у {@link #getSimpleInsertSql()}
+	 */
+	public String getMergeSql(MergeMode mode)
+	{
+		return _mergeSql.get(mode);
+	}
+
+	private String buildMergeSql(MergeMode mode)
+	{
+		StringBuilder sql = new StringBuilder();
+		switch (mode)
+		{
+			case IGNORE:
+				sql.append("INSERT IGNORE INTO ");
+				break;
+			case REPLACE:
+				sql.append("REPLACE INTO ");
+				break;
+			default:
+				sql.append("INSERT INTO ");
+				break;
+		}
+		sql.append(_table.getName())
+		   .append(" (");
+
+		int count = 0;
+		for (DatabaseField f : _fields)
+		{
+			if (f.isInsertable())
+			{
+				if (count > 0)
+				{
+					sql.append(", ");
+				}
+				sql.append(f.getName());
+				count++;
+			}
+		}
+
+		sql.append(") VALUES (");
+		for (int i = 0; i < count; i++)
+		{
+			if (i > 0)
+			{
+				sql.append(", ");
+			}
+			sql.append('?');
+		}
+		sql.append(')');
+
+		if (mode == MergeMode.UPDATE)
+		{
+			sql.append(" ON DUPLICATE KEY UPDATE ");
+			int updates = 0;
+			// для автоинкрементного ключа просим базу вернуть ид существующей строки как сгенерированный
+			if (_primaryKeyFields.size() == 1 && _primaryKeyFields.get(0).isUpdateInsertId())
+			{
+				final String pk = _primaryKeyFields.get(0).getName();
+				sql.append(pk)
+				   .append("=LAST_INSERT_ID(")
+				   .append(pk)
+				   .append(')');
+				updates++;
+			}
+			for (DatabaseField f : _fields)
+			{
+				if (f == _versionField)
+				{
+					// существующая строка получает следующую версию, а не версию из сущности, NULL считается 0
+					if (updates > 0)
+					{
+						sql.append(", ");
+					}
+					sql.append(f.getName())
+					   .append("=COALESCE(")
+					   .append(f.getName())
+					   .append(", 0)+1");
+					updates++;
+				}
+				else if (f.isInsertable() && f.isUpdatable() && !f.isPrimaryKey())
+				{
+					if (updates > 0)
+					{
+						sql.append(", ");
+					}
+					sql.append(f.getName())
+					   .append("=VALUES(")
+					   .append(f.getName())
+					   .append(')');
+					updates++;
+				}
+			}
+			if (updates == 0)
+			{
+				// обновлять нечего, но синтаксис требует хотя бы одно присваивание
+				final String name = _fields.get(0).getName();
+				sql.append(name)
+				   .append('=')
+				   .append(name);
+			}
+		}
+		return sql.toString();
+	}
+
+	/**
+	 * загрузка строк из потока в формате {@link DatabasePlatform#appendLoadDataValue}, колонки - вставляемые поля по порядку
+	 * byte[] приходят в hex и раскодируются через UNHEX
+	 */
+	public String getLoadDataSql()
+	{
+		return _loadDataSql;
+	}
+
+	private String buildLoadDataSql()
+	{
+		// имя файла ни на что не влияет, данные драйвер берет из переданного потока
+		StringBuilder sql = new StringBuilder("LOAD DATA LOCAL INFILE 'stream' INTO TABLE ");
+		sql.append(_table.getName())
+		   .append(" CHARACTER SET utf8mb4")
+		   .append(" FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\'")
+		   .append(" LINES TERMINATED BY '\\n' (");
+
+		StringBuilder set = new StringBuilder();
+		int count = 0;
+		for (int i = 0; i < _fields.size(); i++)
+		{
+			final DatabaseField f = _fields.get(i);
+			if (!f.isInsertable())
+			{
+				continue;
+			}
+			if (count > 0)
+			{
+				sql.append(", ");
+			}
+			if (f.getType() == ClassConstants.APBYTE)
+			{
+				sql.append("@v").append(i);
+				set.append(set.length() == 0 ? " SET " : ", ")
+				   .append(f.getName())
+				   .append("=UNHEX(@v")
+				   .append(i)
+				   .append(')');
+			}
+			else
+			{
+				sql.append(f.getName());
+			}
+			count++;
+		}
+		sql.append(')')
+		   .append(set);
+		return sql.toString();
+	}
+
 	public String getSimpleSelectSql()
 	{
 		if (_simpleSelectSql == null)
@@ -435,11 +712,6 @@ public class ClassDescriptor
 
 	public String getSelectOneSql(String field)
 	{
-		if (_selectOneSql == null)
-		{
-			_selectOneSql = new HashMap<>();
-		}
-
 		String result = _selectOneSql.get(field);
 
 		if (result == null)
@@ -476,6 +748,114 @@ public class ClassDescriptor
 		return result;
 	}
 
+	/**
+	 * апдейт изменившихся полей сущности по ключевым полям
+	 * @param changed индексы изменившихся полей в {@link #getFields()}
+	 */
+	public String getUpdateSql(BitSet changed)
+	{
+		String result = _updateSql.get(changed);
+		if (result == null)
+		{
+			result = buildUpdateSql(changed);
+			// маска у вызывающего может еще поменяться, в ключ кладем копию
+			_updateSql.put((BitSet) changed.clone(), result);
+		}
+		return result;
+	}
+
+	private String buildUpdateSql(BitSet changed)
+	{
+		if (_primaryKeyFields.isEmpty())
+		{
+			throw new IllegalArgumentException("No primary key for entity");
+		}
+
+		StringBuilder sql = new StringBuilder("UPDATE ");
+		sql.append(_table.getName())
+		   .append(" SET ");
+
+		for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1))
+		{
+			sql.append(_fields.get(i).getName())
+			   .append("=?");
+			if (changed.nextSetBit(i + 1) >= 0)
+			{
+				sql.append(", ");
+			}
+		}
+		if (_versionField != null)
+		{
+			// новая версия приходит параметром, ожидаемая старая - последним параметром в WHERE
+			sql.append(", ")
+			   .append(_versionField.getName())
+			   .append("=?");
+		}
+
+		appendPrimaryKeyWhere(sql);
+		if (_versionField != null)
+		{
+			// <=> чтобы находилась и строка с версией NULL (колонку версии добавили в существующую таблицу)
+			sql.append(" AND ")
+			   .append(_versionField.getName())
+			   .append("<=>?");
+		}
+		return sql.toString();
+	}
+
+	/**
+	 * апдейт колонок по ключевым полям без проверки версии, см {@link EntityManager#update(Class, Object, Map)}
+	 * если у сущности есть версия - она увеличивается на 1 в самой базе
+	 * @param columns индексы обновляемых полей в {@link #getFields()}
+	 */
+	public String getPartialUpdateSql(BitSet columns)
+	{
+		if (_versionField == null)
+		{
+			return getUpdateSql(columns);
+		}
+		String result = _partialUpdateSql.get(columns);
+		if (result == null)
+		{
+			StringBuilder sql = new StringBuilder("UPDATE ");
+			sql.append(_table.getName())
+			   .append(" SET ");
+			for (int i = columns.nextSetBit(0); i >= 0; i = columns.nextSetBit(i + 1))
+			{
+				sql.append(_fields.get(i).getName())
+				   .append("=?, ");
+			}
+			// версия NULL считается 0, как в nextVersion
+			final String version = _versionField.getName();
+			sql.append(version)
+			   .append("=COALESCE(")
+			   .append(version)
+			   .append(", 0)+1");
+			appendPrimaryKeyWhere(sql);
+			result = sql.toString();
+			_partialUpdateSql.put((BitSet) columns.clone(), result);
+		}
+		return result;
+	}
+
+	private void appendPrimaryKeyWhere(StringBuilder sql)
+	{
+		if (_primaryKeyFields.isEmpty())
+		{
+			throw new IllegalArgumentException("No primary key for entity");
+		}
+		sql.append(" WHERE ");
+		for (int i = 0; i < _primaryKeyFields.size(); i++)
+		{
+			if (i > 0)
+			{
+				sql.append(" AND ");
+			}
+			sql.append(_primaryKeyFields.get(i).getName())
+			   .append("=?");
+		}
+	}
+
 	public String getSimpleDeleteSql()
 	{
 		if (_simpleDeleteSql == null)
@@ -495,6 +875,98 @@ public class ClassDescriptor
 		return _simpleDeleteSql;
 	}
 
+	/**
+	 * удаление пачки строк по единственному ключевому полю
+	 * @param count сколько ключей в IN (...)
+	 */
+	public String getDeleteInSql(int count)
+	{
+		String result = _deleteInSql.get(count);
+		if (result == null)
+		{
+			StringBuilder sql = new StringBuilder("DELETE FROM ");
+			sql.append(_table.getName())
+			   .append(" WHERE ");
+			appendPrimaryKeyIn(sql, count);
+			result = sql.toString();
+			_deleteInSql.put(count, result);
+		}
+		return result;
+	}
+
+	/**
+	 * выборка пачки строк по единственному ключевому полю
+	 * @param count сколько ключей в IN (...)
+	 */
+	public String getSelectInSql(int count)
+	{
+		String result = _selectInSql.get(count);
+		if (result == null)
+		{
+			StringBuilder sql = new StringBuilder("SELECT ");
+
+			for (int i = 0; i < _fields.size(); i++)
+			{
+				sql.append(_fields.get(i).getName());
+				if ((i + 1) < _fields.size())
+				{
+					sql.append(", ");
+				}
+			}
+			sql.append(" FROM ")
+			   .append(_table.getName())
+			   .append(" WHERE ");
+			appendPrimaryKeyIn(sql, count);
+			result = sql.toString();
+			_selectInSql.put(count, result);
+		}
+		return result;
+	}
+
+	/**
+	 * дописать условие pk IN (?, ?, ...) по единственному ключевому полю
+	 */
+	private void appendPrimaryKeyIn(StringBuilder sql, int count)
+	{
+		if (_primaryKeyFields.size() != 1)
+		{
+			throw new IllegalArgumentException("Wrong PK fields size, must be only 1 PK field");
+		}
+		if (count <= 0)
+		{
+			throw new IllegalArgumentException("Wrong IN list size: " + count);
+		}
+		sql.append(_primaryKeyFields.get(0).getName())
+		   .append(" IN (");
+		for (int i = 0; i < count; i++)
+		{
+			if (i > 0)
+			{
+				sql.append(", ");
+			}
+			sql.append('?');
+		}
+		sql.append(')');
+	}
+
+	/**
+	 * план чтения результата запроса в сущность этого класса
+	 * метаданные результата читаем только при первом выполнении запроса
+	 */
+	public ResultSetMapping getResultSetMapping(String sql, ResultSet resultSet) throws SQLException
+	{
+		ResultSetMapping result = _resultSetMappings.get(sql);
+		if (result == null)
+		{
+			result = ResultSetMapping.build(_fields, resultSet);
+			if (_resultSetMappings.size() < MAX_CACHED_MAPPINGS)
+			{
+				_resultSetMappings.put(sql, result);
+			}
+		}
+		return result;
+	}
+
 	public Class<?> getJavaClass()
 	{
 		return _javaClass;
@@ -515,11 +987,89 @@ public class ClassDescriptor
 		return _fields;
 	}
 
+	/**
+	 * поле версии ({@link Version}) или null
+	 */
+	public DatabaseField getVersionField()
+	{
+		return _versionField;
+	}
+
+	/**
+	 * индекс поля версии в {@link #getFields()}, -1 если версии нет
+	 */
+	public int getVersionIndex()
+	{
+		return _versionIndex;
+	}
+
+	/**
+	 * следующее значение версии того же типа что поле, null считается 0
+	 */
+	public Object nextVersion(Object version)
+	{
+		if (version == null)
+		{
+			version = initialVersion();
+		}
+		if (version instanceof Long)
+		{
+			return (Long) version + 1;
+		}
+		if (version instanceof Short)
+		{
+			return (short) ((Short) version + 1);
+		}
+		return (Integer) version + 1;
+	}
+
+	/**
+	 * начальная версия для новой строки
+	 */
+	public Object initialVersion()
+	{
+		final Class<?> type = _versionField.getType();
+		if (type == ClassConstants.PLONG || type == ClassConstants.LONG)
+		{
+			return 0L;
+		}
+		if (type == ClassConstants.PSHORT || type == ClassConstants.SHORT)
+		{
+			return (short) 0;
+		}
+		return 0;
+	}
+
+	/**
+	 * индекс поля в {@link #getFields()} по имени колонки или java поля, -1 если такого нет
+	 */
+	public int getFieldIndex(String name)
+	{
+		final Integer index = _fieldIndexes.get(name);
+		return index == null ? -1 : index;
+	}
+
 	public List<DatabaseField> getPrimaryKeyFields()
 	{
 		return _primaryKeyFields;
 	}
 
+	/**
+	 * кэшируются ли сущности класса в кэше второго уровня, только с одним ключевым полем
+	 */
+	public boolean isCacheable()
+	{
+		return _cacheTtl != 0 && _primaryKeyFields.size() == 1;
+	}
+
+	/**
+	 * время жизни в кэше второго уровня, мс, меньше 0 - без ограничения
+	 */
+	public long getCacheTtl()
+	{
+		return _cacheTtl;
+	}
+
 	/**
 	 * Build and return the default (zero-argument) constructor for the specified class.
 	 */
@@ -530,6 +1080,87 @@ public class ClassDescriptor
 		return result;
 	}
 
+	/**
+	 * создать пустой снимок состояния сущности для диффа
+	 * @param compact компактный Object[] по индексам полей вместо полного инстанса сущности
+	 */
+	public Object buildSnapshot(boolean compact)
+	{
+		return compact ? new Object[_fields.size()] : buildNewInstance();
+	}
+
+	/**
+	 * копия снимка того же вида, значения полей переносятся как есть
+	 */
+	public Object copySnapshot(Object snapshot)
+	{
+		if (snapshot instanceof Object[])
+		{
+			return ((Object[]) snapshot).clone();
+		}
+		final Object copy = buildNewInstance();
+		for (int i = 0; i < _fields.size(); i++)
+		{
+			_fields.get(i).getAccessor().copy(snapshot, copy);
+		}
+		return copy;
+	}
+
+	/**
+	 * значение поля из снимка сущности
+	 * @param index индекс поля в {@link #getFields()}
+	 */
+	public Object getSnapshotValue(Object snapshot, int index)
+	{
+		if (snapshot instanceof Object[])
+		{
+			return ((Object[]) snapshot)[index];
+		}
+		return _fields.get(index).getAccessor().get(snapshot);
+	}
+
+	public void setSnapshotValue(Object snapshot, int index, Object value)
+	{
+		if (snapshot instanceof Object[])
+		{
+			((Object[]) snapshot)[index] = value;
+		}
+		else
+		{
+			_fields.get(index).getAccessor().set(snapshot, value);
+		}
+	}
+
+	/**
+	 * совпадает ли значение поля сущности со снимком
+	 * для снимка-инстанса примитивы сравниваются без боксинга
+	 */
+	public boolean isSnapshotSame(Object entity, Object snapshot, int index)
+	{
+		final FieldAccessor accessor = _fields.get(index).getAccessor();
+		if (snapshot instanceof Object[])
+		{
+			return DatabasePlatform.compareObjectValues(accessor.get(entity), ((Object[]) snapshot)[index]);
+		}
+		return accessor.isSame(entity, snapshot);
+	}
+
+	/**
+	 * перенести текущее значение поля сущности в снимок
+	 */
+	public void copyToSnapshot(Object entity, Object snapshot, int index)
+	{
+		final FieldAccessor accessor = _fields.get(index).getAccessor();
+		if (snapshot instanceof Object[])
+		{
+			((Object[]) snapshot)[index] = DatabasePlatform.buildCloneValue(accessor.get(entity));
+		}
+		else
+		{
+			accessor.copy(entity, snapshot);
+		}
+	}
+
 	public Object buildNewInstance()
 	{
 		try
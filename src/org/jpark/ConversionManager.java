@@ -2,17 +2,21 @@ package org.jpark;
 
 import org.jpark.helper.ClassConstants;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 public class ConversionManager
 {
 
-	private static Map<Class, String> fieldTypeMapping;
+	/**
+	 * строится один раз при загрузке класса, дальше только читается из любых потоков
+	 */
+	private static final Map<Class, String> fieldTypeMapping = buildFieldMapping();
 
-	private static void buildFieldMapping()
+	private static Map<Class, String> buildFieldMapping()
 	{
-		fieldTypeMapping = new HashMap<>();
+		Map<Class, String> fieldTypeMapping = new HashMap<>();
 
 		fieldTypeMapping.put(boolean.class, "TINYINT(1) default 0");
 		fieldTypeMapping.put(byte.class, "TINYINT");
@@ -49,14 +53,11 @@ public class ConversionManager
 		fieldTypeMapping.put(java.sql.Time.class, "TIME");
 		fieldTypeMapping.put(java.sql.Timestamp.class, "DATETIME");
 		fieldTypeMapping.put(java.time.LocalDate.class, "DATE");
+		return Collections.unmodifiableMap(fieldTypeMapping);
 	}
 
 	public static String getFieldTypeDefinition(Class<?> javaType)
 	{
-		if (fieldTypeMapping == null)
-		{
-			buildFieldMapping();
-		}
 		return fieldTypeMapping.get(javaType);
 	}
 
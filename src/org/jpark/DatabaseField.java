@@ -57,9 +57,20 @@ public class DatabaseField
 
 	private Field _field;
 
+	/**
+	 * быстрый доступ к полю, строим один раз при регистрации сущности
+	 */
+	private final FieldAccessor _accessor;
+
+	/**
+	 * кодек для бинда параметров и чтения колонки, выбирается по типу поля
+	 */
+	private final FieldCodec _codec;
+
 	public DatabaseField(Field field, Column annotation, ColumnExtended extendedAnnotation, DatabaseTable table)
 	{
 		_field = field;
+		_accessor = FieldAccessor.build(field);
 		_type = _field.getType();
 		_isEnum = _type.isEnum();
 		if (_isEnum)
@@ -94,11 +105,13 @@ public class DatabaseField
 		{
 			_isUpdateInsertId = false;
 		}
+		_codec = FieldCodec.build(this);
 	}
 
 	public DatabaseField(Field field, DatabaseTable table)
 	{
 		_field = field;
+		_accessor = FieldAccessor.build(field);
 		_type = _field.getType();
 		_isEnum = _type.isEnum();
 		if (_isEnum)
@@ -120,6 +133,7 @@ public class DatabaseField
 		_isInsertable = true;
 		_table = table;
 		_isPrimaryKey = false;
+		_codec = FieldCodec.build(this);
 	}
 
 	public DatabaseTable getTable()
@@ -142,6 +156,16 @@ public class DatabaseField
 		return _field;
 	}
 
+	public FieldAccessor getAccessor()
+	{
+		return _accessor;
+	}
+
+	public FieldCodec getCodec()
+	{
+		return _codec;
+	}
+
 	public Class<?> getType()
 	{
 		return _type;
@@ -16,7 +16,8 @@ public class DatabasePlatform
 {
 	public static final char SEPARATE_CHAR = '`';
 	public static final char APOSTROPHE_CHAR = '\'';
-	private static final int _stringBindingSize = 256;
+	static final int STRING_BINDING_SIZE = 256;
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
 	/**
 	 * INTERNAL
@@ -30,7 +31,7 @@ public class DatabasePlatform
 		if (parameter instanceof String)
 		{
 			// Check for stream binding of large strings.
-			if (((String) parameter).length() > _stringBindingSize)
+			if (((String) parameter).length() > STRING_BINDING_SIZE)
 			{
 				CharArrayReader reader = new CharArrayReader(((String) parameter).toCharArray());
 				statement.setCharacterStream(index, reader, ((String) parameter).length());
@@ -187,11 +188,138 @@ public class DatabasePlatform
 		}
 	}
 
+	/**
+	 * значение поля в текстовом формате LOAD DATA (колонки через таб, строки через \n, экранирование через \)
+	 * типы те же что в {@link #setParameterValue}, приведение к строке такое же как при бинде параметра
+	 * byte[] пишется в hex, колонку надо загружать через UNHEX, см {@link ClassDescriptor#getLoadDataSql()}
+	 */
+	public static void appendLoadDataValue(StringBuilder out, Object value)
+	{
+		if (value == null)
+		{
+			out.append("\\N");
+		}
+		else if (value instanceof String)
+		{
+			appendLoadDataEscaped(out, (String) value);
+		}
+		else if (value instanceof Number)
+		{
+			if (value instanceof BigDecimal)
+			{
+				out.append(((BigDecimal) value).toPlainString());
+			}
+			else if ((value instanceof Double && !Double.isFinite((Double) value)) || (value instanceof Float && !Float.isFinite((Float) value)))
+			{
+				throw new IllegalArgumentException("Not finite number can not be stored: " + value);
+			}
+			else
+			{
+				out.append(value.toString());
+			}
+		}
+		else if (value instanceof Enum)
+		{
+			appendLoadDataEscaped(out, ((Enum<?>) value).name());
+		}
+		else if (value instanceof Boolean)
+		{
+			out.append((Boolean) value ? '1' : '0');
+		}
+		else if (value instanceof java.sql.Date || value instanceof Timestamp || value instanceof Time)
+		{
+			// toString у jdbc типов дает формат, который MySQL понимает как дату/время
+			out.append(value.toString());
+		}
+		else if (value instanceof java.time.LocalDate)
+		{
+			out.append(java.sql.Date.valueOf((java.time.LocalDate) value).toString());
+		}
+		else if (value instanceof java.time.LocalDateTime)
+		{
+			out.append(Timestamp.valueOf((java.time.LocalDateTime) value).toString());
+		}
+		else if (value instanceof java.time.OffsetDateTime)
+		{
+			out.append(Timestamp.from(((java.time.OffsetDateTime) value).toInstant()).toString());
+		}
+		else if (value instanceof java.time.LocalTime)
+		{
+			out.append(value.toString());
+		}
+		else if (value instanceof java.time.OffsetTime)
+		{
+			out.append(((java.time.OffsetTime) value).toLocalTime().toString());
+		}
+		else if (value instanceof byte[])
+		{
+			final byte[] bytes = (byte[]) value;
+			for (byte b : bytes)
+			{
+				out.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+			}
+		}
+		else if (value instanceof Calendar)
+		{
+			out.append(Helper.timestampFromDate(((Calendar) value).getTime()).toString());
+		}
+		else if (value.getClass() == ClassConstants.UTILDATE)
+		{
+			out.append(Helper.timestampFromDate((Date) value).toString());
+		}
+		else if (value instanceof char[])
+		{
+			appendLoadDataEscaped(out, new String((char[]) value));
+		}
+		else
+		{
+			appendLoadDataEscaped(out, value.toString());
+		}
+	}
+
+	/**
+	 * экранирование строки для LOAD DATA с экранирующим символом \: сам \, таб, перевод строки, возврат каретки и нулевой символ
+	 */
+	private static void appendLoadDataEscaped(StringBuilder out, String value)
+	{
+		for (int i = 0; i < value.length(); i++)
+		{
+			final char c = value.charAt(i);
+			switch (c)
+			{
+				case '\\':
+					out.append("\\\\");
+					break;
+				case '\t':
+					out.append("\\t");
+					break;
+				case '\n':
+					out.append("\\n");
+					break;
+				case '\r':
+					out.append("\\r");
+					break;
+				case '\0':
+					out.append("\\0");
+					break;
+				default:
+					out.append(c);
+					break;
+			}
+		}
+	}
+
 	public static Object getObjectThroughOptimizedDataConversion(ResultSet resultSet, DatabaseField field, int columnNumber) throws SQLException
 	{
 		// тип колонки из базы
-		final int type = resultSet.getMetaData().getColumnType(columnNumber);
+		return getObjectThroughOptimizedDataConversion(resultSet, field, columnNumber, resultSet.getMetaData().getColumnType(columnNumber));
+	}
 
+	/**
+	 * @param type jdbc тип колонки, если уже известен из {@link ResultSetMapping}
+	 */
+	public static Object getObjectThroughOptimizedDataConversion(ResultSet resultSet, DatabaseField field, int columnNumber, int type) throws SQLException
+	{
 		Object value = field;// Means no optimization, need to distinguish from null.
 		Class<?> fieldType = field.getType();
 
@@ -1,18 +1,31 @@
 package org.jpark;
 
+import org.jpark.cache.EntityCache;
+import org.jpark.cache.QueryCache;
 import org.jpark.helper.ClassFinder;
-import org.jpark.helper.IdentityWeakHashMap;
+import org.jpark.helper.CompactIdentityWeakHashMap;
+import org.jpark.helper.ConcurrentIdentityWeakHashMap;
+import org.jpark.pool.ConnectionPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.persistence.Entity;
+import javax.persistence.OptimisticLockException;
 import java.io.IOException;
-import java.lang.reflect.Field;
+import java.io.InputStream;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.sql.*;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * менеджер сущностей, по мотивам JPA
@@ -20,22 +33,150 @@ import java.util.Map;
  * заточен только под MySQL/MariaDB
  * пока эта штука поддерживает сущности с 1 ключевым полем для инсерта/апдейта/удаления
  * либо вообще без ключевых полей для инсерта
+ * <p>
+ * по умолчанию менеджер рассчитан на один поток. менеджер созданный через {@link #EntityManager(boolean)}
+ * с concurrent=true можно использовать из многих потоков сразу:
+ * дескрипторы регистрируются в конкурентной мапе и после регистрации только читаются,
+ * мапа управляемых сущностей разбита на сегменты со своими локами на запись, чтение из нее идет без локов
+ * настройки (setXXX) и регистрацию сущностей надо делать до того как менеджер начнут использовать потоки
+ * одну и ту же сущность одновременно из разных потоков менять по прежнему нельзя
+ * async методы ({@link #findByIdAsync}, {@link #persistAsync} и т.д.) доступны только в этом режиме
  */
 public class EntityManager
 {
 	private static final Logger _log = LoggerFactory.getLogger(EntityManager.class.getName());
 
-	private Map<Class<?>, ClassDescriptor> _descriptors = new HashMap<>(4);
+	private final Map<Class<?>, ClassDescriptor> _descriptors = new ConcurrentHashMap<>(16);
 
 	private ConnectionFactory _connectionFactory;
 
-	private Map<Object, Object> _cloneMap;
+	private final Map<Object, Object> _cloneMap;
+
+	/**
+	 * управляемые сущности по классу и ид, меняется вместе с {@link #_cloneMap} через {@link #manage}/{@link #unmanage}
+	 */
+	private final ManagedIndex _managedIndex = new ManagedIndex();
+
+	/**
+	 * менеджер используется из многих потоков
+	 */
+	private final boolean _concurrent;
+
+	/**
+	 * сколько строк отправляем в базу одним батчем
+	 */
+	private int _batchSize = 500;
+
+	/**
+	 * хранить снимки управляемых сущностей компактным Object[] вместо полного клона сущности
+	 */
+	private boolean _compactSnapshots = false;
+
+	/**
+	 * fetch size для потокового чтения, Integer.MIN_VALUE - построчный стриминг драйвера MySQL
+	 */
+	private int _streamFetchSize = Integer.MIN_VALUE;
+
+	private final ReadOnlyQueries _readOnlyQueries = new ReadOnlyQueries(this);
+
+	/**
+	 * кэш подготовленных запросов, null - кэш выключен
+	 */
+	private StatementCache _statementCache;
+
+	/**
+	 * кэш второго уровня, null - выключен
+	 */
+	private EntityCache _entityCache;
+
+	/**
+	 * кэш результатов запросов {@link #findAllCached}, null - выключен
+	 */
+	private QueryCache _queryCache;
+
+	/**
+	 * открытые транзакции: коннект -> управляемые сущности которые надо проверить на изменения при коммите
+	 * коннекты не переопределяют equals, поэтому конкурентная мапа здесь работает по identity
+	 */
+	private final Map<Connection, Set<Object>> _unitsOfWork = new ConcurrentHashMap<>();
+
+	/**
+	 * открытые транзакции: коннект -> дескрипторы таблиц, в которые транзакция писала
+	 * после коммита запросы по этим таблицам еще раз выкидываются из кэша запросов
+	 */
+	private final Map<Connection, Set<ClassDescriptor>> _writtenTables = new ConcurrentHashMap<>();
+
+	/**
+	 * ид кэшируемых сущностей, записанных (измененных или удаленных) в открытой транзакции, по коннекту
+	 * ключ дескриптора без набора ид - задели неизвестные строки, выкидываем из кэша весь класс
+	 * после коммита их выкидываем из кэша сущностей еще раз, см {@link #commit}
+	 */
+	private final Map<Connection, Map<ClassDescriptor, Set<Object>>> _writtenEntities = new ConcurrentHashMap<>();
+
+	/**
+	 * снимки управляемых сущностей на момент до их первой записи в открытой транзакции, по коннекту
+	 * при откате (или неудачном коммите) возвращаются в мапу клонов вместе с версией, см {@link #restoreSnapshots}
+	 */
+	private final Map<Connection, Map<Object, Object>> _transactionSnapshots = new ConcurrentHashMap<>();
+
+	/**
+	 * метка в {@link #_transactionSnapshots}: до транзакции сущность не была управляемой
+	 */
+	private static final Object NOT_MANAGED = new Object();
+
+	/**
+	 * скоуп транзакции привязанный к текущему потоку, его коннект используют методы без явного коннекта
+	 */
+	private final ThreadLocal<TransactionScope> _currentScope = new ThreadLocal<>();
+
+	/**
+	 * где выполняется работа с базой для async методов, null - свой пул демон потоков
+	 */
+	private Executor _asyncExecutor;
+
+	/**
+	 * сколько async операций одновременно работает с базой, 0 - по размеру пула коннектов
+	 */
+	private int _asyncMaxInFlight;
+
+	/**
+	 * где завершаются future async методов, если вызывающий не передал свой executor
+	 */
+	private Executor _asyncCompletionExecutor = ForkJoinPool.commonPool();
+
+	private volatile BoundedExecutor _boundedAsyncExecutor;
+
+	/**
+	 * свой пул async потоков, если executor не задан снаружи, закрывается в {@link #shutdownAsync()}
+	 */
+	private ExecutorService _ownAsyncExecutor;
+
+	private final ReentrantLock _asyncLock = new ReentrantLock();
+
+	/**
+	 * режим виртуальных потоков: ограничение числа одновременных операций с базой, null - выключен
+	 */
+	private Semaphore _connectionPermits;
 
 	public EntityManager()
 	{
+		this(false);
+	}
+
+	/**
+	 * @param concurrent менеджер будет использоваться из многих потоков одновременно
+	 */
+	public EntityManager(boolean concurrent)
+	{
+		_concurrent = concurrent;
 		_cloneMap = createMap();
 	}
 
+	public boolean isConcurrent()
+	{
+		return _concurrent;
+	}
+
 	/**
 	 * передадим фабрику коннектов
 	 */
@@ -44,665 +185,2880 @@ public class EntityManager
 		_connectionFactory = factory;
 	}
 
-	public Connection beginTransaction() throws SQLException
+	/**
+	 * размер батча для пакетной записи
+	 */
+	public void setBatchSize(int batchSize)
+	{
+		if (batchSize <= 0)
+		{
+			throw new IllegalArgumentException("Wrong batch size: " + batchSize);
+		}
+		_batchSize = batchSize;
+	}
+
+	/**
+	 * хранить снимки для диффа в виде Object[] по индексам {@link ClassDescriptor#getFields()}
+	 * не требует конструктора и второго инстанса сущности на каждую управляемую сущность
+	 * уже взятые на управление сущности продолжают работать со своими снимками
+	 */
+	public void setCompactSnapshots(boolean compactSnapshots)
+	{
+		_compactSnapshots = compactSnapshots;
+	}
+
+	/**
+	 * fetch size для {@link #stream}/{@link #forEach}
+	 * по умолчанию Integer.MIN_VALUE (построчный стриминг), положительное значение - чтение серверным курсором
+	 * пачками, для него в строке коннекта MySQL нужен useCursorFetch=true
+	 */
+	public void setStreamFetchSize(int streamFetchSize)
+	{
+		_streamFetchSize = streamFetchSize;
+	}
+
+	/**
+	 * включить кэш подготовленных запросов: на каждый коннект держим не больше size запросов
+	 * 0 выключает кэш, уже закэшированные запросы при этом не закрываются
+	 * имеет смысл если коннекты переиспользуются (пул), иначе на новых коннектах будут одни промахи
+	 */
+	public void setStatementCacheSize(int size)
+	{
+		if (size < 0)
+		{
+			throw new IllegalArgumentException("Wrong statement cache size: " + size);
+		}
+		_statementCache = size == 0 ? null : new StatementCache(size);
+	}
+
+	/**
+	 * кэш подготовленных запросов, для статистики попаданий, null если кэш выключен
+	 */
+	public StatementCache getStatementCache()
+	{
+		return _statementCache;
+	}
+
+	/**
+	 * кэш второго уровня для поиска по ид, кэшируются только классы с {@link TableExtended#cacheTtl()}
+	 * один кэш можно отдать нескольким менеджерам, null выключает кэш
+	 */
+	public void setEntityCache(EntityCache entityCache)
+	{
+		_entityCache = entityCache;
+	}
+
+	public EntityCache getEntityCache()
+	{
+		return _entityCache;
+	}
+
+	/**
+	 * кэш результатов для {@link #findAllCached}, null выключает кэш (findAllCached работает как findAll)
+	 */
+	public void setQueryCache(QueryCache queryCache)
+	{
+		_queryCache = queryCache;
+	}
+
+	public QueryCache getQueryCache()
+	{
+		return _queryCache;
+	}
+
+	/**
+	 * executor, в котором async методы работают с базой. задаем до первого async вызова
+	 * число одновременных операций ограничивает сам менеджер, см {@link #setAsyncMaxInFlight}
+	 */
+	public void setAsyncExecutor(Executor asyncExecutor)
+	{
+		_asyncExecutor = asyncExecutor;
+	}
+
+	/**
+	 * сколько async операций одновременно работают с базой, остальные ждут в очереди
+	 * по умолчанию размер {@link ConnectionPool} если фабрика коннектов пул, иначе число процессоров
+	 */
+	public void setAsyncMaxInFlight(int maxInFlight)
+	{
+		if (maxInFlight < 0)
+		{
+			throw new IllegalArgumentException("Wrong async max in flight: " + maxInFlight);
+		}
+		_asyncMaxInFlight = maxInFlight;
+	}
+
+	/**
+	 * executor, в котором завершаются future async методов (и выполняются неasync продолжения на них)
+	 * по умолчанию {@link ForkJoinPool#commonPool()}, так продолжения не занимают слоты работы с базой
+	 */
+	public void setAsyncCompletionExecutor(Executor completionExecutor)
+	{
+		if (completionExecutor == null)
+		{
+			throw new IllegalArgumentException("Null completion executor");
+		}
+		_asyncCompletionExecutor = completionExecutor;
+	}
+
+	/**
+	 * остановить свой пул async потоков (заданный через {@link #setAsyncExecutor} executor не трогаем)
+	 * уже начатые операции доработают, ждущие в очереди и новые async вызовы завершатся {@link RejectedExecutionException}
+	 * если async методы еще не вызывались, пула нет и вызов ничего не делает
+	 */
+	public void shutdownAsync()
+	{
+		_asyncLock.lock();
+		try
+		{
+			if (_ownAsyncExecutor != null)
+			{
+				_ownAsyncExecutor.shutdown();
+			}
+		}
+		finally
+		{
+			_asyncLock.unlock();
+		}
+	}
+
+	/**
+	 * режим виртуальных потоков с числом одновременных операций по размеру пула коннектов
+	 * фабрика коннектов должна быть {@link ConnectionPool}, иначе размер надо задать явно
+	 * @see #enableVirtualThreadMode(int)
+	 */
+	public void enableVirtualThreadMode()
+	{
+		if (!(_connectionFactory instanceof ConnectionPool))
+		{
+			throw new IllegalStateException("Connection factory is not ConnectionPool, set max concurrent operations explicitly");
+		}
+		enableVirtualThreadMode(((ConnectionPool) _connectionFactory).getMaxSize());
+	}
+
+	/**
+	 * режим виртуальных потоков: каждый виртуальный поток зовет менеджер напрямую
+	 * методы без явного коннекта и транзакции (beginTransaction/beginScope) сначала берут разрешение
+	 * у честного (fair) семафора на maxConcurrentOperations и держат его пока держат коннект
+	 * лишние потоки паркуются в очереди семафора без таймаута, вместо того чтобы падать по таймауту пула
+	 * внутри менеджера, пула и кэшей нет synchronized вокруг JDBC, так что несущий поток не пинится,
+	 * но драйвер должен быть без synchronized на сетевом вводе-выводе (Connector/J 9+) либо JDK 24+
+	 * методы с явным коннектом разрешений не берут, этим коннектом управляет вызывающий
+	 * включать до начала работы, менеджер должен быть concurrent
+	 */
+	public void enableVirtualThreadMode(int maxConcurrentOperations)
+	{
+		if (!_concurrent)
+		{
+			throw new IllegalStateException("Virtual thread mode requires concurrent EntityManager");
+		}
+		if (maxConcurrentOperations <= 0)
+		{
+			throw new IllegalArgumentException("Wrong max concurrent operations: " + maxConcurrentOperations);
+		}
+		_connectionPermits = new Semaphore(maxConcurrentOperations, true);
+	}
+
+	public boolean isVirtualThreadMode()
+	{
+		return _connectionPermits != null;
+	}
+
+	/**
+	 * сколько потоков ждут разрешения на работу с базой, 0 если режим виртуальных потоков выключен
+	 */
+	public int getQueuedOperationCount()
+	{
+		final Semaphore permits = _connectionPermits;
+		return permits == null ? 0 : permits.getQueueLength();
+	}
+
+	/**
+	 * начать транзакцию
+	 * апдейты управляемых сущностей через этот коннект копятся и пишутся в базу в {@link #flush(Connection)} или {@link #commit(Connection)}
+	 * незакрытые транзакции (утечки коннекта) ловит пул, см {@link ConnectionPool#setLeakDetectionThreshold}
+	 */
+	public Connection beginTransaction() throws SQLException
+	{
+		final Connection connection = getPermittedConnection();
+		try
+		{
+			connection.setAutoCommit(false);
+		}
+		catch (SQLException e)
+		{
+			closeQuietly(connection);
+			releasePermit();
+			throw e;
+		}
+		_unitsOfWork.put(connection, Collections.newSetFromMap(new IdentityHashMap<>()));
+		_writtenTables.put(connection, new HashSet<>());
+		_writtenEntities.put(connection, new HashMap<>());
+		_transactionSnapshots.put(connection, new IdentityHashMap<>());
+		return connection;
+	}
+
+	/**
+	 * начать транзакцию и привязать ее коннект к текущему потоку
+	 * пока скоуп открыт, все методы без явного коннекта (persist(Object), findById(Class, Object) и т.д.)
+	 * работают через этот коннект и внутри этой транзакции
+	 * скоуп закрывается через {@link TransactionScope#commit()}/{@link TransactionScope#rollback()},
+	 * close() без коммита откатывает транзакцию
+	 */
+	public TransactionScope beginScope() throws SQLException
+	{
+		if (_currentScope.get() != null)
+		{
+			throw new IllegalStateException("Transaction scope already bound to current thread");
+		}
+		final TransactionScope scope = new TransactionScope(this, beginTransaction());
+		_currentScope.set(scope);
+		return scope;
+	}
+
+	/**
+	 * скоуп транзакции текущего потока, null если его нет
+	 */
+	public TransactionScope getCurrentScope()
+	{
+		return _currentScope.get();
+	}
+
+	/**
+	 * отвязать скоуп от потока, вызывается скоупом при коммите/откате
+	 */
+	void unbindScope(TransactionScope scope)
+	{
+		if (_currentScope.get() == scope)
+		{
+			_currentScope.remove();
+		}
+	}
+
+	/**
+	 * записать отложенные апдейты и закоммитить
+	 * если запись не удалась (в том числе {@link OptimisticLockException}) транзакция откатывается, коннект закрывается
+	 */
+	public void commit(Connection connection) throws SQLException
+	{
+		boolean committed = false;
+		try
+		{
+			flush(connection);
+			connection.commit();
+			committed = true;
+
+			// пока транзакция не закоммичена другие потоки могли снова положить в кэш старые значения
+			// (в том числе сущностей, записанных явным flush, удаленных, измененных через merge и update)
+			final Map<ClassDescriptor, Set<Object>> entities = _writtenEntities.remove(connection);
+			if (entities != null)
+			{
+				for (Map.Entry<ClassDescriptor, Set<Object>> entry : entities.entrySet())
+				{
+					invalidateCommitted(entry.getKey(), entry.getValue());
+				}
+			}
+			final Set<ClassDescriptor> tables = _writtenTables.remove(connection);
+			if (tables != null && _queryCache != null)
+			{
+				for (ClassDescriptor descriptor : tables)
+				{
+					_queryCache.invalidateTable(descriptor.getTable().getName());
+				}
+			}
+		}
+		finally
+		{
+			final boolean owned = _unitsOfWork.remove(connection) != null;
+			_writtenTables.remove(connection);
+			_writtenEntities.remove(connection);
+			final Map<Object, Object> snapshots = _transactionSnapshots.remove(connection);
+			try
+			{
+				if (!committed)
+				{
+					// иначе setAutoCommit(true) закоммитит то, что успели записать
+					rollbackQuietly(connection);
+					restoreSnapshots(snapshots);
+				}
+				connection.setAutoCommit(true);
+				connection.close();
+			}
+			finally
+			{
+				if (owned)
+				{
+					releasePermit();
+				}
+			}
+		}
+	}
+
+	/**
+	 * запомнить снимок управляемой сущности до ее первой записи в транзакции этого коннекта
+	 * вне транзакции ничего не делает
+	 */
+	private void rememberSnapshot(Connection connection, ClassDescriptor descriptor, Object entity)
+	{
+		final Map<Object, Object> snapshots = _transactionSnapshots.get(connection);
+		if (snapshots == null || snapshots.containsKey(entity))
+		{
+			return;
+		}
+		final Object clone = _cloneMap.get(entity);
+		if (clone != entity)
+		{
+			snapshots.put(entity, clone == null ? NOT_MANAGED : descriptor.copySnapshot(clone));
+		}
+	}
+
+	/**
+	 * откат транзакции: записанные в ней сущности снова управляются со снимками до транзакции,
+	 * так следующий persist увидит их изменения в диффе, а версия в сущности снова совпадет с базой
+	 * сущности, взятые на управление только в этой транзакции, отсоединяются
+	 */
+	private void restoreSnapshots(Map<Object, Object> snapshots)
+	{
+		if (snapshots == null)
+		{
+			return;
+		}
+		for (Map.Entry<Object, Object> entry : snapshots.entrySet())
+		{
+			final Object entity = entry.getKey();
+			final Object snapshot = entry.getValue();
+			if (snapshot == NOT_MANAGED)
+			{
+				unmanage(entity);
+				continue;
+			}
+			final ClassDescriptor descriptor = getDescriptor(entity);
+			final DatabaseField versionField = descriptor.getVersionField();
+			if (versionField != null)
+			{
+				versionField.getAccessor().set(entity, descriptor.getSnapshotValue(snapshot, descriptor.getVersionIndex()));
+			}
+			manage(descriptor, entity, snapshot);
+		}
+	}
+
+	private static void rollbackQuietly(Connection connection)
+	{
+		try
+		{
+			connection.rollback();
+		}
+		catch (SQLException e)
+		{
+			_log.warn("rollback failed", e);
+		}
+	}
+
+	public void rollback(Connection connection) throws SQLException
+	{
+		// отложенные апдейты просто выкидываем (их клоны не менялись),
+		// а записанным в транзакции сущностям возвращаем снимки и версии на момент до записи
+		final boolean owned = _unitsOfWork.remove(connection) != null;
+		_writtenTables.remove(connection);
+		_writtenEntities.remove(connection);
+		restoreSnapshots(_transactionSnapshots.remove(connection));
+		try
+		{
+			connection.rollback();
+			connection.setAutoCommit(true);
+			connection.close();
+		}
+		finally
+		{
+			if (owned)
+			{
+				releasePermit();
+			}
+		}
+	}
+
+	/**
+	 * добавить класс сущности
+	 */
+	private void addEntityClass(Class<?> clazz)
+	{
+		// проверим что переданный класс это сущность JPA
+		Entity entity = clazz.getAnnotation(Entity.class);
+		if (entity != null)
+		{
+			try
+			{
+				_log.debug("addEntityClass: " + clazz.getCanonicalName());
+				ClassDescriptor descriptor = new ClassDescriptor(clazz);
+				_descriptors.put(clazz, descriptor);
+			}
+			catch (NoSuchMethodException e)
+			{
+				_log.error("No default constructor for " + clazz.getCanonicalName());
+			}
+		}
+	}
+
+	/**
+	 * поиск сущностей по пакету
+	 */
+	public void findEntities(String packageName)
+	{
+		try
+		{
+			final Class<?>[] classes = ClassFinder.getClasses(packageName);
+			for (Class<?> c : classes)
+			{
+				addEntityClass(c);
+			}
+		}
+		catch (IOException e)
+		{
+
+		}
+		catch (ClassNotFoundException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * деплой сущностей в базу если необходимо
+	 */
+	public void deploy() throws SQLException
+	{
+		try (Connection c = _connectionFactory.get())
+		{
+			for (ClassDescriptor descriptor : _descriptors.values())
+			{
+				descriptor.deploy(c);
+			}
+		}
+	}
+
+	/**
+	 * сохранить/обновить сущность в базу
+	 */
+	public void persist(Object entity)
+	{
+		final Connection connection = acquireConnection();
+		try
+		{
+			persist(entity, connection);
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
+	}
+
+	public void persist(Object entity, Connection connection)
+	{
+		ClassDescriptor descriptor = getDescriptor(entity);
+		if (descriptor == null)
+		{
+			throw new IllegalArgumentException("Not entity object, no class descriptor");
+		}
+
+		// ищем среди обслуживаемых сущностей такую
+		Object clone = _cloneMap.get(entity);
+
+		// если нашли - значит надо делать дифф и писать в базу апдейт
+		if (clone != null)
+		{
+			if (entity != clone)
+			{
+				if (descriptor.getPrimaryKeyFields().size() == 0)
+				{
+					throw new RuntimeException("No primary key for entity");
+				}
+
+				// внутри транзакции апдейт откладываем до flush/commit, пишем только изменения на момент коммита
+				final Set<Object> dirty = _unitsOfWork.get(connection);
+				if (dirty != null)
+				{
+					_log.debug("entity FOUND, deferred UPDATE");
+					dirty.add(entity);
+					return;
+				}
+
+				_log.debug("entity FOUND, UPDATE");
+
+				try
+				{
+					final BitSet changed = collectChanges(descriptor, entity, clone);
+					if (changed != null)
+					{
+						final String sql = descriptor.getUpdateSql(changed);
+						try (CachedStatement cached = prepareStatement(connection, sql, false))
+						{
+							final PreparedStatement ps = cached.getStatement();
+							_log.debug("execute update SQL " + entity.toString() + ": " + sql);
+							bindUpdateParameters(descriptor, entity, clone, changed, ps);
+							final int rows = ps.executeUpdate();
+							checkVersionUpdated(descriptor, entity, rows);
+						}
+						syncClone(descriptor, entity, clone, changed);
+						bumpVersion(descriptor, entity, clone);
+						invalidateCachedEntity(descriptor, entity, connection);
+						tableWritten(descriptor, connection);
+					}
+					else
+					{
+						_log.debug("no changes, no update needed, skip");
+					}
+				}
+				catch (SQLException e)
+				{
+					throw new RuntimeException("SQLException", e);
+				}
+			}
+		}
+		else
+		{
+			// не нашли. создаем новый объект в базе
+			// формируем SQL запрос на инсерт
+			_log.debug("entity NOT found, INSERT");
+
+			try
+			{
+				// будем писать в сущность сгенерированного ид только если у нас одно ключевое поле
+				boolean isGeneratedOneKey = isGeneratedOneKey(descriptor);
+
+				try (CachedStatement cached = prepareStatement(connection, descriptor.getSimpleInsertSql(), isGeneratedOneKey))
+				{
+					final PreparedStatement ps = cached.getStatement();
+					// создадим клона для сохранения диффа
+					if (isGeneratedOneKey)
+					{
+						clone = descriptor.buildSnapshot(_compactSnapshots);
+					}
+
+					bindInsertParameters(descriptor, entity, clone, ps);
+					rememberSnapshot(connection, descriptor, entity);
+
+					_log.debug("execute insert SQL " + entity.toString() + ": " + descriptor.getSimpleInsertSql());
+					int affectedRows = ps.executeUpdate();
+					tableWritten(descriptor, connection);
+
+					if (isGeneratedOneKey)
+					{
+						if (affectedRows == 0)
+						{
+							throw new SQLException("Insert failed, no affected rows");
+						}
+						try (ResultSet generatedKeys = ps.getGeneratedKeys())
+						{
+							registerGeneratedKey(descriptor, entity, clone, generatedKeys);
+						}
+					}
+				}
+			}
+			catch (SQLException e)
+			{
+				throw new RuntimeException("SQLException", e);
+			}
+		}
+	}
+
+	/**
+	 * сохранить/обновить пачку сущностей
+	 * новые сущности группируются по дескриптору и пишутся в базу батчами,
+	 * управляемые сущности обновляются как в {@link #persist(Object, Connection)}
+	 * новая сущность, встретившаяся в коллекции несколько раз, вставляется один раз
+	 */
+	public void persistAll(Collection<?> entities)
+	{
+		final Connection connection = acquireConnection();
+		try
+		{
+			persistAll(entities, connection);
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
+	}
+
+	public void persistAll(Collection<?> entities, Connection connection)
+	{
+		// новые сущности раскладываем по дескрипторам сохраняя порядок
+		Map<ClassDescriptor, List<Object>> inserts = new LinkedHashMap<>();
+		final Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (Object entity : entities)
+		{
+			ClassDescriptor descriptor = getDescriptor(entity);
+			if (descriptor == null)
+			{
+				throw new IllegalArgumentException("Not entity object, no class descriptor");
+			}
+
+			if (_cloneMap.containsKey(entity))
+			{
+				persist(entity, connection);
+			}
+			else if (seen.add(entity))
+			{
+				inserts.computeIfAbsent(descriptor, d -> new ArrayList<>()).add(entity);
+			}
+		}
+
+		for (Map.Entry<ClassDescriptor, List<Object>> entry : inserts.entrySet())
+		{
+			insertBatch(entry.getKey(), entry.getValue(), connection);
+		}
+	}
+
+	/**
+	 * вставить новые сущности одного класса пачками по {@link #_batchSize}
+	 * для MySQL стоит включить rewriteBatchedStatements=true, тогда драйвер сам перепишет батч
+	 * в многострочный INSERT ... VALUES (...),(...) и порежет его по max_allowed_packet
+	 */
+	private void insertBatch(ClassDescriptor descriptor, List<Object> entities, Connection connection)
+	{
+		final boolean isGeneratedOneKey = isGeneratedOneKey(descriptor);
+		final String sql = descriptor.getSimpleInsertSql();
+
+		try
+		{
+			for (int from = 0; from < entities.size(); from += _batchSize)
+			{
+				final List<Object> chunk = entities.subList(from, Math.min(from + _batchSize, entities.size()));
+				final Object[] clones = isGeneratedOneKey ? new Object[chunk.size()] : null;
+
+				try (CachedStatement cached = prepareStatement(connection, sql, isGeneratedOneKey))
+				{
+					final PreparedStatement ps = cached.getStatement();
+					for (int i = 0; i < chunk.size(); i++)
+					{
+						if (isGeneratedOneKey)
+						{
+							clones[i] = descriptor.buildSnapshot(_compactSnapshots);
+						}
+						bindInsertParameters(descriptor, chunk.get(i), isGeneratedOneKey ? clones[i] : null, ps);
+						rememberSnapshot(connection, descriptor, chunk.get(i));
+						ps.addBatch();
+					}
+
+					_log.debug("execute batch insert SQL " + descriptor.getJavaClassName() + " x" + chunk.size() + ": " + sql);
+					ps.executeBatch();
+					tableWritten(descriptor, connection);
+
+					if (isGeneratedOneKey)
+					{
+						// ключи приходят в том же порядке в котором добавляли строки в батч
+						try (ResultSet generatedKeys = ps.getGeneratedKeys())
+						{
+							for (int i = 0; i < chunk.size(); i++)
+							{
+								registerGeneratedKey(descriptor, chunk.get(i), clones[i], generatedKeys);
+							}
+						}
+					}
+				}
+			}
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException("SQLException", e);
+		}
+	}
+
+	/**
+	 * обновить отдельные колонки строки по ид без чтения сущности, один UPDATE
+	 * @param values колонка (имя колонки или java поля) -> новое значение
+	 * @return сколько строк обновлено, 0 если строки с таким ид нет
+	 */
+	public int update(Class<?> entityClass, Object primaryKeyValue, Map<String, ?> values)
+	{
+		final Connection connection = acquireConnection();
+		try
+		{
+			return update(entityClass, connection, primaryKeyValue, values);
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
+	}
+
+	/**
+	 * обновить отдельные колонки строки по ид без чтения сущности
+	 * внутри транзакции апдейт не откладывается, уходит сразу
+	 * управляемые сущности с этим ид получают новые значения и в полях, и в клоне
+	 * версия ({@link javax.persistence.Version}) не проверяется, но увеличивается, чужие прочитанные копии станут устаревшими
+	 */
+	public int update(Class<?> entityClass, Connection connection, Object primaryKeyValue, Map<String, ?> values)
+	{
+		final ClassDescriptor descriptor = getSinglePkDescriptor(entityClass);
+		if (primaryKeyValue == null)
+		{
+			throw new IllegalArgumentException("Null primary key");
+		}
+		if (values.isEmpty())
+		{
+			return 0;
+		}
+
+		final List<DatabaseField> fields = descriptor.getFields();
+		final BitSet columns = new BitSet(fields.size());
+		final Object[] newValues = new Object[fields.size()];
+		for (Map.Entry<String, ?> entry : values.entrySet())
+		{
+			final int index = descriptor.getFieldIndex(entry.getKey());
+			if (index < 0)
+			{
+				throw new IllegalArgumentException("No such field <" + entry.getKey() + "> in entity " + descriptor.getJavaClassName());
+			}
+			final DatabaseField field = fields.get(index);
+			if (field.isPrimaryKey())
+			{
+				throw new RuntimeException("Update primary key");
+			}
+			if (!field.isUpdatable() || field == descriptor.getVersionField())
+			{
+				throw new RuntimeException("Field <" + field.getName() + "> is not updatable");
+			}
+			checkValueType(field, entry.getValue());
+			columns.set(index);
+			newValues[index] = entry.getValue();
+		}
+
+		final String sql = descriptor.getPartialUpdateSql(columns);
+		try
+		{
+			final int rows;
+			try (CachedStatement cached = prepareStatement(connection, sql, false))
+			{
+				final PreparedStatement ps = cached.getStatement();
+				int index = 0;
+				for (int i = columns.nextSetBit(0); i >= 0; i = columns.nextSetBit(i + 1))
+				{
+					index++;
+					fields.get(i).getCodec().bind(ps, index, newValues[i]);
+				}
+				descriptor.getPrimaryKeyFields().get(0).getCodec().bindKey(ps, index + 1, primaryKeyValue);
+
+				_log.debug("execute partial update SQL " + descriptor.getJavaClassName() + " id=" + primaryKeyValue + ": " + sql);
+				rows = ps.executeUpdate();
+			}
+			invalidateCached(descriptor, primaryKeyValue, connection);
+			tableWritten(descriptor, connection);
+			if (rows > 0)
+			{
+				patchManaged(descriptor, connection, primaryKeyValue, columns, newValues);
+			}
+			return rows;
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException("SQLException", e);
+		}
+	}
+
+	/**
+	 * проверить что значение можно записать в поле сущности
+	 */
+	private static void checkValueType(DatabaseField field, Object value)
+	{
+		final Class<?> type = field.getType();
+		if (value == null)
+		{
+			if (type.isPrimitive())
+			{
+				throw new IllegalArgumentException("Null value for primitive field <" + field.getName() + ">");
+			}
+			return;
+		}
+		final Class<?> boxed = type.isPrimitive() ? MethodType.methodType(type).wrap().returnType() : type;
+		if (!boxed.isInstance(value))
+		{
+			throw new IllegalArgumentException("Wrong value type for field <" + field.getName() + ">: " + value.getClass().getName() + ", expected " + type.getName());
+		}
+	}
+
+	/**
+	 * записать новые значения колонок в управляемые сущности с этим ид и в их клонов, чтобы дифф их не видел
+	 * сущности ищем по индексу {@link #_managedIndex}, а не перебором контекста
+	 */
+	private void patchManaged(ClassDescriptor descriptor, Connection connection, Object primaryKeyValue, BitSet columns, Object[] newValues)
+	{
+		final List<DatabaseField> fields = descriptor.getFields();
+		for (Object entity : findManaged(descriptor, normalizeId(primaryKeyValue)))
+		{
+			final Object clone = _cloneMap.get(entity);
+			if (clone == null)
+			{
+				// успели отсоединить
+				continue;
+			}
+			rememberSnapshot(connection, descriptor, entity);
+			for (int i = columns.nextSetBit(0); i >= 0; i = columns.nextSetBit(i + 1))
+			{
+				fields.get(i).getAccessor().set(entity, DatabasePlatform.buildCloneValue(newValues[i]));
+				if (clone != entity)
+				{
+					descriptor.copyToSnapshot(entity, clone, i);
+				}
+			}
+			// база увеличила версию на 1, если сущность была актуальной - она такой и останется
+			if (clone != entity)
+			{
+				bumpVersion(descriptor, entity, clone);
+			}
+		}
+	}
+
+	/**
+	 * вставить сущность или обновить существующую строку с тем же первичным/уникальным ключом одним запросом
+	 * INSERT ... ON DUPLICATE KEY UPDATE, см {@link MergeMode#UPDATE}
+	 */
+	public void merge(Object entity)
+	{
+		merge(entity, MergeMode.UPDATE);
+	}
+
+	public void merge(Object entity, Connection connection)
+	{
+		merge(entity, connection, MergeMode.UPDATE);
+	}
+
+	public void merge(Object entity, MergeMode mode)
+	{
+		final Connection connection = acquireConnection();
+		try
+		{
+			merge(entity, connection, mode);
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
+	}
+
+	/**
+	 * записать сущность с разрешением конфликта ключей
+	 * после записи сущность (с одним ключевым полем и известным ид) становится управляемой, клон строится по ее полям
+	 * если в базе остались значения не вставляемых/не обновляемых колонок, отличные от сущности - сделать {@link #refresh}
+	 * для автоинкрементного ключа без значения ид читается из базы, в том числе ид обновленной строки
+	 */
+	public void merge(Object entity, Connection connection, MergeMode mode)
+	{
+		ClassDescriptor descriptor = getDescriptor(entity);
+		if (descriptor == null)
+		{
+			throw new IllegalArgumentException("Not entity object, no class descriptor");
+		}
+
+		final boolean readKey = isGeneratedOneKey(descriptor) && !hasPrimaryKeyValue(descriptor, entity);
+		final String sql = descriptor.getMergeSql(mode);
+		try
+		{
+			try (CachedStatement cached = prepareStatement(connection, sql, readKey))
+			{
+				final PreparedStatement ps = cached.getStatement();
+				bindInsertParameters(descriptor, entity, null, ps);
+
+				_log.debug("execute merge SQL " + entity.toString() + ": " + sql);
+				final int affectedRows = ps.executeUpdate();
+				tableWritten(descriptor, connection);
+
+				if (readKey && affectedRows > 0)
+				{
+					try (ResultSet generatedKeys = ps.getGeneratedKeys())
+					{
+						if (generatedKeys.next())
+						{
+							descriptor.getPrimaryKeyFields().get(0).getCodec().readInto(generatedKeys, 1, entity);
+						}
+					}
+				}
+				// INSERT IGNORE с 0 строк ничего не записал, строка в базе может отличаться от сущности
+				merged(descriptor, entity, isMergeExact(descriptor, mode) && (mode != MergeMode.IGNORE || affectedRows > 0), connection);
+			}
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException("SQLException", e);
+		}
+	}
+
+	/**
+	 * merge пачки сущностей, см {@link MergeMode#UPDATE}
+	 */
+	public void mergeAll(Collection<?> entities)
+	{
+		mergeAll(entities, MergeMode.UPDATE);
+	}
+
+	public void mergeAll(Collection<?> entities, Connection connection)
+	{
+		mergeAll(entities, connection, MergeMode.UPDATE);
+	}
+
+	public void mergeAll(Collection<?> entities, MergeMode mode)
+	{
+		final Connection connection = acquireConnection();
+		try
+		{
+			mergeAll(entities, connection, mode);
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
+	}
+
+	/**
+	 * merge пачки сущностей: группируются по дескриптору и уходят батчами по {@link #_batchSize}
+	 * сгенерированные ид в батче не читаются: сущности с автоинкрементным ключом без значения
+	 * будут вставлены, но ид не получат и управляемыми не станут, для них нужен {@link #merge(Object)}
+	 */
+	public void mergeAll(Collection<?> entities, Connection connection, MergeMode mode)
+	{
+		Map<ClassDescriptor, List<Object>> groups = new LinkedHashMap<>();
+		for (Object entity : entities)
+		{
+			ClassDescriptor descriptor = getDescriptor(entity);
+			if (descriptor == null)
+			{
+				throw new IllegalArgumentException("Not entity object, no class descriptor");
+			}
+			groups.computeIfAbsent(descriptor, d -> new ArrayList<>()).add(entity);
+		}
+
+		try
+		{
+			for (Map.Entry<ClassDescriptor, List<Object>> entry : groups.entrySet())
+			{
+				final ClassDescriptor descriptor = entry.getKey();
+				final List<Object> list = entry.getValue();
+				final String sql = descriptor.getMergeSql(mode);
+
+				for (int from = 0; from < list.size(); from += _batchSize)
+				{
+					final List<Object> chunk = list.subList(from, Math.min(from + _batchSize, list.size()));
+					try (CachedStatement cached = prepareStatement(connection, sql, false))
+					{
+						final PreparedStatement ps = cached.getStatement();
+						for (Object entity : chunk)
+						{
+							bindInsertParameters(descriptor, entity, null, ps);
+							ps.addBatch();
+						}
+
+						_log.debug("execute batch merge SQL " + descriptor.getJavaClassName() + " x" + chunk.size() + ": " + sql);
+						final int[] counts = ps.executeBatch();
+						tableWritten(descriptor, connection);
+
+						for (int i = 0; i < chunk.size(); i++)
+						{
+							// с rewriteBatchedStatements драйвер может вернуть SUCCESS_NO_INFO, для IGNORE это "неизвестно"
+							final boolean written = isMergeExact(descriptor, mode) && (mode != MergeMode.IGNORE || (i < counts.length && counts[i] > 0));
+							merged(descriptor, chunk.get(i), written, connection);
+						}
+					}
+				}
+			}
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException("SQLException", e);
+		}
+	}
+
+	/**
+	 * после merge: выкинуть сущность из кэша второго уровня и взять на управление
+	 * если строка в базе может не совпадать с сущностью, уже управляемая сущность отсоединяется:
+	 * ее старый клон (например с прошлой версией) дал бы ложный дифф или {@link OptimisticLockException} на следующем persist
+	 * @param written строка в базе точно совпадает с сущностью по записанным колонкам
+	 */
+	private void merged(ClassDescriptor descriptor, Object entity, boolean written, Connection connection)
+	{
+		rememberSnapshot(connection, descriptor, entity);
+		if (!hasPrimaryKeyValue(descriptor, entity))
+		{
+			// какую строку задели - не знаем, кэш класса выкидываем целиком
+			invalidateCachedClass(descriptor, connection);
+			return;
+		}
+
+		invalidateCachedEntity(descriptor, entity, connection);
+		if (written)
+		{
+			final Object clone = descriptor.buildSnapshot(_compactSnapshots);
+			for (int i = 0; i < descriptor.getFields().size(); i++)
+			{
+				descriptor.copyToSnapshot(entity, clone, i);
+			}
+			manage(descriptor, entity, clone);
+		}
+		else
+		{
+			unmanage(entity);
+		}
+	}
+
+	/**
+	 * после merge строка в базе совпадает с сущностью (если вообще была записана)
+	 * при обновлении существующей строки с версией версия в базе становится старая + 1, какая - не знаем
+	 */
+	private static boolean isMergeExact(ClassDescriptor descriptor, MergeMode mode)
+	{
+		return mode != MergeMode.UPDATE || descriptor.getVersionField() == null;
+	}
+
+	/**
+	 * у сущности с одним ключевым полем есть значение ключа, 0 в автоинкрементном ключе считается "нет значения"
+	 */
+	private static boolean hasPrimaryKeyValue(ClassDescriptor descriptor, Object entity)
+	{
+		if (descriptor.getPrimaryKeyFields().size() != 1)
+		{
+			return false;
+		}
+		final DatabaseField field = descriptor.getPrimaryKeyFields().get(0);
+		final Object value = field.getAccessor().get(entity);
+		if (value == null)
+		{
+			return false;
+		}
+		return !(field.isUpdateInsertId() && value instanceof Number && ((Number) value).longValue() == 0);
+	}
+
+	/**
+	 * быстрая загрузка большого числа новых строк через LOAD DATA LOCAL INFILE
+	 * сущности сериализуются в поток по мере чтения драйвером, временный файл не пишется
+	 * в строке коннекта MySQL нужен allowLoadLocalInfile=true, на сервере local_infile=ON
+	 * сущности не становятся управляемыми и сгенерированные ид в них не пишутся
+	 * @return сколько строк загружено
+	 */
+	public int bulkLoad(Class<?> entityClass, Iterable<?> entities)
+	{
+		final Connection connection = acquireConnection();
+		try
+		{
+			return bulkLoad(entityClass, connection, entities);
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
+	}
+
+	public int bulkLoad(Class<?> entityClass, Connection connection, Iterable<?> entities)
+	{
+		final ClassDescriptor descriptor = _descriptors.get(entityClass);
+		if (descriptor == null)
+		{
+			throw new IllegalArgumentException("Not entity object, no class descriptor");
+		}
+
+		final String sql = descriptor.getLoadDataSql();
+		final LoadDataInputStream stream = new LoadDataInputStream(descriptor, entities.iterator());
+		try
+		{
+			try (Statement st = connection.createStatement())
+			{
+				setLocalInfileInputStream(st, stream);
+				_log.debug("execute bulk load SQL " + descriptor.getJavaClassName() + ": " + sql);
+				final int rows = st.executeUpdate(sql);
+				_log.debug("bulk loaded " + rows + " of " + stream.getRows() + " rows into " + descriptor.getTable().getName());
+				// LOCAL загрузка пропускает строки с дублями ключей, существующие строки не меняются, кэш сущностей остается верным
+				tableWritten(descriptor, connection);
+				return rows;
+			}
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException("SQLException", e);
+		}
+	}
+
+	/**
+	 * отдать драйверу MySQL поток для LOAD DATA LOCAL INFILE
+	 * setLocalInfileInputStream есть в com.mysql.cj.jdbc.JdbcStatement (Connector/J 8+) и com.mysql.jdbc.Statement (5.x),
+	 * зависимости на драйвер нет, поэтому вызываем через рефлексию
+	 */
+	private static void setLocalInfileInputStream(Statement statement, InputStream stream) throws SQLException
+	{
+		final Method method = findLocalInfileMethod(statement.getClass());
+		if (method == null)
+		{
+			throw new SQLException("JDBC driver does not support LOAD DATA LOCAL INFILE from stream: " + statement.getClass().getName());
+		}
+		try
+		{
+			method.invoke(statement, stream);
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new SQLException("Can not set local infile stream", e);
+		}
+		catch (InvocationTargetException e)
+		{
+			if (e.getCause() instanceof SQLException)
+			{
+				throw (SQLException) e.getCause();
+			}
+			throw new SQLException("Can not set local infile stream", e.getCause());
+		}
+	}
+
+	/**
+	 * ищем метод сначала в публичных интерфейсах драйвера, реализация может быть не публичным классом
+	 */
+	private static Method findLocalInfileMethod(Class<?> clazz)
+	{
+		for (Class<?> c = clazz; c != null; c = c.getSuperclass())
+		{
+			for (Class<?> i : c.getInterfaces())
+			{
+				final Method method = findPublicMethod(i);
+				if (method != null)
+				{
+					return method;
+				}
+			}
+		}
+		try
+		{
+			final Method method = clazz.getMethod("setLocalInfileInputStream", InputStream.class);
+			method.setAccessible(true);
+			return method;
+		}
+		catch (NoSuchMethodException | RuntimeException e)
+		{
+			return null;
+		}
+	}
+
+	private static Method findPublicMethod(Class<?> type)
+	{
+		if (Modifier.isPublic(type.getModifiers()))
+		{
+			try
+			{
+				return type.getMethod("setLocalInfileInputStream", InputStream.class);
+			}
+			catch (NoSuchMethodException ignored)
+			{
+			}
+		}
+		for (Class<?> i : type.getInterfaces())
+		{
+			final Method method = findPublicMethod(i);
+			if (method != null)
+			{
+				return method;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * пишем ли в сущность сгенерированный базой ид после инсерта
+	 */
+	private static boolean isGeneratedOneKey(ClassDescriptor descriptor)
+	{
+		return descriptor.getPrimaryKeyFields().size() == 1 && descriptor.getPrimaryKeyFields().get(0).isUpdateInsertId();
+	}
+
+	/**
+	 * проставить параметры инсерта из полей сущности, попутно заполнить клона если он передан
+	 * в клона пишем все поля, чтобы не вставляемые поля не попали в дифф при следующем апдейте
+	 */
+	private static void bindInsertParameters(ClassDescriptor descriptor, Object entity, Object clone, PreparedStatement ps) throws SQLException
+	{
+		// новая строка начинает с нулевой версии
+		final DatabaseField versionField = descriptor.getVersionField();
+		if (versionField != null && versionField.getAccessor().get(entity) == null)
+		{
+			versionField.getAccessor().set(entity, descriptor.initialVersion());
+		}
+
+		// проходим по всем полям дескриптора
+		final List<DatabaseField> fields = descriptor.getFields();
+		int index = 0;
+		for (int i = 0; i < fields.size(); i++)
+		{
+			final DatabaseField field = fields.get(i);
+			if (field.isInsertable())
+			{
+				index++;
+				field.getCodec().bindFrom(ps, index, entity);
+			}
+
+			if (clone != null)
+			{
+				descriptor.copyToSnapshot(entity, clone, i);
+			}
+		}
+	}
+
+	/**
+	 * прочитать очередной сгенерированный ид, записать его в сущность и клона, и взять сущность на управление
+	 */
+	private void registerGeneratedKey(ClassDescriptor descriptor, Object entity, Object clone, ResultSet generatedKeys) throws SQLException
+	{
+		if (generatedKeys.next())
+		{
+			final DatabaseField field = descriptor.getPrimaryKeyFields().get(0);
+			field.getCodec().readInto(generatedKeys, 1, entity);
+			descriptor.copyToSnapshot(entity, clone, descriptor.getFields().indexOf(field));
+
+			// добавим в мапу только если реально получили ид после инсерта и обновили в сущности
+			manage(descriptor, entity, clone);
+		}
+		else
+		{
+			throw new SQLException("Insert failed, no ID obtained.");
+		}
+	}
+
+	/**
+	 * записать в базу все отложенные апдейты транзакции
+	 * апдейты группируются по таблице и набору изменившихся полей и уходят батчами
+	 */
+	public void flush(Connection connection)
+	{
+		final Set<Object> dirty = _unitsOfWork.get(connection);
+		if (dirty == null || dirty.isEmpty())
+		{
+			return;
+		}
+
+		try
+		{
+			// дескриптор -> набор изменившихся полей -> сущности
+			Map<ClassDescriptor, Map<BitSet, List<Object>>> groups = new LinkedHashMap<>();
+			for (Object entity : dirty)
+			{
+				final Object clone = _cloneMap.get(entity);
+				if (clone == null)
+				{
+					// сущность успели отсоединить или удалить
+					continue;
+				}
+				final ClassDescriptor descriptor = getDescriptor(entity);
+				final BitSet changed = collectChanges(descriptor, entity, clone);
+				if (changed != null)
+				{
+					rememberSnapshot(connection, descriptor, entity);
+					groups.computeIfAbsent(descriptor, d -> new LinkedHashMap<>())
+					      .computeIfAbsent(changed, c -> new ArrayList<>())
+					      .add(entity);
+				}
+			}
+			dirty.clear();
+
+			for (Map.Entry<ClassDescriptor, Map<BitSet, List<Object>>> byDescriptor : groups.entrySet())
+			{
+				final ClassDescriptor descriptor = byDescriptor.getKey();
+				for (Map.Entry<BitSet, List<Object>> group : byDescriptor.getValue().entrySet())
+				{
+					final BitSet changed = group.getKey();
+					final List<Object> entities = group.getValue();
+					final String sql = descriptor.getUpdateSql(changed);
+
+					try (CachedStatement cached = prepareStatement(connection, sql, false))
+					{
+						final PreparedStatement ps = cached.getStatement();
+						for (Object entity : entities)
+						{
+							bindUpdateParameters(descriptor, entity, _cloneMap.get(entity), changed, ps);
+							ps.addBatch();
+						}
+						_log.debug("execute batch update SQL " + descriptor.getJavaClassName() + " x" + entities.size() + ": " + sql);
+						final int[] counts = ps.executeBatch();
+						tableWritten(descriptor, connection);
+						// SUCCESS_NO_INFO (переписанный драйвером батч) проверить нельзя, такие строки считаем обновленными
+						for (int i = 0; i < counts.length && i < entities.size(); i++)
+						{
+							checkVersionUpdated(descriptor, entities.get(i), counts[i]);
+						}
+					}
+
+					for (Object entity : entities)
+					{
+						final Object clone = _cloneMap.get(entity);
+						syncClone(descriptor, entity, clone, changed);
+						bumpVersion(descriptor, entity, clone);
+						invalidateCachedEntity(descriptor, entity, connection);
+					}
+				}
+			}
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException("SQLException", e);
+		}
+	}
+
+	/**
+	 * найти изменившиеся поля сущности относительно клона
+	 * @return индексы изменившихся полей в {@link ClassDescriptor#getFields()} или null если изменений нет
+	 */
+	private static BitSet collectChanges(ClassDescriptor descriptor, Object entity, Object clone)
+	{
+		BitSet changed = null;
+		final List<DatabaseField> fields = descriptor.getFields();
+		for (int i = 0; i < fields.size(); i++)
+		{
+			if (!descriptor.isSnapshotSame(entity, clone, i))
+			{
+				final DatabaseField dbField = fields.get(i);
+				if (dbField.isPrimaryKey())
+				{
+					throw new RuntimeException("Update primary key");
+				}
+				if (!dbField.isUpdatable() || i == descriptor.getVersionIndex())
+				{
+					throw new RuntimeException("Field <" + dbField.getName() + "> is not updatable");
+				}
+				if (changed == null)
+				{
+					changed = new BitSet(fields.size());
+				}
+				changed.set(i);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * проставить параметры апдейта: сначала изменившиеся поля, затем ключевые
+	 * если у сущности есть версия: после полей новая версия, после ключей ожидаемая старая версия из клона
+	 */
+	private static void bindUpdateParameters(ClassDescriptor descriptor, Object entity, Object clone, BitSet changed, PreparedStatement ps) throws SQLException
+	{
+		final List<DatabaseField> fields = descriptor.getFields();
+		int index = 0;
+		for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1))
+		{
+			index++;
+			fields.get(i).getCodec().bindFrom(ps, index, entity);
+		}
+
+		final DatabaseField versionField = descriptor.getVersionField();
+		Object version = null;
+		if (versionField != null)
+		{
+			version = descriptor.getSnapshotValue(clone, descriptor.getVersionIndex());
+			index++;
+			versionField.getCodec().bind(ps, index, descriptor.nextVersion(version));
+		}
+
+		final List<DatabaseField> pkFields = descriptor.getPrimaryKeyFields();
+		for (int i = 0; i < pkFields.size(); i++)
+		{
+			index++;
+			pkFields.get(i).getCodec().bindFrom(ps, index, entity);
+		}
+
+		if (versionField != null)
+		{
+			index++;
+			versionField.getCodec().bind(ps, index, version);
+		}
+	}
+
+	/**
+	 * апдейт с проверкой версии не задел ни одной строки - строку уже изменил кто-то другой (или удалил)
+	 */
+	private static void checkVersionUpdated(ClassDescriptor descriptor, Object entity, int rows)
+	{
+		if (rows == 0 && descriptor.getVersionField() != null)
+		{
+			throw new OptimisticLockException("Entity " + descriptor.getJavaClassName() + " was changed or removed concurrently: " + entity, null, entity);
+		}
+	}
+
+	/**
+	 * после успешного апдейта записать новую версию в сущность и клона
+	 */
+	private static void bumpVersion(ClassDescriptor descriptor, Object entity, Object clone)
+	{
+		final DatabaseField versionField = descriptor.getVersionField();
+		if (versionField == null || clone == null)
+		{
+			return;
+		}
+		final int index = descriptor.getVersionIndex();
+		versionField.getAccessor().set(entity, descriptor.nextVersion(descriptor.getSnapshotValue(clone, index)));
+		descriptor.copyToSnapshot(entity, clone, index);
+	}
+
+	/**
+	 * после записи в базу переносим записанные значения в клона, чтобы следующий дифф их уже не видел
+	 */
+	private static void syncClone(ClassDescriptor descriptor, Object entity, Object clone, BitSet changed)
+	{
+		if (clone == null)
+		{
+			return;
+		}
+		for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1))
+		{
+			descriptor.copyToSnapshot(entity, clone, i);
+		}
+	}
+
+	/**
+	 * прочитать текущую строку результата в новую сущность
+	 * @param managed взять сущность на управление, иначе клон не строится и в мапу ничего не пишем
+	 */
+	private Object readEntity(ClassDescriptor descriptor, ResultSet resultSet, ResultSetMapping mapping, boolean managed) throws SQLException
+	{
+		// создаем объект дефолтным конструктором
+		final Object workingCopy = descriptor.buildNewInstance();
+		final Object clone = managed ? descriptor.buildSnapshot(_compactSnapshots) : null;
+		readRow(descriptor, resultSet, mapping, workingCopy, clone);
+
+		if (managed)
+		{
+			// запоминаем клона в мапе
+			manage(descriptor, workingCopy, clone);
+		}
+		return workingCopy;
+	}
+
+	/**
+	 * прочитать текущую строку результата в сущность и ее клона (если он есть)
+	 * @param mapping план чтения результата, см {@link ClassDescriptor#getResultSetMapping}
+	 */
+	private static void readRow(ClassDescriptor descriptor, ResultSet resultSet, ResultSetMapping mapping, Object entity, Object clone) throws SQLException
+	{
+		final List<DatabaseField> fields = descriptor.getFields();
+		// проходим по поляем объекта через дескриптор
+		for (int i = 0; i < fields.size(); i++)
+		{
+			// читаем значения полей прямо в сущность
+			fields.get(i).getCodec().readInto(resultSet, mapping.getColumn(i), mapping.getType(i), entity);
+
+			// и переносим их в клона, используя buildCloneValue, т.е. значения тоже клоним если надо
+			if (clone != null)
+			{
+				descriptor.copyToSnapshot(entity, clone, i);
+			}
+		}
+	}
+
+	/**
+	 * искать и загрузить сущность по ключевому полю (id)
+	 */
+	public <T> T findById(Class<T> entityClass, Object primaryKeyValue)
+	{
+		final Connection connection = acquireConnection();
+		try
+		{
+			return findById(entityClass, connection, primaryKeyValue);
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
+	}
+
+	public <T> T findById(Class<T> entityClass, Connection connection, Object primaryKeyValue)
+	{
+		return findById(entityClass, connection, primaryKeyValue, true);
+	}
+
+	<T> T findById(Class<T> entityClass, Connection connection, Object primaryKeyValue, boolean managed)
+	{
+		ClassDescriptor descriptor = _descriptors.get(entityClass);
+		if (descriptor == null)
+		{
+			throw new IllegalArgumentException("Not entity object, no class descriptor");
+		}
+
+		try
+		{
+			final Object cachedEntity = readCached(descriptor, connection, primaryKeyValue, managed);
+			if (cachedEntity != null)
+			{
+				return (T) cachedEntity;
+			}
+
+			final long cacheVersion = cacheVersion(descriptor);
+			try (CachedStatement cached = prepareStatement(connection, descriptor.getSimpleSelectSql(), false))
+			{
+				final PreparedStatement ps = cached.getStatement();
+				descriptor.getPrimaryKeyFields().get(0).getCodec().bindKey(ps, 1, primaryKeyValue);
+				_log.debug("execute select SQL " + entityClass.getName() + ": " + descriptor.getSimpleSelectSql());
+				try (ResultSet resultSet = ps.executeQuery())
+				{
+					if (!resultSet.next())
+					{
+						return null;
+					}
+
+					final Object entity = readEntity(descriptor, resultSet, descriptor.getResultSetMapping(descriptor.getSimpleSelectSql(), resultSet), managed);
+					cacheEntity(descriptor, entity, cacheVersion, connection);
+					return (T) entity;
+				}
+			}
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException("SQLException", e);
+		}
+	}
+
+	/**
+	 * загрузить пачку сущностей по ключевому полю запросами SELECT ... WHERE pk IN (...) по {@link #setBatchSize} ключей
+	 * @return сущности в порядке переданных ид, на месте не найденных ид - null
+	 */
+	public <T> List<T> findAllById(Class<T> entityClass, Collection<?> primaryKeyValues)
+	{
+		return findAllById(entityClass, primaryKeyValues, null);
+	}
+
+	/**
+	 * то же что {@link #findAllById(Class, Collection)}, не найденные ид передаются в missing
+	 * @param missing получает каждый не найденный ид один раз, в порядке запроса, может быть null
+	 */
+	public <T> List<T> findAllById(Class<T> entityClass, Collection<?> primaryKeyValues, Consumer<Object> missing)
+	{
+		final Connection connection = acquireConnection();
+		try
+		{
+			return findAllById(entityClass, connection, primaryKeyValues, missing);
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
+	}
+
+	public <T> List<T> findAllById(Class<T> entityClass, Connection connection, Collection<?> primaryKeyValues)
+	{
+		return findAllById(entityClass, connection, primaryKeyValues, null);
+	}
+
+	public <T> List<T> findAllById(Class<T> entityClass, Connection connection, Collection<?> primaryKeyValues, Consumer<Object> missing)
+	{
+		return findAllById(entityClass, connection, primaryKeyValues, missing, true);
+	}
+
+	<T> List<T> findAllById(Class<T> entityClass, Connection connection, Collection<?> primaryKeyValues, Consumer<Object> missing, boolean managed)
+	{
+		final ClassDescriptor descriptor = getSinglePkDescriptor(entityClass);
+		final DatabaseField pkField = descriptor.getPrimaryKeyFields().get(0);
+		final FieldCodec codec = pkField.getCodec();
+
+		// в базу идем только с уникальными ид
+		final Map<Object, Object> found = new HashMap<>(primaryKeyValues.size() * 2);
+		final List<Object> ids = new ArrayList<>(primaryKeyValues.size());
+		try
+		{
+			for (Object id : primaryKeyValues)
+			{
+				if (id == null)
+				{
+					throw new IllegalArgumentException("Null primary key value");
+				}
+				if (!found.containsKey(normalizeId(id)))
+				{
+					// что есть в кэше второго уровня в базе не ищем
+					final Object cachedEntity = readCached(descriptor, connection, id, managed);
+					found.put(normalizeId(id), cachedEntity);
+					if (cachedEntity == null)
+					{
+						ids.add(id);
+					}
+				}
+			}
+
+			final long cacheVersion = cacheVersion(descriptor);
+			for (int from = 0; from < ids.size(); from += _batchSize)
+			{
+				final List<Object> chunk = ids.subList(from, Math.min(from + _batchSize, ids.size()));
+				final int size = inListSize(chunk.size());
+				final String sql = descriptor.getSelectInSql(size);
+				try (CachedStatement cached = prepareStatement(connection, sql, false))
+				{
+					final PreparedStatement ps = cached.getStatement();
+					// недостающие до размера запроса параметры добиваем последним ид
+					for (int i = 0; i < size; i++)
+					{
+						codec.bindKey(ps, i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
+					}
+					_log.debug("execute select SQL " + entityClass.getName() + " x" + chunk.size() + ": " + sql);
+					try (ResultSet resultSet = ps.executeQuery())
+					{
+						final ResultSetMapping mapping = descriptor.getResultSetMapping(sql, resultSet);
+						while (resultSet.next())
+						{
+							final Object entity = readEntity(descriptor, resultSet, mapping, managed);
+							found.put(normalizeId(pkField.getAccessor().get(entity)), entity);
+							cacheEntity(descriptor, entity, cacheVersion, connection);
+						}
+					}
+				}
+			}
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException("SQLException", e);
+		}
+
+		final List<T> result = new ArrayList<>(primaryKeyValues.size());
+		final Set<Object> reported = missing == null ? null : new HashSet<>();
+		int missingCount = 0;
+		for (Object id : primaryKeyValues)
+		{
+			final Object key = normalizeId(id);
+			final Object entity = found.get(key);
+			if (entity == null)
+			{
+				missingCount++;
+				// дубли ид сообщаем один раз
+				if (reported != null && reported.add(key))
+				{
+					missing.accept(id);
+				}
+			}
+			result.add((T) entity);
+		}
+		if (missingCount > 0)
+		{
+			_log.debug("findAllById " + entityClass.getName() + ": " + missingCount + " of " + primaryKeyValues.size() + " ids not found");
+		}
+		return result;
+	}
+
+	/**
+	 * ид для сравнения: целые числа приводим к long, чтобы Integer из запроса совпал с Long из сущности
+	 * ид строкой ("42") тоже приводим к long, если это каноническая запись числа: такой ид биндится в запрос как есть
+	 * и должен совпасть с числовым ид сущности. строковые ключи вроде "042" остаются строками
+	 */
+	private static Object normalizeId(Object id)
+	{
+		if (id instanceof Integer || id instanceof Long || id instanceof Short || id instanceof Byte)
+		{
+			return ((Number) id).longValue();
+		}
+		if (id instanceof String)
+		{
+			final Long number = parseCanonicalLong((String) id);
+			if (number != null)
+			{
+				return number;
+			}
+		}
+		return id;
+	}
+
+	private static Long parseCanonicalLong(String s)
+	{
+		final int length = s.length();
+		final int start = length > 0 && s.charAt(0) == '-' ? 1 : 0;
+		// до 18 цифр long не переполнится
+		if (length == start || length - start > 18 || (s.charAt(start) == '0' && (length - start > 1 || start == 1)))
+		{
+			return null;
+		}
+		for (int i = start; i < length; i++)
+		{
+			final char c = s.charAt(i);
+			if (c < '0' || c > '9')
+			{
+				return null;
+			}
+		}
+		return Long.parseLong(s);
+	}
+
+	public <T> T findOne(Class<T> entityClass, String field, Object primaryKeyValue)
+	{
+		final Connection connection = acquireConnection();
+		try
+		{
+			return findOne(entityClass, connection, field, primaryKeyValue);
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
+	}
+
+	public <T> T findOne(Class<T> entityClass, Connection connection, String field, Object primaryKeyValue)
+	{
+		return findOne(entityClass, connection, field, primaryKeyValue, true);
+	}
+
+	<T> T findOne(Class<T> entityClass, Connection connection, String field, Object primaryKeyValue, boolean managed)
+	{
+		ClassDescriptor descriptor = _descriptors.get(entityClass);
+		if (descriptor == null)
+		{
+			throw new IllegalArgumentException("Not entity object, no class descriptor");
+		}
+
+		// поиск по ключевому полю идет через кэш второго уровня
+		if (descriptor.isCacheable() && field.equals(descriptor.getPrimaryKeyFields().get(0).getName()))
+		{
+			return findById(entityClass, connection, primaryKeyValue, managed);
+		}
+
+		try
+		{
+			final String sql = descriptor.getSelectOneSql(field);
+			try (CachedStatement cached = prepareStatement(connection, sql, false))
+			{
+				final PreparedStatement ps = cached.getStatement();
+				DatabasePlatform.setParameterValue(primaryKeyValue, ps, 1);
+				_log.debug("execute select SQL " + entityClass.getName() + ": " + sql);
+				try (ResultSet resultSet = ps.executeQuery())
+				{
+					if (!resultSet.next())
+					{
+						return null;
+					}
+
+					return (T) readEntity(descriptor, resultSet, descriptor.getResultSetMapping(sql, resultSet), managed);
+				}
+			}
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException("SQLException", e);
+		}
+	}
+
+	/**
+	 * найти сущности используя прямой SQL запрос
+	 */
+	public <T> List<T> findAll(Class<T> entityClass, String sql, Object... params)
+	{
+		final Connection connection = acquireConnection();
+		try
+		{
+			return findAll(entityClass, connection, sql, params);
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
+	}
+
+	public <T> List<T> findAll(Class<T> entityClass, Connection connection, String sql, Object... params)
+	{
+		return findAll(entityClass, connection, true, sql, params);
+	}
+
+	<T> List<T> findAll(Class<T> entityClass, Connection connection, boolean managed, String sql, Object... params)
+	{
+		ClassDescriptor descriptor = _descriptors.get(entityClass);
+		if (descriptor == null)
+		{
+			throw new IllegalArgumentException("Not entity object, no class descriptor");
+		}
+
+		try
+		{
+			try (CachedStatement cached = prepareStatement(connection, sql, false))
+			{
+				final PreparedStatement ps = cached.getStatement();
+				List<T> result = new ArrayList<>();
+
+				for (int i = 0; i < params.length; i++)
+				{
+					DatabasePlatform.setParameterValue(params[i], ps, i + 1);
+				}
+
+				_log.debug("execute select SQL " + entityClass.getName() + ": " + sql);
+				try (ResultSet resultSet = ps.executeQuery())
+				{
+					final ResultSetMapping mapping = descriptor.getResultSetMapping(sql, resultSet);
+
+					while (resultSet.next())
+					{
+						result.add((T) readEntity(descriptor, resultSet, mapping, managed));
+					}
+				}
+
+				return result;
+			}
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException("SQLException", e);
+		}
+	}
+
+	/**
+	 * как {@link #findAll(Class, String, Object...)}, но результат кэшируется в {@link QueryCache}
+	 * для часто повторяющихся запросов по редко меняющимся таблицам (справочники)
+	 * кэш сбрасывается при любой записи в таблицу сущности через менеджер, записи в другие таблицы
+	 * (например в JOIN запроса) и мимо менеджера не отслеживаются - их покрывает только TTL кэша
+	 */
+	public <T> List<T> findAllCached(Class<T> entityClass, String sql, Object... params)
+	{
+		final Connection connection = acquireConnection();
+		try
+		{
+			return findAllCached(entityClass, connection, sql, params);
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
+	}
+
+	public <T> List<T> findAllCached(Class<T> entityClass, Connection connection, String sql, Object... params)
+	{
+		return findAllCached(entityClass, connection, true, sql, params);
+	}
+
+	<T> List<T> findAllCached(Class<T> entityClass, Connection connection, boolean managed, String sql, Object... params)
+	{
+		final ClassDescriptor descriptor = _descriptors.get(entityClass);
+		if (descriptor == null)
+		{
+			throw new IllegalArgumentException("Not entity object, no class descriptor");
+		}
+
+		final QueryCache cache = _queryCache;
+		try
+		{
+			// внутри транзакции кэш не используем: можно увидеть свои незакоммиченные изменения
+			if (cache == null || !connection.getAutoCommit())
+			{
+				return findAll(entityClass, connection, managed, sql, params);
+			}
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException("SQLException", e);
+		}
+
+		final List<Object[]> rows = cache.get(entityClass, sql, params);
+		if (rows != null)
+		{
+			final List<T> result = new ArrayList<>(rows.size());
+			for (Object[] row : rows)
+			{
+				result.add((T) buildFromCacheSnapshot(descriptor, row, managed));
+			}
+			return result;
+		}
+
+		final String table = descriptor.getTable().getName();
+		final long version = cache.getVersion(table);
+		final List<T> result = findAll(entityClass, connection, managed, sql, params);
+
+		final List<Object[]> snapshots = new ArrayList<>(result.size());
+		for (T entity : result)
+		{
+			snapshots.add(buildCacheSnapshot(descriptor, entity));
+		}
+		cache.put(entityClass, sql, params, table, version, snapshots);
+		return result;
+	}
+
+	/**
+	 * пройти по результату прямого SQL запроса не загружая его в память целиком
+	 * строки читаются из базы потоком по мере обработки
+	 */
+	public <T> void forEach(Class<T> entityClass, String sql, Consumer<? super T> consumer, Object... params)
+	{
+		try (Stream<T> stream = stream(entityClass, sql, params))
+		{
+			stream.forEach(consumer);
+		}
+	}
+
+	public <T> void forEach(Class<T> entityClass, Connection connection, String sql, Consumer<? super T> consumer, Object... params)
+	{
+		try (Stream<T> stream = stream(entityClass, connection, sql, params))
+		{
+			stream.forEach(consumer);
+		}
+	}
+
+	/**
+	 * ленивый поток сущностей по прямому SQL запросу, MySQL отдает строки потоком (streaming result set)
+	 * стрим обязательно надо закрыть (try-with-resources), при закрытии освобождается и коннект
+	 */
+	public <T> Stream<T> stream(Class<T> entityClass, String sql, Object... params)
+	{
+		final Connection connection = acquireConnection();
+		try
+		{
+			// коннект скоупа закрывает сам скоуп, а не стрим
+			return openStream(entityClass, connection, !isScopeConnection(connection), true, sql, params);
+		}
+		catch (RuntimeException e)
+		{
+			releaseConnection(connection);
+			throw e;
+		}
+	}
+
+	/**
+	 * пока стрим открыт других запросов через этот коннект делать нельзя, таково ограничение MySQL
+	 * коннект при закрытии стрима не закрывается
+	 */
+	public <T> Stream<T> stream(Class<T> entityClass, Connection connection, String sql, Object... params)
+	{
+		return openStream(entityClass, connection, false, true, sql, params);
+	}
+
+	<T> Stream<T> openStream(Class<T> entityClass, Connection connection, boolean closeConnection, boolean managed, String sql, Object... params)
+	{
+		final ClassDescriptor descriptor = _descriptors.get(entityClass);
+		if (descriptor == null)
+		{
+			throw new IllegalArgumentException("Not entity object, no class descriptor");
+		}
+
+		PreparedStatement ps = null;
+		try
+		{
+			// forward-only + fetch size Integer.MIN_VALUE переводят драйвер MySQL в потоковое чтение строк
+			ps = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			ps.setFetchSize(_streamFetchSize);
+
+			for (int i = 0; i < params.length; i++)
+			{
+				DatabasePlatform.setParameterValue(params[i], ps, i + 1);
+			}
+
+			_log.debug("execute stream SQL " + entityClass.getName() + ": " + sql);
+			final ResultSet resultSet = ps.executeQuery();
+			final ResultSetMapping mapping = descriptor.getResultSetMapping(sql, resultSet);
+
+			final Spliterator<T> spliterator = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL)
+			{
+				@Override
+				public boolean tryAdvance(Consumer<? super T> action)
+				{
+					try
+					{
+						if (!resultSet.next())
+						{
+							return false;
+						}
+						action.accept((T) readEntity(descriptor, resultSet, mapping, managed));
+						return true;
+					}
+					catch (SQLException e)
+					{
+						throw new RuntimeException("SQLException", e);
+					}
+				}
+			};
+
+			final PreparedStatement statement = ps;
+			return StreamSupport.stream(spliterator, false).onClose(() ->
+			{
+				closeQuietly(statement);
+				if (closeConnection)
+				{
+					closeQuietly(connection);
+					releasePermit();
+				}
+			});
+		}
+		catch (SQLException e)
+		{
+			closeQuietly(ps);
+			throw new RuntimeException("SQLException", e);
+		}
+	}
+
+	/**
+	 * перезагрузить управляемую сущность из базы
+	 */
+	public void refresh(Object entity)
+	{
+		final Connection connection = acquireConnection();
+		try
+		{
+			refresh(entity, connection);
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
+	}
+
+	public void refresh(Object entity, Connection connection)
+	{
+		refresh(entity, connection, true);
+	}
+
+	/**
+	 * @param managed требовать чтобы сущность была управляемой, иначе просто перечитываем поля сущности
+	 */
+	void refresh(Object entity, Connection connection, boolean managed)
+	{
+		Object clone = _cloneMap.get(entity);
+		if (clone != null || !managed)
+		{
+			ClassDescriptor descriptor = getDescriptor(entity);
+			if (descriptor == null)
+			{
+				throw new IllegalArgumentException("Not entity object, no class descriptor");
+			}
+			final List<DatabaseField> pkFields = descriptor.getPrimaryKeyFields();
+			if (pkFields.size() != 1)
+			{
+				throw new RuntimeException("Wrong PK size");
+			}
+
+			try
+			{
+				try (CachedStatement cached = prepareStatement(connection, descriptor.getSimpleSelectSql(), false))
+				{
+					final PreparedStatement ps = cached.getStatement();
+					pkFields.get(0).getCodec().bindFrom(ps, 1, entity);
+					_log.debug("execute refresh SQL " + entity + ": " + descriptor.getSimpleSelectSql());
+					try (ResultSet resultSet = ps.executeQuery())
+					{
+						if (!resultSet.next())
+						{
+							throw new RuntimeException("Select return has no data");
+						}
+
+						if (clone != null)
+						{
+							rememberSnapshot(connection, descriptor, entity);
+						}
+						readRow(descriptor, resultSet, descriptor.getResultSetMapping(descriptor.getSimpleSelectSql(), resultSet), entity, clone);
+						invalidateCachedEntity(descriptor, entity, connection);
+
+						if (clone != null)
+						{
+							// запоминаем клона в мапе
+							manage(descriptor, entity, clone);
+						}
+					}
+				}
+			}
+			catch (SQLException e)
+			{
+				throw new RuntimeException("SQLException", e);
+			}
+		}
+		else
+		{
+			throw new RuntimeException("Could not refresh not managed entity");
+		}
+	}
+
+	/**
+	 * удаление из базы сущности по ид, не имея ее инстанса
+	 * управляемые сущности с этим ид отсоединяются от менеджера
+	 */
+	public void removeById(Class<?> entityClass, Object primaryKeyValue)
+	{
+		final Connection connection = acquireConnection();
+		try
+		{
+			removeById(entityClass, connection, primaryKeyValue);
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
+	}
+
+	public void removeById(Class<?> entityClass, Connection connection, Object primaryKeyValue)
+	{
+		final ClassDescriptor descriptor = getSinglePkDescriptor(entityClass);
+
+		try
+		{
+			try (CachedStatement cached = prepareStatement(connection, descriptor.getSimpleDeleteSql(), false))
+			{
+				final PreparedStatement ps = cached.getStatement();
+				descriptor.getPrimaryKeyFields().get(0).getCodec().bindKey(ps, 1, primaryKeyValue);
+				_log.debug("execute delete SQL " + entityClass.getName() + ": " + descriptor.getSimpleDeleteSql());
+				ps.executeUpdate();
+				tableWritten(descriptor, connection);
+			}
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException("SQLException", e);
+		}
+		evictByIds(descriptor, connection, Collections.singleton(primaryKeyValue));
+		invalidateCached(descriptor, primaryKeyValue, connection);
+	}
+
+	/**
+	 * удалить пачку сущностей по ид, не имея их инстансов
+	 * удаляем запросами DELETE ... WHERE pk IN (...) по {@link #setBatchSize} ключей
+	 * @return сколько строк удалено
+	 */
+	public int removeAllById(Class<?> entityClass, Collection<?> primaryKeyValues)
 	{
-		// TODO: leak detect
-		Connection connection = _connectionFactory.get();
-		connection.setAutoCommit(false);
-		return connection;
+		final Connection connection = acquireConnection();
+		try
+		{
+			return removeAllById(entityClass, connection, primaryKeyValues);
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
 	}
 
-	public void commit(Connection connection) throws SQLException
+	public int removeAllById(Class<?> entityClass, Connection connection, Collection<?> primaryKeyValues)
 	{
-		// TODO commit
-		connection.setAutoCommit(true);
-		connection.commit();
-		connection.close();
+		final ClassDescriptor descriptor = getSinglePkDescriptor(entityClass);
+		if (primaryKeyValues.isEmpty())
+		{
+			return 0;
+		}
+		final int removed = deleteByIds(descriptor, new ArrayList<>(primaryKeyValues), connection);
+		evictByIds(descriptor, connection, primaryKeyValues);
+		for (Object id : primaryKeyValues)
+		{
+			invalidateCached(descriptor, id, connection);
+		}
+		return removed;
 	}
 
-	public void rollback(Connection connection) throws SQLException
+	/**
+	 * удалить пачку сущностей, как {@link #remove(Object)} но пачками через DELETE ... IN (...)
+	 * @return сколько строк удалено
+	 */
+	public int removeAll(Collection<?> entities)
 	{
-		// TODO
-		connection.rollback();
-		connection.setAutoCommit(true);
-		connection.close();
+		final Connection connection = acquireConnection();
+		try
+		{
+			return removeAll(entities, connection);
+		}
+		finally
+		{
+			releaseConnection(connection);
+		}
 	}
 
-	/**
-	 * добавить класс сущности
-	 */
-	private void addEntityClass(Class<?> clazz)
+	public int removeAll(Collection<?> entities, Connection connection)
 	{
-		// проверим что переданный класс это сущность JPA
-		Entity entity = clazz.getAnnotation(Entity.class);
-		if (entity != null)
+		// ид раскладываем по дескрипторам
+		Map<ClassDescriptor, List<Object>> ids = new LinkedHashMap<>();
+		for (Object entity : entities)
 		{
-			try
+			final ClassDescriptor descriptor = getDescriptor(entity);
+			if (descriptor == null)
 			{
-				_log.debug("addEntityClass: " + clazz.getCanonicalName());
-				ClassDescriptor descriptor = new ClassDescriptor(clazz);
-				_descriptors.put(clazz, descriptor);
+				throw new IllegalArgumentException("Not entity object, no class descriptor");
 			}
-			catch (NoSuchMethodException e)
+			if (descriptor.getPrimaryKeyFields().size() != 1)
 			{
-				_log.error("No default constructor for " + clazz.getCanonicalName());
+				throw new RuntimeException("Wrong PK size");
+			}
+			ids.computeIfAbsent(descriptor, d -> new ArrayList<>())
+			   .add(descriptor.getPrimaryKeyFields().get(0).getAccessor().get(entity));
+		}
+
+		int removed = 0;
+		for (Map.Entry<ClassDescriptor, List<Object>> entry : ids.entrySet())
+		{
+			removed += deleteByIds(entry.getKey(), entry.getValue(), connection);
+			for (Object id : entry.getValue())
+			{
+				invalidateCached(entry.getKey(), id, connection);
 			}
 		}
+
+		for (Object entity : entities)
+		{
+			rememberSnapshot(connection, getDescriptor(entity), entity);
+			unmanage(entity);
+		}
+		return removed;
 	}
 
 	/**
-	 * поиск сущностей по пакету
+	 * удалить строки по списку ключей пачками по {@link #_batchSize}
+	 * размер IN (...) округляем вверх до степени двойки, добивая список последним ключом,
+	 * чтобы разных текстов запроса (и подготовленных запросов в кэше) было немного
 	 */
-	public void findEntities(String packageName)
+	private int deleteByIds(ClassDescriptor descriptor, List<?> ids, Connection connection)
 	{
+		final FieldCodec codec = descriptor.getPrimaryKeyFields().get(0).getCodec();
+		int removed = 0;
 		try
 		{
-			final Class<?>[] classes = ClassFinder.getClasses(packageName);
-			for (Class<?> c : classes)
+			for (int from = 0; from < ids.size(); from += _batchSize)
 			{
-				addEntityClass(c);
+				final List<?> chunk = ids.subList(from, Math.min(from + _batchSize, ids.size()));
+				final int size = inListSize(chunk.size());
+				final String sql = descriptor.getDeleteInSql(size);
+				try (CachedStatement cached = prepareStatement(connection, sql, false))
+				{
+					final PreparedStatement ps = cached.getStatement();
+					for (int i = 0; i < size; i++)
+					{
+						codec.bindKey(ps, i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
+					}
+					_log.debug("execute delete SQL " + descriptor.getJavaClassName() + " x" + chunk.size() + ": " + sql);
+					removed += ps.executeUpdate();
+					tableWritten(descriptor, connection);
+				}
 			}
 		}
-		catch (IOException e)
+		catch (SQLException e)
 		{
+			throw new RuntimeException("SQLException", e);
+		}
+		return removed;
+	}
+
+	/**
+	 * размер списка IN (...) под count ключей: ближайшая степень двойки, но не больше размера батча
+	 */
+	private int inListSize(int count)
+	{
+		final int size = Integer.highestOneBit(count);
+		return size == count ? count : Math.min(size << 1, _batchSize);
+	}
 
+	/**
+	 * построить сущность из снимка в кэше второго уровня
+	 * внутри транзакции кэш не читаем, как и в {@link #findAllCached}: транзакция должна видеть свои записи
+	 * @return null если кэш выключен, класс не кэшируется, идет транзакция или сущности в кэше нет
+	 */
+	private Object readCached(ClassDescriptor descriptor, Connection connection, Object primaryKeyValue, boolean managed) throws SQLException
+	{
+		final EntityCache cache = _entityCache;
+		if (cache == null || !descriptor.isCacheable() || primaryKeyValue == null || !connection.getAutoCommit())
+		{
+			return null;
 		}
-		catch (ClassNotFoundException e)
+		final Object[] values = cache.get(descriptor.getJavaClass(), normalizeId(primaryKeyValue));
+		if (values == null)
 		{
-			e.printStackTrace();
+			return null;
 		}
+		return buildFromCacheSnapshot(descriptor, values, managed);
 	}
 
 	/**
-	 * деплой сущностей в базу если необходимо
+	 * построить сущность из снимка значений полей, лежащего в кэше
 	 */
-	public void deploy() throws SQLException
+	private Object buildFromCacheSnapshot(ClassDescriptor descriptor, Object[] values, boolean managed)
 	{
-		try (Connection c = _connectionFactory.get())
+		final Object entity = descriptor.buildNewInstance();
+		final Object clone = managed ? descriptor.buildSnapshot(_compactSnapshots) : null;
+		final List<DatabaseField> fields = descriptor.getFields();
+		for (int i = 0; i < fields.size(); i++)
 		{
-			for (ClassDescriptor descriptor : _descriptors.values())
+			// снимок в кэше общий, значения клоним
+			fields.get(i).getAccessor().set(entity, DatabasePlatform.buildCloneValue(values[i]));
+			if (clone != null)
 			{
-				descriptor.deploy(c);
+				descriptor.copyToSnapshot(entity, clone, i);
 			}
 		}
+		if (managed)
+		{
+			manage(descriptor, entity, clone);
+		}
+		return entity;
 	}
 
 	/**
-	 * сохранить/обновить сущность в базу
+	 * версия класса в кэше второго уровня, читать до запроса и передавать в {@link #cacheEntity}
 	 */
-	public void persist(Object entity)
+	private long cacheVersion(ClassDescriptor descriptor)
+	{
+		final EntityCache cache = _entityCache;
+		return cache != null && descriptor.isCacheable() ? cache.getVersion(descriptor.getJavaClass()) : 0L;
+	}
+
+	/**
+	 * положить только что прочитанную из базы сущность в кэш второго уровня
+	 * внутри транзакции не кладем: там можно прочитать свои же незакоммиченные изменения
+	 * @param version версия класса в кэше, прочитанная до запроса: если с тех пор сущности класса меняли, не кладем
+	 */
+	private void cacheEntity(ClassDescriptor descriptor, Object entity, long version, Connection connection) throws SQLException
 	{
-		try (Connection connection = _connectionFactory.get())
+		final EntityCache cache = _entityCache;
+		if (cache == null || !descriptor.isCacheable() || !connection.getAutoCommit())
 		{
-			persist(entity, connection);
+			return;
 		}
-		catch (SQLException e)
+		final Object id = descriptor.getPrimaryKeyFields().get(0).getAccessor().get(entity);
+		cache.put(descriptor.getJavaClass(), normalizeId(id), buildCacheSnapshot(descriptor, entity), version, descriptor.getCacheTtl());
+	}
+
+	/**
+	 * снимок значений полей сущности для кэша, значения клонируются
+	 */
+	private static Object[] buildCacheSnapshot(ClassDescriptor descriptor, Object entity)
+	{
+		final Object[] values = (Object[]) descriptor.buildSnapshot(true);
+		for (int i = 0; i < values.length; i++)
 		{
-			throw new RuntimeException("SQLException", e);
+			descriptor.copyToSnapshot(entity, values, i);
 		}
+		return values;
 	}
 
-	public void persist(Object entity, Connection connection)
+	/**
+	 * через менеджер записали в таблицу сущности - выкидываем все закэшированные запросы по ней
+	 * внутри транзакции таблица запоминается и запросы выкидываются еще раз после коммита
+	 */
+	private void tableWritten(ClassDescriptor descriptor, Connection connection)
 	{
-		ClassDescriptor descriptor = getDescriptor(entity);
-		if (descriptor == null)
+		final QueryCache cache = _queryCache;
+		if (cache == null)
 		{
-			throw new IllegalArgumentException("Not entity object, no class descriptor");
+			return;
 		}
+		cache.invalidateTable(descriptor.getTable().getName());
+		final Set<ClassDescriptor> tables = _writtenTables.get(connection);
+		if (tables != null)
+		{
+			tables.add(descriptor);
+		}
+	}
 
-		// ищем среди обслуживаемых сущностей такую
-		Object clone = _cloneMap.get(entity);
-
-		// если нашли - значит надо делать дифф и писать в базу апдейт
-		if (clone != null)
+	/**
+	 * сущность поменяли или удалили в базе - выкидываем ее из кэшей
+	 * внутри транзакции ид запоминается и выкидывается еще раз после коммита
+	 */
+	private void invalidateCached(ClassDescriptor descriptor, Object primaryKeyValue, Connection connection)
+	{
+		final EntityCache cache = _entityCache;
+		if (cache != null && descriptor.isCacheable() && primaryKeyValue != null)
 		{
-			if (entity != clone)
+			final Object id = normalizeId(primaryKeyValue);
+			cache.invalidate(descriptor.getJavaClass(), id);
+			final Map<ClassDescriptor, Set<Object>> written = _writtenEntities.get(connection);
+			if (written != null)
 			{
-				if (descriptor.getPrimaryKeyFields().size() == 0)
-				{
-					throw new RuntimeException("No primary key for entity");
-				}
-
-				_log.debug("entity FOUND, UPDATE");
-
-				try
-				{
-					// не можем получить простой запрос поскольку смотрим на дифф полей объекта
-					// и запрос зависит от реально изменившихся полей объекта, поэтому и кэшировать запрос не можем
-					StringBuilder sql = new StringBuilder("UPDATE ");
-					sql.append(descriptor.getTable().getName())
-					   .append(" SET ");
-
-					int updatedCount = 0;
-					List<Object> changes = null;
-					final List<DatabaseField> fields = descriptor.getFields();
-					for (int i = 0; i < fields.size(); i++)
-					{
-						final DatabaseField dbField = fields.get(i);
-						final Field field = dbField.getField();
-						final Object firstValue = field.get(entity);
-						final Object secondValue = field.get(clone);
-
-						if (!DatabasePlatform.compareObjectValues(firstValue, secondValue))
-						{
-							if (dbField.isPrimaryKey())
-							{
-								throw new RuntimeException("Update primary key");
-							}
-							if (!dbField.isUpdatable())
-							{
-								throw new RuntimeException("Field <" + dbField.getName() + "> is not updatable");
-							}
-							if (updatedCount > 0)
-							{
-								sql.append(", ");
-							}
-							updatedCount++;
-							sql.append(dbField.getName())
-							   .append("=?");
-							if (changes == null)
-							{
-								changes = new ArrayList<>();
-							}
-							changes.add(firstValue);
-						}
-					}
-					sql.append(" WHERE ");
-					for (int i = 0; i < descriptor.getPrimaryKeyFields().size(); i++)
-					{
-						sql.append(descriptor.getPrimaryKeyFields().get(i).getName())
-						   .append("=?");
-					}
-
-					if (updatedCount > 0)
-					{
-						final String rawSql = sql.toString();
-						try (PreparedStatement ps = connection.prepareStatement(rawSql))
-						{
-							_log.debug("execute update SQL " + entity.toString() + ": " + rawSql);
-
-							int index = 0;
-							while (index < changes.size())
-							{
-								index++;
-								DatabasePlatform.setParameterValue(changes.get(index - 1), ps, index);
-							}
-
-							for (int i = 0; i < descriptor.getPrimaryKeyFields().size(); i++)
-							{
-								index++;
-								Object val = descriptor.getPrimaryKeyFields().get(i).getField().get(entity);
-								DatabasePlatform.setParameterValue(val, ps, index);
-							}
-							ps.executeUpdate();
-						}
-					}
-					else
-					{
-						_log.debug("updatedCount=" + updatedCount + " no update needed, skip");
-					}
-				}
-				catch (IllegalAccessException e)
+				// null - уже выкидываем весь класс, computeIfAbsent затер бы эту отметку новым набором
+				if (!written.containsKey(descriptor))
 				{
-					throw new RuntimeException("IllegalAccessException", e);
+					written.put(descriptor, new HashSet<>());
 				}
-				catch (SQLException e)
+				final Set<Object> ids = written.get(descriptor);
+				if (ids != null)
 				{
-					throw new RuntimeException("SQLException", e);
+					ids.add(id);
 				}
 			}
 		}
-		else
-		{
-			// не нашли. создаем новый объект в базе
-			// формируем SQL запрос на инсерт
-			_log.debug("entity NOT found, INSERT");
-
-			try
-			{
-				// будем писать в сущность сгенерированного ид только если у нас одно ключевое поле
-				boolean isGeneratedOneKey = descriptor.getPrimaryKeyFields().size() == 1 && descriptor.getPrimaryKeyFields().get(0).isUpdateInsertId();
-
-				try (PreparedStatement ps = isGeneratedOneKey ?
-						connection.prepareStatement(descriptor.getSimpleInsertSql(), Statement.RETURN_GENERATED_KEYS) :
-						connection.prepareStatement(descriptor.getSimpleInsertSql()))
-				{
-					// создадим клона для сохранения диффа
-					if (isGeneratedOneKey)
-					{
-						clone = descriptor.buildNewInstance();
-					}
-
-					// проходим по всем полям дескриптора
-					final List<DatabaseField> fields = descriptor.getFields();
-					int index = 0;
-					for (int i = 0; i < fields.size(); i++)
-					{
-						final DatabaseField field = fields.get(i);
-						if (field.isInsertable())
-						{
-							index++;
-							Object val = field.getField().get(entity);
-							DatabasePlatform.setParameterValue(val, ps, index);
-
-							if (isGeneratedOneKey)
-							{
-								field.getField().set(clone, DatabasePlatform.buildCloneValue(val));
-							}
-						}
-					}
-
-					_log.debug("execute insert SQL " + entity.toString() + ": " + descriptor.getSimpleInsertSql());
-					int affectedRows = ps.executeUpdate();
-
-					if (isGeneratedOneKey)
-					{
-						if (affectedRows == 0)
-						{
-							throw new SQLException("Insert failed, no affected rows");
-						}
-						try (ResultSet generatedKeys = ps.getGeneratedKeys())
-						{
-							if (generatedKeys.next())
-							{
-								final DatabaseField field = descriptor.getPrimaryKeyFields().get(0);
-								final Object val = DatabasePlatform.getObjectThroughOptimizedDataConversion(generatedKeys, field, 1);
+	}
 
-								ps.close();
-								field.getField().set(entity, val);
-								field.getField().set(clone, DatabasePlatform.buildCloneValue(val));
+	private void invalidateCachedEntity(ClassDescriptor descriptor, Object entity, Connection connection)
+	{
+		if (descriptor.getPrimaryKeyFields().size() == 1)
+		{
+			invalidateCached(descriptor, descriptor.getPrimaryKeyFields().get(0).getAccessor().get(entity), connection);
+		}
+	}
 
-								// добавим в мапу только если реально получили ид после инсерта и обновили в сущности
-								_cloneMap.put(entity, clone);
-							}
-							else
-							{
-								throw new SQLException("Insert user failed, no ID obtained.");
-							}
-						}
-					}
-				}
-			}
-			catch (IllegalAccessException e)
-			{
-				throw new RuntimeException("IllegalAccessException", e);
-			}
-			catch (SQLException e)
+	/**
+	 * задели неизвестные строки класса - выкидываем из кэша весь класс, в транзакции еще раз после коммита
+	 */
+	private void invalidateCachedClass(ClassDescriptor descriptor, Connection connection)
+	{
+		final EntityCache cache = _entityCache;
+		if (cache != null && descriptor.isCacheable())
+		{
+			cache.invalidateAll(descriptor.getJavaClass());
+			final Map<ClassDescriptor, Set<Object>> written = _writtenEntities.get(connection);
+			if (written != null)
 			{
-				throw new RuntimeException("SQLException", e);
+				written.put(descriptor, null);
 			}
 		}
 	}
 
 	/**
-	 * искать и загрузить сущность по ключевому полю (id)
+	 * после коммита: выкинуть из кэша записанные в транзакции сущности класса, ids == null - весь класс
 	 */
-	public <T> T findById(Class<T> entityClass, Object primaryKeyValue)
+	private void invalidateCommitted(ClassDescriptor descriptor, Set<Object> ids)
 	{
-		try (Connection connection = _connectionFactory.get())
+		final EntityCache cache = _entityCache;
+		if (cache == null)
 		{
-			return findById(entityClass, connection, primaryKeyValue);
+			return;
 		}
-		catch (SQLException e)
+		if (ids == null)
 		{
-			throw new RuntimeException("SQLException", e);
+			cache.invalidateAll(descriptor.getJavaClass());
+			return;
 		}
-	}
-
-	public <T> T findById(Class<T> entityClass, Connection connection, Object primaryKeyValue)
-	{
-		ClassDescriptor descriptor = _descriptors.get(entityClass);
-		if (descriptor == null)
+		for (Object id : ids)
 		{
-			throw new IllegalArgumentException("Not entity object, no class descriptor");
+			cache.invalidate(descriptor.getJavaClass(), id);
 		}
+	}
 
-		try
+	/**
+	 * отсоединить управляемые сущности класса с указанными ид, ищем по индексу {@link #_managedIndex}
+	 */
+	private void evictByIds(ClassDescriptor descriptor, Connection connection, Collection<?> primaryKeyValues)
+	{
+		for (Object id : primaryKeyValues)
 		{
-			try (PreparedStatement ps = connection.prepareStatement(descriptor.getSimpleSelectSql()))
+			if (id == null)
 			{
-				DatabasePlatform.setParameterValue(primaryKeyValue, ps, 1);
-				_log.debug("execute select SQL " + entityClass.getName() + ": " + descriptor.getSimpleSelectSql());
-				final ResultSet resultSet = ps.executeQuery();
-
-				if (!resultSet.next())
-				{
-					return null;
-				}
-
-				// создаем объект дефолтным конструктором
-				final Object workingCopy = descriptor.buildNewInstance();
-				final Object clone = descriptor.buildNewInstance();
-
-				final List<DatabaseField> fields = descriptor.getFields();
-				// проходим по поляем объекта через дескриптор
-				for (int i = 0; i < fields.size(); i++)
-				{
-					final DatabaseField field = fields.get(i);
-
-					// получаем значения полей
-					final Object val = DatabasePlatform.getObjectThroughOptimizedDataConversion(resultSet, field, i + 1);
-
-					// пишем их в поля клона, используя buildCloneValue, т.е. значения тоже клоним если надо
-					field.getField().set(workingCopy, val);
-					field.getField().set(clone, DatabasePlatform.buildCloneValue(val));
-				}
-
-				// запоминаем клона в мапе
-				_cloneMap.put(workingCopy, clone);
-
-				return (T) workingCopy;
+				continue;
+			}
+			for (Object entity : findManaged(descriptor, normalizeId(id)))
+			{
+				rememberSnapshot(connection, descriptor, entity);
+				unmanage(entity);
 			}
 		}
-		catch (IllegalAccessException e)
+	}
+
+	/**
+	 * дескриптор класса сущности с единственным ключевым полем
+	 */
+	private ClassDescriptor getSinglePkDescriptor(Class<?> entityClass)
+	{
+		final ClassDescriptor descriptor = _descriptors.get(entityClass);
+		if (descriptor == null)
 		{
-			throw new RuntimeException("IllegalAccessException", e);
+			throw new IllegalArgumentException("Not entity object, no class descriptor");
 		}
-		catch (SQLException e)
+		if (descriptor.getPrimaryKeyFields().size() != 1)
 		{
-			throw new RuntimeException("SQLException", e);
+			throw new RuntimeException("Wrong PK size");
 		}
+		return descriptor;
 	}
 
-	public <T> T findOne(Class<T> entityClass, String field, Object primaryKeyValue)
+	/**
+	 * удалить сущность из базы
+	 * сущность может быть и не управляемой - тогда надо в ней проставить только Id поля и передать сюда,
+	 * будет удалена по id
+	 */
+	public void remove(Object entity)
 	{
-		try (Connection connection = _connectionFactory.get())
+		final Connection connection = acquireConnection();
+		try
 		{
-			return findOne(entityClass, connection, field, primaryKeyValue);
+			remove(entity, connection);
 		}
-		catch (SQLException e)
+		finally
 		{
-			throw new RuntimeException("SQLException", e);
+			releaseConnection(connection);
 		}
 	}
 
-	public <T> T findOne(Class<T> entityClass, Connection connection, String field, Object primaryKeyValue)
+	public void remove(Object entity, Connection connection)
 	{
-		ClassDescriptor descriptor = _descriptors.get(entityClass);
+		ClassDescriptor descriptor = getDescriptor(entity);
 		if (descriptor == null)
 		{
 			throw new IllegalArgumentException("Not entity object, no class descriptor");
 		}
 
+		final List<DatabaseField> pkFields = descriptor.getPrimaryKeyFields();
+		if (pkFields.size() != 1)
+		{
+			throw new RuntimeException("Wrong PK size");
+		}
+
 		try
 		{
-			final String sql = descriptor.getSelectOneSql(field);
-			try (PreparedStatement ps = connection.prepareStatement(sql))
+			try (CachedStatement cached = prepareStatement(connection, descriptor.getSimpleDeleteSql(), false))
 			{
-				DatabasePlatform.setParameterValue(primaryKeyValue, ps, 1);
-				_log.debug("execute select SQL " + entityClass.getName() + ": " + sql);
-				final ResultSet resultSet = ps.executeQuery();
+				final PreparedStatement ps = cached.getStatement();
+				pkFields.get(0).getCodec().bindFrom(ps, 1, entity);
+				_log.debug("execute delete SQL " + entity + ": " + descriptor.getSimpleDeleteSql());
 
-				if (!resultSet.next())
-				{
-					return null;
-				}
+				ps.executeUpdate();
+				rememberSnapshot(connection, descriptor, entity);
+				unmanage(entity);
+				invalidateCachedEntity(descriptor, entity, connection);
+				tableWritten(descriptor, connection);
+			}
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException("SQLException", e);
+		}
+	}
 
-				// создаем объект дефолтным конструктором
-				final Object workingCopy = descriptor.buildNewInstance();
-				final Object clone = descriptor.buildNewInstance();
+	/**
+	 * {@link #findById(Class, Object)} в async executor, future завершается в executor по умолчанию
+	 */
+	public <T> CompletableFuture<T> findByIdAsync(Class<T> entityClass, Object primaryKeyValue)
+	{
+		return findByIdAsync(entityClass, primaryKeyValue, _asyncCompletionExecutor);
+	}
 
-				final List<DatabaseField> fields = descriptor.getFields();
-				// проходим по поляем объекта через дескриптор
-				for (int i = 0; i < fields.size(); i++)
-				{
-					final DatabaseField f = fields.get(i);
+	public <T> CompletableFuture<T> findByIdAsync(Class<T> entityClass, Object primaryKeyValue, Executor completionExecutor)
+	{
+		return async(() -> findById(entityClass, primaryKeyValue), completionExecutor);
+	}
 
-					// получаем значения полей
-					final Object val = DatabasePlatform.getObjectThroughOptimizedDataConversion(resultSet, f, i + 1);
+	/**
+	 * {@link #findAll(Class, String, Object...)} в async executor, future завершается в executor по умолчанию
+	 */
+	public <T> CompletableFuture<List<T>> findAllAsync(Class<T> entityClass, String sql, Object... params)
+	{
+		return findAllAsync(entityClass, _asyncCompletionExecutor, sql, params);
+	}
 
-					// пишем их в поля клона, используя buildCloneValue, т.е. значения тоже клоним если надо
-					f.getField().set(workingCopy, val);
-					f.getField().set(clone, DatabasePlatform.buildCloneValue(val));
-				}
+	public <T> CompletableFuture<List<T>> findAllAsync(Class<T> entityClass, Executor completionExecutor, String sql, Object... params)
+	{
+		return async(() -> findAll(entityClass, sql, params), completionExecutor);
+	}
 
-				// запоминаем клона в мапе
-				_cloneMap.put(workingCopy, clone);
+	/**
+	 * {@link #persist(Object)} в async executor, сущность до завершения future из других потоков не трогаем
+	 */
+	public CompletableFuture<Void> persistAsync(Object entity)
+	{
+		return persistAsync(entity, _asyncCompletionExecutor);
+	}
 
-				return (T) workingCopy;
-			}
-		}
-		catch (IllegalAccessException e)
+	public CompletableFuture<Void> persistAsync(Object entity, Executor completionExecutor)
+	{
+		return async(() ->
 		{
-			throw new RuntimeException("IllegalAccessException", e);
-		}
-		catch (SQLException e)
+			persist(entity);
+			return null;
+		}, completionExecutor);
+	}
+
+	/**
+	 * {@link #remove(Object)} в async executor
+	 */
+	public CompletableFuture<Void> removeAsync(Object entity)
+	{
+		return removeAsync(entity, _asyncCompletionExecutor);
+	}
+
+	public CompletableFuture<Void> removeAsync(Object entity, Executor completionExecutor)
+	{
+		return async(() ->
 		{
-			throw new RuntimeException("SQLException", e);
-		}
+			remove(entity);
+			return null;
+		}, completionExecutor);
 	}
 
 	/**
-	 * найти сущности используя прямой SQL запрос
+	 * выполнить работу с базой в async executor и завершить future в completionExecutor
+	 * работа идет на коннекте из фабрики: транзакция вызывающего потока ({@link #beginScope()}) сюда не переходит
 	 */
-	public <T> List<T> findAll(Class<T> entityClass, String sql, Object... params)
+	private <R> CompletableFuture<R> async(Supplier<R> work, Executor completionExecutor)
 	{
-		try (Connection connection = _connectionFactory.get())
+		if (!_concurrent)
 		{
-			return findAll(entityClass, connection, sql, params);
+			throw new IllegalStateException("Async methods require concurrent EntityManager");
 		}
-		catch (SQLException e)
+		if (completionExecutor == null)
 		{
-			throw new RuntimeException("SQLException", e);
+			throw new IllegalArgumentException("Null completion executor");
 		}
+		final CompletableFuture<R> future = new CompletableFuture<>();
+		getBoundedAsyncExecutor().execute(() ->
+		{
+			R result = null;
+			Throwable error = null;
+			try
+			{
+				result = work.get();
+			}
+			catch (Throwable e)
+			{
+				error = e;
+			}
+			complete(future, result, error, completionExecutor);
+		}, e -> complete(future, null, e, completionExecutor));
+		return future;
 	}
 
-	public <T> List<T> findAll(Class<T> entityClass, Connection connection, String sql, Object... params)
+	private static <R> void complete(CompletableFuture<R> future, R result, Throwable error, Executor completionExecutor)
 	{
-		ClassDescriptor descriptor = _descriptors.get(entityClass);
-		if (descriptor == null)
+		try
 		{
-			throw new IllegalArgumentException("Not entity object, no class descriptor");
+			completionExecutor.execute(() ->
+			{
+				if (error != null)
+				{
+					future.completeExceptionally(error);
+				}
+				else
+				{
+					future.complete(result);
+				}
+			});
 		}
-
-		try
+		catch (RejectedExecutionException e)
 		{
-			try (PreparedStatement ps = connection.prepareStatement(sql))
+			if (error != null)
 			{
-				List<T> result = new ArrayList<>();
+				e.addSuppressed(error);
+			}
+			future.completeExceptionally(e);
+		}
+	}
 
-				for (int i = 0; i < params.length; i++)
+	private BoundedExecutor getBoundedAsyncExecutor()
+	{
+		BoundedExecutor executor = _boundedAsyncExecutor;
+		if (executor == null)
+		{
+			_asyncLock.lock();
+			try
+			{
+				executor = _boundedAsyncExecutor;
+				if (executor == null)
 				{
-					DatabasePlatform.setParameterValue(params[i], ps, i + 1);
+					int maxInFlight = _asyncMaxInFlight;
+					if (maxInFlight == 0)
+					{
+						maxInFlight = _connectionFactory instanceof ConnectionPool
+								? ((ConnectionPool) _connectionFactory).getMaxSize()
+								: Runtime.getRuntime().availableProcessors();
+					}
+					Executor target = _asyncExecutor;
+					if (target == null)
+					{
+						_ownAsyncExecutor = Executors.newCachedThreadPool(new AsyncThreadFactory());
+						target = _ownAsyncExecutor;
+					}
+					executor = new BoundedExecutor(target, maxInFlight);
+					_boundedAsyncExecutor = executor;
 				}
+			}
+			finally
+			{
+				_asyncLock.unlock();
+			}
+		}
+		return executor;
+	}
 
-				_log.debug("execute select SQL " + entityClass.getName() + ": " + sql);
-				final ResultSet resultSet = ps.executeQuery();
+	/**
+	 * потоки async пула по умолчанию: демоны, чтобы не держать JVM
+	 */
+	private static final class AsyncThreadFactory implements ThreadFactory
+	{
+		private final AtomicInteger _counter = new AtomicInteger();
 
-				final List<DatabaseField> fields = descriptor.getFields();
-				while (resultSet.next())
-				{
-					// создаем объект дефолтным конструктором
-					final Object workingCopy = descriptor.buildNewInstance();
-					final Object clone = descriptor.buildNewInstance();
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			final Thread thread = new Thread(r, "jpark-async-" + _counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
 
-					// проходим по поляем объекта через дескриптор
-					for (int i = 0; i < fields.size(); i++)
-					{
-						final DatabaseField field = fields.get(i);
+	/**
+	 * поиск сущностей только для чтения: без клонов и без регистрации в менеджере
+	 * такие сущности нельзя обновить через persist (будут вставлены как новые)
+	 */
+	public ReadOnlyQueries readOnly()
+	{
+		return _readOnlyQueries;
+	}
 
-						// получаем значения полей
-						int column = resultSet.findColumn(field.getName());
-						final Object val = DatabasePlatform.getObjectThroughOptimizedDataConversion(resultSet, field, column);
+	public void detach(Object entity)
+	{
+		unmanage(entity);
+	}
 
-						// пишем их в поля клона, используя buildCloneValue, т.е. значения тоже клоним если надо
-						field.getField().set(workingCopy, val);
-						field.getField().set(clone, DatabasePlatform.buildCloneValue(val));
+	public boolean contains(Object entity)
+	{
+		return _cloneMap.containsKey(entity);
+	}
 
-					}
-					// запоминаем клона в мапе
-					_cloneMap.put(workingCopy, clone);
+	/**
+	 * сколько ид в индексе управляемых сущностей
+	 */
+	int getManagedIndexSize()
+	{
+		return _managedIndex.size();
+	}
 
-					result.add(((T) workingCopy));
-				}
+	public void clear()
+	{
+		_cloneMap.clear();
+		_managedIndex.clear();
+	}
 
-				return result;
+	/**
+	 * взять сущность на управление: запомнить снимок для диффа и проиндексировать по ид
+	 */
+	private void manage(ClassDescriptor descriptor, Object entity, Object clone)
+	{
+		_cloneMap.put(entity, clone);
+		if (descriptor.getPrimaryKeyFields().size() == 1)
+		{
+			final Object id = descriptor.getPrimaryKeyFields().get(0).getAccessor().get(entity);
+			if (id != null)
+			{
+				_managedIndex.add(descriptor, normalizeId(id), entity);
 			}
 		}
-		catch (IllegalAccessException e)
+	}
+
+	private void unmanage(Object entity)
+	{
+		if (_cloneMap.remove(entity) == null)
 		{
-			throw new RuntimeException("IllegalAccessException", e);
+			return;
 		}
-		catch (SQLException e)
+		final ClassDescriptor descriptor = _descriptors.get(entity.getClass());
+		if (descriptor != null && descriptor.getPrimaryKeyFields().size() == 1)
 		{
-			throw new RuntimeException("SQLException", e);
+			final Object id = descriptor.getPrimaryKeyFields().get(0).getAccessor().get(entity);
+			if (id != null)
+			{
+				_managedIndex.remove(descriptor, normalizeId(id), entity);
+			}
 		}
 	}
 
 	/**
-	 * перезагрузить управляемую сущность из базы
+	 * управляемые сущности класса с этим ид, по индексу со сверкой текущего ид
 	 */
-	public void refresh(Object entity)
+	private List<Object> findManaged(ClassDescriptor descriptor, Object id)
 	{
-		try (Connection connection = _connectionFactory.get())
+		final List<Object> entities = _managedIndex.get(descriptor, id);
+		if (entities.isEmpty())
 		{
-			refresh(entity, connection);
+			return entities;
 		}
-		catch (SQLException e)
+		final FieldAccessor pkAccessor = descriptor.getPrimaryKeyFields().get(0).getAccessor();
+		final List<Object> result = new ArrayList<>(entities.size());
+		for (Object entity : entities)
 		{
-			throw new RuntimeException("SQLException", e);
+			final Object current = pkAccessor.get(entity);
+			if (current != null && id.equals(normalizeId(current)) && _cloneMap.containsKey(entity))
+			{
+				result.add(entity);
+			}
 		}
+		return result;
 	}
 
-	public void refresh(Object entity, Connection connection)
+	/**
+	 * подготовить запрос через кэш, если он включен
+	 * запрос надо закрыть (try-with-resources), закэшированный при этом вернется в кэш
+	 * результаты запроса тоже надо закрывать явно, сам стейтмент может остаться открытым
+	 */
+	private CachedStatement prepareStatement(Connection connection, String sql, boolean returnGeneratedKeys) throws SQLException
 	{
-		Object clone = _cloneMap.get(entity);
-		if (clone != null)
+		final StatementCache cache = _statementCache;
+		if (cache != null)
 		{
-			ClassDescriptor descriptor = getDescriptor(entity);
-			if (descriptor == null)
-			{
-				throw new IllegalArgumentException("Not entity object, no class descriptor");
-			}
-			final List<DatabaseField> pkFields = descriptor.getPrimaryKeyFields();
-			if (pkFields.size() != 1)
-			{
-				throw new RuntimeException("Wrong PK size");
-			}
+			return cache.prepare(connection, sql, returnGeneratedKeys);
+		}
+		return new CachedStatement(null, connection, null, returnGeneratedKeys ?
+				connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) :
+				connection.prepareStatement(sql));
+	}
 
+	private static void closeQuietly(AutoCloseable closeable)
+	{
+		if (closeable != null)
+		{
 			try
 			{
-				final Object primaryKeyValue = pkFields.get(0).getField().get(entity);
-
-				try (PreparedStatement ps = connection.prepareStatement(descriptor.getSimpleSelectSql()))
-				{
-					DatabasePlatform.setParameterValue(primaryKeyValue, ps, 1);
-					_log.debug("execute refresh SQL " + entity + ": " + descriptor.getSimpleSelectSql());
-					final ResultSet resultSet = ps.executeQuery();
-
-					if (!resultSet.next())
-					{
-						throw new RuntimeException("Select return has no data");
-					}
-
-					final List<DatabaseField> fields = descriptor.getFields();
-					// проходим по поляем объекта через дескриптор
-					for (int i = 0; i < fields.size(); i++)
-					{
-						final DatabaseField field = fields.get(i);
-
-						// получаем значения полей
-						final Object val = DatabasePlatform.getObjectThroughOptimizedDataConversion(resultSet, field, i + 1);
-
-						// пишем их в поля клона, используя buildCloneValue, т.е. значения тоже клоним если надо
-						field.getField().set(entity, val);
-						field.getField().set(clone, DatabasePlatform.buildCloneValue(val));
-					}
-
-					// запоминаем клона в мапе
-					_cloneMap.put(entity, clone);
-				}
-			}
-			catch (IllegalAccessException e)
-			{
-				throw new RuntimeException("IllegalAccessException", e);
+				closeable.close();
 			}
-			catch (SQLException e)
+			catch (Exception e)
 			{
-				throw new RuntimeException("SQLException", e);
+				_log.warn("close failed", e);
 			}
 		}
-		else
-		{
-			throw new RuntimeException("Could not refresh not managed entity");
-		}
 	}
 
 	/**
-	 * удаление из базы сущности по ид, не имея ее инстанса
+	 * коннект для методов без явного коннекта: коннект скоупа текущего потока или новый из фабрики
+	 * отдавать обратно через {@link #releaseConnection(Connection)}
 	 */
-	public void removeById(Class<?> entityClass, Object primaryKeyValue)
+	Connection acquireConnection()
 	{
-		// TODO
+		final TransactionScope scope = _currentScope.get();
+		if (scope != null)
+		{
+			return scope.getConnection();
+		}
+		return getPermittedConnection();
 	}
 
 	/**
-	 * удалить сущность из базы
-	 * сущность может быть и не управляемой - тогда надо в ней проставить только Id поля и передать сюда,
-	 * будет удалена по id
+	 * коннект из фабрики, в режиме виртуальных потоков сначала ждем разрешение семафора
+	 * разрешение отдается через {@link #releasePermit()} после закрытия коннекта
 	 */
-	public void remove(Object entity)
+	private Connection getPermittedConnection()
 	{
-		try (Connection connection = _connectionFactory.get())
+		final Semaphore permits = _connectionPermits;
+		if (permits == null)
 		{
-			remove(entity, connection);
+			return _connectionFactory.get();
 		}
-		catch (SQLException e)
+		try
 		{
-			throw new RuntimeException("SQLException", e);
+			permits.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for connection permit", e);
+		}
+		try
+		{
+			return _connectionFactory.get();
+		}
+		catch (RuntimeException | Error e)
+		{
+			permits.release();
+			throw e;
 		}
 	}
 
-	public void remove(Object entity, Connection connection)
+	private void releasePermit()
 	{
-		ClassDescriptor descriptor = getDescriptor(entity);
-		if (descriptor == null)
+		final Semaphore permits = _connectionPermits;
+		if (permits != null)
 		{
-			throw new IllegalArgumentException("Not entity object, no class descriptor");
+			permits.release();
 		}
+	}
 
-		final List<DatabaseField> pkFields = descriptor.getPrimaryKeyFields();
-		if (pkFields.size() != 1)
+	/**
+	 * вернуть коннект взятый через {@link #acquireConnection()}, коннект скоупа не закрывается
+	 */
+	void releaseConnection(Connection connection)
+	{
+		if (isScopeConnection(connection))
 		{
-			throw new RuntimeException("Wrong PK size");
+			return;
 		}
-
 		try
 		{
-			final Object primaryKeyValue = pkFields.get(0).getField().get(entity);
-
-			try (PreparedStatement ps = connection.prepareStatement(descriptor.getSimpleDeleteSql()))
-			{
-				DatabasePlatform.setParameterValue(primaryKeyValue, ps, 1);
-				_log.debug("execute delete SQL " + entity + ": " + descriptor.getSimpleDeleteSql());
-
-				ps.executeQuery();
-				_cloneMap.remove(entity);
-			}
-		}
-		catch (IllegalAccessException e)
-		{
-			throw new RuntimeException("IllegalAccessException", e);
+			connection.close();
 		}
 		catch (SQLException e)
 		{
 			throw new RuntimeException("SQLException", e);
 		}
+		finally
+		{
+			releasePermit();
+		}
 	}
 
-	public void detach(Object entity)
-	{
-		_cloneMap.remove(entity);
-	}
-
-	public boolean contains(Object entity)
-	{
-		return _cloneMap.containsKey(entity);
-	}
-
-	public void clear()
+	boolean isScopeConnection(Connection connection)
 	{
-		_cloneMap.clear();
+		final TransactionScope scope = _currentScope.get();
+		return scope != null && scope.getConnection() == connection;
 	}
 
 	private ClassDescriptor getDescriptor(Object entity)
@@ -716,7 +3072,7 @@ public class EntityManager
 
 	private Map<Object, Object> createMap()
 	{
-		return new IdentityWeakHashMap<>();
+		return _concurrent ? new ConcurrentIdentityWeakHashMap<>() : new CompactIdentityWeakHashMap<>();
 	}
 
 	/**
@@ -0,0 +1,780 @@
+package org.jpark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * быстрый доступ к полю сущности через {@link MethodHandle} вместо {@link Field#get}/{@link Field#set}
+ * строится один раз при регистрации сущности
+ * для примитивных полей есть типизированные методы, которые не боксят значение
+ * хэндлы лежат в нестатических final полях, JIT не считает их константами и не инлайнит доступ к полю до конца,
+ * вызов идет через скомпилированную форму хэндла. выигрыш против {@link Field} - без проверок доступа
+ * и без боксинга примитивов, но не до уровня прямого обращения к полю
+ */
+public abstract class FieldAccessor
+{
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	protected final Field _field;
+
+	protected FieldAccessor(Field field)
+	{
+		_field = field;
+	}
+
+	/**
+	 * построить аксессор под тип поля
+	 * поле уже должно быть accessible
+	 */
+	public static FieldAccessor build(Field field)
+	{
+		final Class<?> type = field.getType();
+		try
+		{
+			final MethodHandle getter = LOOKUP.unreflectGetter(field);
+			final MethodHandle setter = LOOKUP.unreflectSetter(field);
+
+			if (type == int.class)
+			{
+				return new IntAccessor(field, getter, setter);
+			}
+			else if (type == long.class)
+			{
+				return new LongAccessor(field, getter, setter);
+			}
+			else if (type == boolean.class)
+			{
+				return new BooleanAccessor(field, getter, setter);
+			}
+			else if (type == double.class)
+			{
+				return new DoubleAccessor(field, getter, setter);
+			}
+			else if (type == float.class)
+			{
+				return new FloatAccessor(field, getter, setter);
+			}
+			else if (type == short.class)
+			{
+				return new ShortAccessor(field, getter, setter);
+			}
+			else if (type == byte.class)
+			{
+				return new ByteAccessor(field, getter, setter);
+			}
+			else if (type == char.class)
+			{
+				return new CharAccessor(field, getter, setter);
+			}
+			return new ObjectAccessor(field, getter, setter);
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new IllegalArgumentException("Field <" + field.getName() + "> is not accessible", e);
+		}
+	}
+
+	public Field getField()
+	{
+		return _field;
+	}
+
+	/**
+	 * значение поля, для примитивов боксится
+	 */
+	public abstract Object get(Object entity);
+
+	/**
+	 * записать значение в поле, null в примитивное поле - ошибка, как и у {@link Field#set}
+	 */
+	public abstract void set(Object entity, Object value);
+
+	/**
+	 * равны ли значения поля у двух инстансов (сущности и ее клона)
+	 */
+	public abstract boolean isSame(Object entity, Object clone);
+
+	/**
+	 * скопировать значение поля из сущности в клона, используя {@link DatabasePlatform#buildCloneValue}
+	 */
+	public abstract void copy(Object entity, Object clone);
+
+	public int getInt(Object entity)
+	{
+		return ((Number) get(entity)).intValue();
+	}
+
+	public void setInt(Object entity, int value)
+	{
+		set(entity, value);
+	}
+
+	public long getLong(Object entity)
+	{
+		return ((Number) get(entity)).longValue();
+	}
+
+	public void setLong(Object entity, long value)
+	{
+		set(entity, value);
+	}
+
+	public boolean getBoolean(Object entity)
+	{
+		return (Boolean) get(entity);
+	}
+
+	public void setBoolean(Object entity, boolean value)
+	{
+		set(entity, value);
+	}
+
+	public double getDouble(Object entity)
+	{
+		return ((Number) get(entity)).doubleValue();
+	}
+
+	public void setDouble(Object entity, double value)
+	{
+		set(entity, value);
+	}
+
+	public float getFloat(Object entity)
+	{
+		return ((Number) get(entity)).floatValue();
+	}
+
+	public void setFloat(Object entity, float value)
+	{
+		set(entity, value);
+	}
+
+	public short getShort(Object entity)
+	{
+		return ((Number) get(entity)).shortValue();
+	}
+
+	public void setShort(Object entity, short value)
+	{
+		set(entity, value);
+	}
+
+	public byte getByte(Object entity)
+	{
+		return ((Number) get(entity)).byteValue();
+	}
+
+	public void setByte(Object entity, byte value)
+	{
+		set(entity, value);
+	}
+
+	/**
+	 * null для примитивного поля
+	 */
+	protected IllegalArgumentException nullValue()
+	{
+		return new IllegalArgumentException("Can not set " + _field.getType().getName() + " field <" + _field.getName() + "> to null value");
+	}
+
+	protected RuntimeException wrap(Throwable e)
+	{
+		if (e instanceof RuntimeException)
+		{
+			return (RuntimeException) e;
+		}
+		if (e instanceof Error)
+		{
+			throw (Error) e;
+		}
+		return new RuntimeException("Field access failed <" + _field.getName() + ">", e);
+	}
+
+	static final class ObjectAccessor extends FieldAccessor
+	{
+		private final MethodHandle _getter;
+		private final MethodHandle _setter;
+
+		ObjectAccessor(Field field, MethodHandle getter, MethodHandle setter)
+		{
+			super(field);
+			_getter = getter.asType(MethodType.methodType(Object.class, Object.class));
+			_setter = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+		}
+
+		@Override
+		public Object get(Object entity)
+		{
+			try
+			{
+				return (Object) _getter.invokeExact(entity);
+			}
+			catch (Throwable e)
+			{
+				throw wrap(e);
+			}
+		}
+
+		@Override
+		public void set(Object entity, Object value)
+		{
+			try
+			{
+				_setter.invokeExact(entity, value);
+			}
+			catch (Throwable e)
+			{
+				throw wrap(e);
+			}
+		}
+
+		@Override
+		public boolean isSame(Object entity, Object clone)
+		{
+			return DatabasePlatform.compareObjectValues(get(entity), get(clone));
+		}
+
+		@Override
+		public void copy(Object entity, Object clone)
+		{
+			set(clone, DatabasePlatform.buildCloneValue(get(entity)));
+		}
+	}
+
+	static final class IntAccessor extends FieldAccessor
+	{
+		private final MethodHandle _getter;
+		private final MethodHandle _setter;
+
+		IntAccessor(Field field, MethodHandle getter, MethodHandle setter)
+		{
+			super(field);
+			_getter = getter.asType(MethodType.methodType(int.class, Object.class));
+			_setter = setter.asType(MethodType.methodType(void.class, Object.class, int.class));
+		}
+
+		@Override
+		public int getInt(Object entity)
+		{
+			try
+			{
+				return (int) _getter.invokeExact(entity);
+			}
+			catch (Throwable e)
+			{
+				throw wrap(e);
+			}
+		}
+
+		@Override
+		public void setInt(Object entity, int value)
+		{
+			try
+			{
+				_setter.invokeExact(entity, value);
+			}
+			catch (Throwable e)
+			{
+				throw wrap(e);
+			}
+		}
+
+		@Override
+		public Object get(Object entity)
+		{
+			return getInt(entity);
+		}
+
+		@Override
+		public void set(Object entity, Object value)
+		{
+			if (value == null)
+			{
+				throw nullValue();
+			}
+			setInt(entity, ((Number) value).intValue());
+		}
+
+		@Override
+		public boolean isSame(Object entity, Object clone)
+		{
+			return getInt(entity) == getInt(clone);
+		}
+
+		@Override
+		public void copy(Object entity, Object clone)
+		{
+			setInt(clone, getInt(entity));
+		}
+	}
+
+	static final class LongAccessor extends FieldAccessor
+	{
+		private final MethodHandle _getter;
+		private final MethodHandle _setter;
+
+		LongAccessor(Field field, MethodHandle getter, MethodHandle setter)
+		{
+			super(field);
+			_getter = getter.asType(MethodType.methodType(long.class, Object.class));
+			_setter = setter.asType(MethodType.methodType(void.class, Object.class, long.class));
+		}
+
+		@Override
+		public long getLong(Object entity)
+		{
+			try
+			{
+				return (long) _getter.invokeExact(entity);
+			}
+			catch (Throwable e)
+			{
+				throw wrap(e);
+			}
+		}
+
+		@Override
+		public void setLong(Object entity, long value)
+		{
+			try
+			{
+				_setter.invokeExact(entity, value);
+			}
+			catch (Throwable e)
+			{
+				throw wrap(e);
+			}
+		}
+
+		@Override
+		public Object get(Object entity)
+		{
+			return getLong(entity);
+		}
+
+		@Override
+		public void set(Object entity, Object value)
+		{
+			if (value == null)
+			{
+				throw nullValue();
+			}
+			setLong(entity, ((Number) value).longValue());
+		}
+
+		@Override
+		public boolean isSame(Object entity, Object clone)
+		{
+			return getLong(entity) == getLong(clone);
+		}
+
+		@Override
+		public void copy(Object entity, Object clone)
+		{
+			setLong(clone, getLong(entity));
+		}
+	}
+
+	static final class BooleanAccessor extends FieldAccessor
+	{
+		private final MethodHandle _getter;
+		private final MethodHandle _setter;
+
+		BooleanAccessor(Field field, MethodHandle getter, MethodHandle setter)
+		{
+			super(field);
+			_getter = getter.asType(MethodType.methodType(boolean.class, Object.class));
+			_setter = setter.asType(MethodType.methodType(void.class, Object.class, boolean.class));
+		}
+
+		@Override
+		public boolean getBoolean(Object entity)
+		{
+			try
+			{
+				return (boolean) _getter.invokeExact(entity);
+			}
+			catch (Throwable e)
+			{
+				throw wrap(e);
+			}
+		}
+
+		@Override
+		public void setBoolean(Object entity, boolean value)
+		{
+			try
+			{
+				_setter.invokeExact(entity, value);
+			}
+			catch (Throwable e)
+			{
+				throw wrap(e);
+			}
+		}
+
+		@Override
+		public Object get(Object entity)
+		{
+			return getBoolean(entity);
+		}
+
+		@Override
+		public void set(Object entity, Object value)
+		{
+			if (value == null)
+			{
+				throw nullValue();
+			}
+			setBoolean(entity, (Boolean) value);
+		}
+
+		@Override
+		public boolean isSame(Object entity, Object clone)
+		{
+			return getBoolean(entity) == getBoolean(clone);
+		}
+
+		@Override
+		public void copy(Object entity, Object clone)
+		{
+			setBoolean(clone, getBoolean(entity));
+		}
+	}
+
+	static final class DoubleAccessor extends FieldAccessor
+	{
+		private final MethodHandle _getter;
+		private final MethodHandle _setter;
+
+		DoubleAccessor(Field field, MethodHandle getter, MethodHandle setter)
+		{
+			super(field);
+			_getter = getter.asType(MethodType.methodType(double.class, Object.class));
+			_setter = setter.asType(MethodType.methodType(void.class, Object.class, double.class));
+		}
+
+		@Override
+		public double getDouble(Object entity)
+		{
+			try
+			{
+				return (double) _getter.invokeExact(entity);
+			}
+			catch (Throwable e)
+			{
+				throw wrap(e);
+			}
+		}
+
+		@Override
+		public void setDouble(Object entity, double value)
+		{
+			try
+			{
+				_setter.invokeExact(entity, value);
+			}
+			catch (Throwable e)
+			{
+				throw wrap(e);
+			}
+		}
+
+		@Override
+		public Object get(Object entity)
+		{
+			return getDouble(entity);
+		}
+
+		@Override
+		public void set(Object entity, Object value)
+		{
+			if (value == null)
+			{
+				throw nullValue();
+			}
+			setDouble(entity, ((Number) value).doubleValue());
+		}
+
+		@Override
+		public boolean isSame(Object entity, Object clone)
+		{
+			// так же как Double.equals, чтобы NaN не давал вечный дифф
+			return Double.doubleToLongBits(getDouble(entity)) == Double.doubleToLongBits(getDouble(clone));
+		}
+
+		@Override
+		public void copy(Object entity, Object clone)
+		{
+			setDouble(clone, getDouble(entity));
+		}
+	}
+
+	static final class FloatAccessor extends FieldAccessor
+	{
+		private final MethodHandle _getter;
+		private final MethodHandle _setter;
+
+		FloatAccessor(Field field, MethodHandle getter, MethodHandle setter)
+		{
+			super(field);
+			_getter = getter.asType(MethodType.methodType(float.class, Object.class));
+			_setter = setter.asType(MethodType.methodType(void.class, Object.class, float.class));
+		}
+
+		@Override
+		public float getFloat(Object entity)
+		{
+			try
+			{
+				return (float) _getter.invokeExact(entity);
+			}
+			catch (Throwable e)
+			{
+				throw wrap(e);
+			}
+		}
+
+		@Override
+		public void setFloat(Object entity, float value)
+		{
+			try
+			{
+				_setter.invokeExact(entity, value);
+			}
+			catch (Throwable e)
+			{
+				throw wrap(e);
+			}
+		}
+
+		@Override
+		public Object get(Object entity)
+		{
+			return getFloat(entity);
+		}
+
+		@Override
+		public void set(Object entity, Object value)
+		{
+			if (value == null)
+			{
+				throw nullValue();
+			}
+			setFloat(entity, ((Number) value).floatValue());
+		}
+
+		@Override
+		public boolean isSame(Object entity, Object clone)
+		{
+			return Float.floatToIntBits(getFloat(entity)) == Float.floatToIntBits(getFloat(clone));
+		}
+
+		@Override
+		public void copy(Object entity, Object clone)
+		{
+			setFloat(clone, getFloat(entity));
+		}
+	}
+
+	static final class ShortAccessor extends FieldAccessor
+	{
+		private final MethodHandle _getter;
+		private final MethodHandle _setter;
+
+		ShortAccessor(Field field, MethodHandle getter, MethodHandle setter)
+		{
+			super(field);
+			_getter = getter.asType(MethodType.methodType(short.class, Object.class));
+			_setter = setter.asType(MethodType.methodType(void.class, Object.class, short.class));
+		}
+
+		@Override
+		public short getShort(Object entity)
+		{
+			try
+			{
+				return (short) _getter.invokeExact(entity);
+			}
+			catch (Throwable e)
+			{
+				throw wrap(e);
+			}
+		}
+
+		@Override
+		public void setShort(Object entity, short value)
+		{
+			try
+			{
+				_setter.invokeExact(entity, value);
+			}
+			catch (Throwable e)
+			{
+				throw wrap(e);
+			}
+		}
+
+		@Override
+		public Object get(Object entity)
+		{
+			return getShort(entity);
+		}
+
+		@Override
+		public void set(Object entity, Object value)
+		{
+			if (value == null)
+			{
+				throw nullValue();
+			}
+			setShort(entity, ((Number) value).shortValue());
+		}
+
+		@Override
+		public boolean isSame(Object entity, Object clone)
+		{
+			return getShort(entity) == getShort(clone);
+		}
+
+		@Override
+		public void copy(Object entity, Object clone)
+		{
+			setShort(clone, getShort(entity));
+		}
+	}
+
+	static final class ByteAccessor extends FieldAccessor
+	{
+		private final MethodHandle _getter;
+		private final MethodHandle _setter;
+
+		ByteAccessor(Field field, MethodHandle getter, MethodHandle setter)
+		{
+			super(field);
+			_getter = getter.asType(MethodType.methodType(byte.class, Object.class));
+			_setter = setter.asType(MethodType.methodType(void.class, Object.class, byte.class));
+		}
+
+		@Override
+		public byte getByte(Object entity)
+		{
+			try
+			{
+				return (byte) _getter.invokeExact(entity);
+			}
+			catch (Throwable e)
+			{
+				throw wrap(e);
+			}
+		}
+
+		@Override
+		public void setByte(Object entity, byte value)
+		{
+			try
+			{
+				_setter.invokeExact(entity, value);
+			}
+			catch (Throwable e)
+			{
+				throw wrap(e);
+			}
+		}
+
+		@Override
+		public Object get(Object entity)
+		{
+			return getByte(entity);
+		}
+
+		@Override
+		public void set(Object entity, Object value)
+		{
+			if (value == null)
+			{
+				throw nullValue();
+			}
+			setByte(entity, ((Number) value).byteValue());
+		}
+
+		@Override
+		public boolean isSame(Object entity, Object clone)
+		{
+			return getByte(entity) == getByte(clone);
+		}
+
+		@Override
+		public void copy(Object entity, Object clone)
+		{
+			setByte(clone, getByte(entity));
+		}
+	}
+
+	static final class CharAccessor extends FieldAccessor
+	{
+		private final MethodHandle _getter;
+		private final MethodHandle _setter;
+
+		CharAccessor(Field field, MethodHandle getter, MethodHandle setter)
+		{
+			super(field);
+			_getter = getter.asType(MethodType.methodType(char.class, Object.class));
+			_setter = setter.asType(MethodType.methodType(void.class, Object.class, char.class));
+		}
+
+		public char getChar(Object entity)
+		{
+			try
+			{
+				return (char) _getter.invokeExact(entity);
+			}
+			catch (Throwable e)
+			{
+				throw wrap(e);
+			}
+		}
+
+		public void setChar(Object entity, char value)
+		{
+			try
+			{
+				_setter.invokeExact(entity, value);
+			}
+			catch (Throwable e)
+			{
+				throw wrap(e);
+			}
+		}
+
+		@Override
+		public Object get(Object entity)
+		{
+			return getChar(entity);
+		}
+
+		@Override
+		public void set(Object entity, Object value)
+		{
+			if (value == null)
+			{
+				throw nullValue();
+			}
+			setChar(entity, (Character) value);
+		}
+
+		@Override
+		public boolean isSame(Object entity, Object clone)
+		{
+			return getChar(entity) == getChar(clone);
+		}
+
+		@Override
+		public void copy(Object entity, Object clone)
+		{
+			setChar(clone, getChar(entity));
+		}
+	}
+}
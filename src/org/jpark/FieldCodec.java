@@ -0,0 +1,964 @@
+package org.jpark;
+
+import org.jpark.helper.ClassConstants;
+
+import java.io.CharArrayReader;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Map;
+
+/**
+ * кодек поля: знает java тип, jdbc тип и маппинг енама поля
+ * выбирается один раз при построении дескриптора, поэтому бинд параметра и чтение колонки
+ * это один мономорфный вызов без цепочки instanceof из {@link DatabasePlatform}
+ * для примитивных полей {@link #bindFrom} и {@link #readInto} работают без боксинга
+ */
+public abstract class FieldCodec
+{
+	/**
+	 * целые по модулю не больше этих точно представимы в double и float
+	 */
+	private static final long MAX_EXACT_DOUBLE = 1L << 53;
+	private static final long MAX_EXACT_FLOAT = 1L << 24;
+
+	protected final FieldAccessor _accessor;
+
+	/**
+	 * jdbc тип для записи null
+	 */
+	protected final int _jdbcType;
+
+	/**
+	 * тип значения, которое принимает {@link #bind} (для примитивов - обертка)
+	 */
+	protected final Class<?> _valueType;
+
+	protected FieldCodec(DatabaseField field)
+	{
+		_accessor = field.getAccessor();
+		_jdbcType = DatabasePlatform.getJDBCType(field);
+		final Class<?> type = field.getType();
+		_valueType = type.isPrimitive() ? MethodType.methodType(type).wrap().returnType() : type;
+	}
+
+	/**
+	 * подобрать кодек под тип поля
+	 */
+	public static FieldCodec build(DatabaseField field)
+	{
+		final Class<?> type = field.getType();
+		final boolean primitive = type.isPrimitive();
+
+		if (field.isEnum())
+		{
+			return new EnumCodec(field);
+		}
+		else if (type == ClassConstants.STRING)
+		{
+			return new StringCodec(field);
+		}
+		else if (type == ClassConstants.PINT || type == ClassConstants.INTEGER)
+		{
+			return new IntCodec(field, primitive);
+		}
+		else if (type == ClassConstants.PLONG || type == ClassConstants.LONG)
+		{
+			return new LongCodec(field, primitive);
+		}
+		else if (type == ClassConstants.PBOOLEAN || type == ClassConstants.BOOLEAN)
+		{
+			return new BooleanCodec(field, primitive);
+		}
+		else if (type == ClassConstants.PDOUBLE || type == ClassConstants.DOUBLE)
+		{
+			return new DoubleCodec(field, primitive);
+		}
+		else if (type == ClassConstants.PFLOAT || type == ClassConstants.FLOAT)
+		{
+			return new FloatCodec(field, primitive);
+		}
+		else if (type == ClassConstants.PSHORT || type == ClassConstants.SHORT)
+		{
+			return new ShortCodec(field, primitive);
+		}
+		else if (type == ClassConstants.PBYTE || type == ClassConstants.BYTE)
+		{
+			return new ByteCodec(field, primitive);
+		}
+		else if (type == ClassConstants.BIGDECIMAL)
+		{
+			return new BigDecimalCodec(field);
+		}
+		else if (type == ClassConstants.TIMESTAMP)
+		{
+			return new TimestampCodec(field);
+		}
+		else if (type == ClassConstants.SQLDATE)
+		{
+			return new DateCodec(field);
+		}
+		else if (type == ClassConstants.TIME)
+		{
+			return new TimeCodec(field);
+		}
+		else if (type == ClassConstants.TIME_LDATE)
+		{
+			return new LocalDateCodec(field);
+		}
+		else if (type == ClassConstants.TIME_LDATETIME)
+		{
+			return new LocalDateTimeCodec(field);
+		}
+		else if (type == ClassConstants.APBYTE)
+		{
+			return new BytesCodec(field);
+		}
+		// все остальное через универсальную конвертацию платформы
+		return new GenericCodec(field);
+	}
+
+	/**
+	 * записать значение в параметр запроса
+	 */
+	public abstract void bind(PreparedStatement ps, int index, Object value) throws SQLException;
+
+	/**
+	 * прочитать значение колонки
+	 */
+	public abstract Object read(ResultSet rs, int column) throws SQLException;
+
+	/**
+	 * записать в параметр запроса значение поля сущности
+	 */
+	public void bindFrom(PreparedStatement ps, int index, Object entity) throws SQLException
+	{
+		bind(ps, index, _accessor.get(entity));
+	}
+
+	/**
+	 * прочитать колонку прямо в поле сущности
+	 */
+	public void readInto(ResultSet rs, int column, Object entity) throws SQLException
+	{
+		_accessor.set(entity, read(rs, column));
+	}
+
+	/**
+	 * прочитать колонку в поле сущности, когда jdbc тип колонки уже известен из плана чтения
+	 */
+	public void readInto(ResultSet rs, int column, int sqlType, Object entity) throws SQLException
+	{
+		readInto(rs, column, entity);
+	}
+
+	/**
+	 * записать в параметр значение, пришедшее снаружи, а не из поля сущности (ид в findById, removeById и т.п.)
+	 * тип такого значения может не совпадать с типом поля, например ид строкой или long вне диапазона int поля.
+	 * его биндим через универсальную конвертацию платформы без сужения, как до появления кодеков
+	 */
+	public void bindKey(PreparedStatement ps, int index, Object value) throws SQLException
+	{
+		if (value == null || accepts(value))
+		{
+			bind(ps, index, value);
+		}
+		else
+		{
+			DatabasePlatform.setParameterValue(value, ps, index);
+		}
+	}
+
+	/**
+	 * может ли {@link #bind} записать это значение без приведения и без потери точности
+	 */
+	protected boolean accepts(Object value)
+	{
+		return _valueType.isInstance(value);
+	}
+
+	/**
+	 * целое значение (Integer, Long, Short, Byte) в пределах [min, max]
+	 * значение вне пределов поля нельзя сужать через intValue() и т.п.: ид 4294967297L превратится в 1 и найдет чужую строку
+	 */
+	protected static boolean isIntegralWithin(Object value, long min, long max)
+	{
+		if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+		{
+			final long v = ((Number) value).longValue();
+			return v >= min && v <= max;
+		}
+		return false;
+	}
+
+	/**
+	 * NULL колонки в примитивное поле не пишем нулем, а бросаем ошибку, как и {@link FieldAccessor#set}
+	 */
+	protected IllegalArgumentException nullColumn()
+	{
+		return new IllegalArgumentException("Null value for primitive field <" + _accessor.getField().getName() + ">");
+	}
+
+	protected void bindNull(PreparedStatement ps, int index) throws SQLException
+	{
+		ps.setNull(index, _jdbcType);
+	}
+
+	static final class GenericCodec extends FieldCodec
+	{
+		private final DatabaseField _field;
+
+		GenericCodec(DatabaseField field)
+		{
+			super(field);
+			_field = field;
+		}
+
+		@Override
+		public void bind(PreparedStatement ps, int index, Object value) throws SQLException
+		{
+			DatabasePlatform.setParameterValue(value, ps, index);
+		}
+
+		@Override
+		public Object read(ResultSet rs, int column) throws SQLException
+		{
+			return DatabasePlatform.getObjectThroughOptimizedDataConversion(rs, _field, column);
+		}
+
+		@Override
+		public void readInto(ResultSet rs, int column, int sqlType, Object entity) throws SQLException
+		{
+			_accessor.set(entity, DatabasePlatform.getObjectThroughOptimizedDataConversion(rs, _field, column, sqlType));
+		}
+	}
+
+	static final class StringCodec extends FieldCodec
+	{
+		StringCodec(DatabaseField field)
+		{
+			super(field);
+		}
+
+		@Override
+		public void bind(PreparedStatement ps, int index, Object value) throws SQLException
+		{
+			if (value == null)
+			{
+				bindNull(ps, index);
+				return;
+			}
+			final String s = (String) value;
+			// большие строки биндим стримом
+			if (s.length() > DatabasePlatform.STRING_BINDING_SIZE)
+			{
+				ps.setCharacterStream(index, new CharArrayReader(s.toCharArray()), s.length());
+			}
+			else
+			{
+				ps.setString(index, s);
+			}
+		}
+
+		@Override
+		public Object read(ResultSet rs, int column) throws SQLException
+		{
+			return rs.getString(column);
+		}
+	}
+
+	static final class EnumCodec extends FieldCodec
+	{
+		private final Map<String, Object> _constants;
+
+		EnumCodec(DatabaseField field)
+		{
+			super(field);
+			_constants = field.getEnumConstants();
+		}
+
+		@Override
+		public void bind(PreparedStatement ps, int index, Object value) throws SQLException
+		{
+			if (value == null)
+			{
+				bindNull(ps, index);
+			}
+			else
+			{
+				ps.setString(index, ((Enum<?>) value).name());
+			}
+		}
+
+		@Override
+		public Object read(ResultSet rs, int column) throws SQLException
+		{
+			final String name = rs.getString(column);
+			return name == null ? null : _constants.get(name);
+		}
+	}
+
+	static final class IntCodec extends FieldCodec
+	{
+		private final boolean _primitive;
+
+		IntCodec(DatabaseField field, boolean primitive)
+		{
+			super(field);
+			_primitive = primitive;
+		}
+
+		@Override
+		public void bind(PreparedStatement ps, int index, Object value) throws SQLException
+		{
+			if (value == null)
+			{
+				bindNull(ps, index);
+			}
+			else
+			{
+				ps.setInt(index, ((Number) value).intValue());
+			}
+		}
+
+		@Override
+		protected boolean accepts(Object value)
+		{
+			return isIntegralWithin(value, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		}
+
+		@Override
+		public Object read(ResultSet rs, int column) throws SQLException
+		{
+			final int value = rs.getInt(column);
+			return value == 0 && rs.wasNull() ? null : value;
+		}
+
+		@Override
+		public void bindFrom(PreparedStatement ps, int index, Object entity) throws SQLException
+		{
+			if (_primitive)
+			{
+				ps.setInt(index, _accessor.getInt(entity));
+			}
+			else
+			{
+				super.bindFrom(ps, index, entity);
+			}
+		}
+
+		@Override
+		public void readInto(ResultSet rs, int column, Object entity) throws SQLException
+		{
+			if (_primitive)
+			{
+				final int value = rs.getInt(column);
+				if (value == 0 && rs.wasNull())
+				{
+					throw nullColumn();
+				}
+				_accessor.setInt(entity, value);
+			}
+			else
+			{
+				super.readInto(rs, column, entity);
+			}
+		}
+	}
+
+	static final class LongCodec extends FieldCodec
+	{
+		private final boolean _primitive;
+
+		LongCodec(DatabaseField field, boolean primitive)
+		{
+			super(field);
+			_primitive = primitive;
+		}
+
+		@Override
+		public void bind(PreparedStatement ps, int index, Object value) throws SQLException
+		{
+			if (value == null)
+			{
+				bindNull(ps, index);
+			}
+			else
+			{
+				ps.setLong(index, ((Number) value).longValue());
+			}
+		}
+
+		@Override
+		protected boolean accepts(Object value)
+		{
+			return isIntegralWithin(value, Long.MIN_VALUE, Long.MAX_VALUE);
+		}
+
+		@Override
+		public Object read(ResultSet rs, int column) throws SQLException
+		{
+			final long value = rs.getLong(column);
+			return value == 0L && rs.wasNull() ? null : value;
+		}
+
+		@Override
+		public void bindFrom(PreparedStatement ps, int index, Object entity) throws SQLException
+		{
+			if (_primitive)
+			{
+				ps.setLong(index, _accessor.getLong(entity));
+			}
+			else
+			{
+				super.bindFrom(ps, index, entity);
+			}
+		}
+
+		@Override
+		public void readInto(ResultSet rs, int column, Object entity) throws SQLException
+		{
+			if (_primitive)
+			{
+				final long value = rs.getLong(column);
+				if (value == 0L && rs.wasNull())
+				{
+					throw nullColumn();
+				}
+				_accessor.setLong(entity, value);
+			}
+			else
+			{
+				super.readInto(rs, column, entity);
+			}
+		}
+	}
+
+	static final class BooleanCodec extends FieldCodec
+	{
+		private final boolean _primitive;
+
+		BooleanCodec(DatabaseField field, boolean primitive)
+		{
+			super(field);
+			_primitive = primitive;
+		}
+
+		@Override
+		public void bind(PreparedStatement ps, int index, Object value) throws SQLException
+		{
+			if (value == null)
+			{
+				bindNull(ps, index);
+			}
+			else
+			{
+				ps.setBoolean(index, (Boolean) value);
+			}
+		}
+
+		@Override
+		public Object read(ResultSet rs, int column) throws SQLException
+		{
+			final byte value = rs.getByte(column);
+			return value == 0 && rs.wasNull() ? null : value == 1;
+		}
+
+		@Override
+		public void bindFrom(PreparedStatement ps, int index, Object entity) throws SQLException
+		{
+			if (_primitive)
+			{
+				ps.setBoolean(index, _accessor.getBoolean(entity));
+			}
+			else
+			{
+				super.bindFrom(ps, index, entity);
+			}
+		}
+
+		@Override
+		public void readInto(ResultSet rs, int column, Object entity) throws SQLException
+		{
+			if (_primitive)
+			{
+				final byte value = rs.getByte(column);
+				if (value == 0 && rs.wasNull())
+				{
+					throw nullColumn();
+				}
+				_accessor.setBoolean(entity, value == 1);
+			}
+			else
+			{
+				super.readInto(rs, column, entity);
+			}
+		}
+	}
+
+	static final class DoubleCodec extends FieldCodec
+	{
+		private final boolean _primitive;
+
+		DoubleCodec(DatabaseField field, boolean primitive)
+		{
+			super(field);
+			_primitive = primitive;
+		}
+
+		@Override
+		public void bind(PreparedStatement ps, int index, Object value) throws SQLException
+		{
+			if (value == null)
+			{
+				bindNull(ps, index);
+			}
+			else
+			{
+				ps.setDouble(index, ((Number) value).doubleValue());
+			}
+		}
+
+		@Override
+		protected boolean accepts(Object value)
+		{
+			return value instanceof Double || value instanceof Float || isIntegralWithin(value, -MAX_EXACT_DOUBLE, MAX_EXACT_DOUBLE);
+		}
+
+		@Override
+		public Object read(ResultSet rs, int column) throws SQLException
+		{
+			final double value = rs.getDouble(column);
+			return value == 0d && rs.wasNull() ? null : value;
+		}
+
+		@Override
+		public void bindFrom(PreparedStatement ps, int index, Object entity) throws SQLException
+		{
+			if (_primitive)
+			{
+				ps.setDouble(index, _accessor.getDouble(entity));
+			}
+			else
+			{
+				super.bindFrom(ps, index, entity);
+			}
+		}
+
+		@Override
+		public void readInto(ResultSet rs, int column, Object entity) throws SQLException
+		{
+			if (_primitive)
+			{
+				final double value = rs.getDouble(column);
+				if (value == 0d && rs.wasNull())
+				{
+					throw nullColumn();
+				}
+				_accessor.setDouble(entity, value);
+			}
+			else
+			{
+				super.readInto(rs, column, entity);
+			}
+		}
+	}
+
+	static final class FloatCodec extends FieldCodec
+	{
+		private final boolean _primitive;
+
+		FloatCodec(DatabaseField field, boolean primitive)
+		{
+			super(field);
+			_primitive = primitive;
+		}
+
+		@Override
+		public void bind(PreparedStatement ps, int index, Object value) throws SQLException
+		{
+			if (value == null)
+			{
+				bindNull(ps, index);
+			}
+			else
+			{
+				ps.setFloat(index, ((Number) value).floatValue());
+			}
+		}
+
+		@Override
+		protected boolean accepts(Object value)
+		{
+			return value instanceof Float || isIntegralWithin(value, -MAX_EXACT_FLOAT, MAX_EXACT_FLOAT);
+		}
+
+		@Override
+		public Object read(ResultSet rs, int column) throws SQLException
+		{
+			final float value = rs.getFloat(column);
+			return value == 0f && rs.wasNull() ? null : value;
+		}
+
+		@Override
+		public void bindFrom(PreparedStatement ps, int index, Object entity) throws SQLException
+		{
+			if (_primitive)
+			{
+				ps.setFloat(index, _accessor.getFloat(entity));
+			}
+			else
+			{
+				super.bindFrom(ps, index, entity);
+			}
+		}
+
+		@Override
+		public void readInto(ResultSet rs, int column, Object entity) throws SQLException
+		{
+			if (_primitive)
+			{
+				final float value = rs.getFloat(column);
+				if (value == 0f && rs.wasNull())
+				{
+					throw nullColumn();
+				}
+				_accessor.setFloat(entity, value);
+			}
+			else
+			{
+				super.readInto(rs, column, entity);
+			}
+		}
+	}
+
+	static final class ShortCodec extends FieldCodec
+	{
+		private final boolean _primitive;
+
+		ShortCodec(DatabaseField field, boolean primitive)
+		{
+			super(field);
+			_primitive = primitive;
+		}
+
+		@Override
+		public void bind(PreparedStatement ps, int index, Object value) throws SQLException
+		{
+			if (value == null)
+			{
+				bindNull(ps, index);
+			}
+			else
+			{
+				ps.setShort(index, ((Number) value).shortValue());
+			}
+		}
+
+		@Override
+		protected boolean accepts(Object value)
+		{
+			return isIntegralWithin(value, Short.MIN_VALUE, Short.MAX_VALUE);
+		}
+
+		@Override
+		public Object read(ResultSet rs, int column) throws SQLException
+		{
+			final short value = rs.getShort(column);
+			return value == 0 && rs.wasNull() ? null : value;
+		}
+
+		@Override
+		public void bindFrom(PreparedStatement ps, int index, Object entity) throws SQLException
+		{
+			if (_primitive)
+			{
+				ps.setShort(index, _accessor.getShort(entity));
+			}
+			else
+			{
+				super.bindFrom(ps, index, entity);
+			}
+		}
+
+		@Override
+		public void readInto(ResultSet rs, int column, Object entity) throws SQLException
+		{
+			if (_primitive)
+			{
+				final short value = rs.getShort(column);
+				if (value == 0 && rs.wasNull())
+				{
+					throw nullColumn();
+				}
+				_accessor.setShort(entity, value);
+			}
+			else
+			{
+				super.readInto(rs, column, entity);
+			}
+		}
+	}
+
+	static final class ByteCodec extends FieldCodec
+	{
+		private final boolean _primitive;
+
+		ByteCodec(DatabaseField field, boolean primitive)
+		{
+			super(field);
+			_primitive = primitive;
+		}
+
+		@Override
+		public void bind(PreparedStatement ps, int index, Object value) throws SQLException
+		{
+			if (value == null)
+			{
+				bindNull(ps, index);
+			}
+			else
+			{
+				ps.setByte(index, ((Number) value).byteValue());
+			}
+		}
+
+		@Override
+		protected boolean accepts(Object value)
+		{
+			return isIntegralWithin(value, Byte.MIN_VALUE, Byte.MAX_VALUE);
+		}
+
+		@Override
+		public Object read(ResultSet rs, int column) throws SQLException
+		{
+			final byte value = rs.getByte(column);
+			return value == 0 && rs.wasNull() ? null : value;
+		}
+
+		@Override
+		public void bindFrom(PreparedStatement ps, int index, Object entity) throws SQLException
+		{
+			if (_primitive)
+			{
+				ps.setByte(index, _accessor.getByte(entity));
+			}
+			else
+			{
+				super.bindFrom(ps, index, entity);
+			}
+		}
+
+		@Override
+		public void readInto(ResultSet rs, int column, Object entity) throws SQLException
+		{
+			if (_primitive)
+			{
+				final byte value = rs.getByte(column);
+				if (value == 0 && rs.wasNull())
+				{
+					throw nullColumn();
+				}
+				_accessor.setByte(entity, value);
+			}
+			else
+			{
+				super.readInto(rs, column, entity);
+			}
+		}
+	}
+
+	static final class BigDecimalCodec extends FieldCodec
+	{
+		BigDecimalCodec(DatabaseField field)
+		{
+			super(field);
+		}
+
+		@Override
+		public void bind(PreparedStatement ps, int index, Object value) throws SQLException
+		{
+			if (value == null)
+			{
+				bindNull(ps, index);
+			}
+			else
+			{
+				ps.setBigDecimal(index, (BigDecimal) value);
+			}
+		}
+
+		@Override
+		public Object read(ResultSet rs, int column) throws SQLException
+		{
+			return rs.getBigDecimal(column);
+		}
+	}
+
+	static final class TimestampCodec extends FieldCodec
+	{
+		TimestampCodec(DatabaseField field)
+		{
+			super(field);
+		}
+
+		@Override
+		public void bind(PreparedStatement ps, int index, Object value) throws SQLException
+		{
+			if (value == null)
+			{
+				bindNull(ps, index);
+			}
+			else
+			{
+				ps.setTimestamp(index, (Timestamp) value);
+			}
+		}
+
+		@Override
+		public Object read(ResultSet rs, int column) throws SQLException
+		{
+			return rs.getTimestamp(column);
+		}
+	}
+
+	static final class DateCodec extends FieldCodec
+	{
+		DateCodec(DatabaseField field)
+		{
+			super(field);
+		}
+
+		@Override
+		public void bind(PreparedStatement ps, int index, Object value) throws SQLException
+		{
+			if (value == null)
+			{
+				bindNull(ps, index);
+			}
+			else
+			{
+				ps.setDate(index, (java.sql.Date) value);
+			}
+		}
+
+		@Override
+		public Object read(ResultSet rs, int column) throws SQLException
+		{
+			return rs.getDate(column);
+		}
+	}
+
+	static final class TimeCodec extends FieldCodec
+	{
+		TimeCodec(DatabaseField field)
+		{
+			super(field);
+		}
+
+		@Override
+		public void bind(PreparedStatement ps, int index, Object value) throws SQLException
+		{
+			if (value == null)
+			{
+				bindNull(ps, index);
+			}
+			else
+			{
+				ps.setTime(index, (java.sql.Time) value);
+			}
+		}
+
+		@Override
+		public Object read(ResultSet rs, int column) throws SQLException
+		{
+			return rs.getTime(column);
+		}
+	}
+
+	static final class LocalDateCodec extends FieldCodec
+	{
+		LocalDateCodec(DatabaseField field)
+		{
+			super(field);
+		}
+
+		@Override
+		public void bind(PreparedStatement ps, int index, Object value) throws SQLException
+		{
+			if (value == null)
+			{
+				bindNull(ps, index);
+			}
+			else
+			{
+				ps.setDate(index, java.sql.Date.valueOf((java.time.LocalDate) value));
+			}
+		}
+
+		@Override
+		public Object read(ResultSet rs, int column) throws SQLException
+		{
+			final java.sql.Date dt = rs.getDate(column);
+			return dt != null ? dt.toLocalDate() : null;
+		}
+	}
+
+	static final class LocalDateTimeCodec extends FieldCodec
+	{
+		LocalDateTimeCodec(DatabaseField field)
+		{
+			super(field);
+		}
+
+		@Override
+		public void bind(PreparedStatement ps, int index, Object value) throws SQLException
+		{
+			if (value == null)
+			{
+				bindNull(ps, index);
+			}
+			else
+			{
+				ps.setTimestamp(index, Timestamp.valueOf((java.time.LocalDateTime) value));
+			}
+		}
+
+		@Override
+		public Object read(ResultSet rs, int column) throws SQLException
+		{
+			final Timestamp ts = rs.getTimestamp(column);
+			return ts != null ? ts.toLocalDateTime() : null;
+		}
+	}
+
+	static final class BytesCodec extends FieldCodec
+	{
+		BytesCodec(DatabaseField field)
+		{
+			super(field);
+		}
+
+		@Override
+		public void bind(PreparedStatement ps, int index, Object value) throws SQLException
+		{
+			if (value == null)
+			{
+				bindNull(ps, index);
+			}
+			else
+			{
+				ps.setBytes(index, (byte[]) value);
+			}
+		}
+
+		@Override
+		public Object read(ResultSet rs, int column) throws SQLException
+		{
+			return rs.getBytes(column);
+		}
+	}
+}
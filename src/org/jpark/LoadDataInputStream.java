@@ -0,0 +1,134 @@
+package org.jpark;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * поток строк для LOAD DATA LOCAL INFILE, строки сериализуются из сущностей по мере чтения драйвером
+ * в памяти держим только текущую порцию строк, временный файл не нужен
+ */
+class LoadDataInputStream extends InputStream
+{
+	/**
+	 * копим строки порцией примерно такого размера (символов) перед перекодированием в байты
+	 */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final ClassDescriptor _descriptor;
+	private final Class<?> _entityClass;
+	private final List<DatabaseField> _fields = new ArrayList<>();
+	private final Iterator<?> _entities;
+
+	private final StringBuilder _chunk = new StringBuilder(CHUNK_SIZE + 1024);
+	private byte[] _buffer = new byte[0];
+	private int _position;
+	private long _rows;
+
+	LoadDataInputStream(ClassDescriptor descriptor, Iterator<?> entities)
+	{
+		_descriptor = descriptor;
+		_entityClass = descriptor.getJavaClass();
+		for (DatabaseField field : descriptor.getFields())
+		{
+			if (field.isInsertable())
+			{
+				_fields.add(field);
+			}
+		}
+		_entities = entities;
+	}
+
+	@Override
+	public int read()
+	{
+		if (_position >= _buffer.length && !fill())
+		{
+			return -1;
+		}
+		return _buffer[_position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len)
+	{
+		if (len == 0)
+		{
+			return 0;
+		}
+		int read = 0;
+		while (read < len)
+		{
+			if (_position >= _buffer.length && !fill())
+			{
+				break;
+			}
+			final int n = Math.min(len - read, _buffer.length - _position);
+			System.arraycopy(_buffer, _position, b, off + read, n);
+			_position += n;
+			read += n;
+		}
+		return read == 0 ? -1 : read;
+	}
+
+	@Override
+	public int available()
+	{
+		return _buffer.length - _position;
+	}
+
+	/**
+	 * сериализовать следующую порцию строк
+	 * @return false если сущности кончились
+	 */
+	private boolean fill()
+	{
+		_chunk.setLength(0);
+		while (_chunk.length() < CHUNK_SIZE && _entities.hasNext())
+		{
+			appendRow(_entities.next());
+		}
+		if (_chunk.length() == 0)
+		{
+			return false;
+		}
+		_buffer = _chunk.toString().getBytes(StandardCharsets.UTF_8);
+		_position = 0;
+		return true;
+	}
+
+	private void appendRow(Object entity)
+	{
+		if (entity == null || entity.getClass() != _entityClass)
+		{
+			throw new IllegalArgumentException("Wrong entity for bulk load into " + _entityClass.getName() + ": " + entity);
+		}
+		for (int i = 0; i < _fields.size(); i++)
+		{
+			if (i > 0)
+			{
+				_chunk.append('\t');
+			}
+			final DatabaseField field = _fields.get(i);
+			Object value = field.getAccessor().get(entity);
+			if (value == null && field == _descriptor.getVersionField())
+			{
+				// новая строка начинает с нулевой версии, как и при обычном инсерте
+				value = _descriptor.initialVersion();
+			}
+			DatabasePlatform.appendLoadDataValue(_chunk, value);
+		}
+		_chunk.append('\n');
+		_rows++;
+	}
+
+	/**
+	 * сколько строк уже отдано драйверу
+	 */
+	long getRows()
+	{
+		return _rows;
+	}
+}
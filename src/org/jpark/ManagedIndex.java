@@ -0,0 +1,161 @@
+package org.jpark;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * индекс управляемых сущностей по классу и ид, чтобы не перебирать весь контекст при работе по ид
+ * (удаление по ид, частичный апдейт по ид). сущности держатся слабо, как и в мапе клонов менеджера
+ * <p>
+ * ид берется в момент взятия на управление, поэтому найденное надо сверять с текущим ид сущности
+ * и с мапой клонов: после detach или смены ид в индексе может остаться устаревшая ссылка до сборки сущности
+ * <p>
+ * под одним ид может быть несколько сущностей (каждый findById строит новую), они хранятся неизменяемым массивом,
+ * который меняется атомарно через compute, так что индекс можно звать из многих потоков
+ */
+final class ManagedIndex
+{
+	private static final EntityReference[] EMPTY = new EntityReference[0];
+
+	private final Map<ClassDescriptor, Map<Object, EntityReference[]>> _index = new ConcurrentHashMap<>();
+
+	/**
+	 * ссылки на собранные GC сущности, по ним вычищаем ид из индекса
+	 */
+	private final ReferenceQueue<Object> _queue = new ReferenceQueue<>();
+
+	void add(ClassDescriptor descriptor, Object id, Object entity)
+	{
+		expunge();
+		_index.computeIfAbsent(descriptor, d -> new ConcurrentHashMap<>()).compute(id, (key, refs) ->
+		{
+			final List<EntityReference> live = live(refs, null);
+			for (EntityReference ref : live)
+			{
+				if (ref.get() == entity)
+				{
+					return refs;
+				}
+			}
+			live.add(new EntityReference(entity, descriptor, key, _queue));
+			return live.toArray(EMPTY);
+		});
+	}
+
+	void remove(ClassDescriptor descriptor, Object id, Object entity)
+	{
+		final Map<Object, EntityReference[]> ids = _index.get(descriptor);
+		if (ids != null)
+		{
+			ids.computeIfPresent(id, (key, refs) -> compact(live(refs, entity)));
+		}
+	}
+
+	/**
+	 * сущности, взятые на управление с этим ид
+	 */
+	List<Object> get(ClassDescriptor descriptor, Object id)
+	{
+		final Map<Object, EntityReference[]> ids = _index.get(descriptor);
+		final EntityReference[] refs = ids == null ? null : ids.get(id);
+		if (refs == null)
+		{
+			return Collections.emptyList();
+		}
+		final List<Object> result = new ArrayList<>(refs.length);
+		for (EntityReference ref : refs)
+		{
+			final Object entity = ref.get();
+			if (entity != null)
+			{
+				result.add(entity);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * сколько ид сейчас в индексе по всем классам
+	 */
+	int size()
+	{
+		int size = 0;
+		for (Map<Object, EntityReference[]> ids : _index.values())
+		{
+			size += ids.size();
+		}
+		return size;
+	}
+
+	void clear()
+	{
+		_index.clear();
+		while (_queue.poll() != null)
+		{
+		}
+	}
+
+	/**
+	 * убрать из индекса ид сущностей, собранных GC
+	 */
+	private void expunge()
+	{
+		Reference<?> reference;
+		while ((reference = _queue.poll()) != null)
+		{
+			final EntityReference stale = (EntityReference) reference;
+			final Map<Object, EntityReference[]> ids = _index.get(stale._descriptor);
+			if (ids != null)
+			{
+				ids.computeIfPresent(stale._id, (key, refs) -> compact(live(refs, null)));
+			}
+		}
+	}
+
+	/**
+	 * живые ссылки массива без ссылки на excluded
+	 */
+	private static List<EntityReference> live(EntityReference[] refs, Object excluded)
+	{
+		final List<EntityReference> result = new ArrayList<>(refs == null ? 1 : refs.length + 1);
+		if (refs != null)
+		{
+			for (EntityReference ref : refs)
+			{
+				final Object entity = ref.get();
+				if (entity != null && entity != excluded)
+				{
+					result.add(ref);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * null убирает ид из индекса целиком
+	 */
+	private static EntityReference[] compact(List<EntityReference> refs)
+	{
+		return refs.isEmpty() ? null : refs.toArray(EMPTY);
+	}
+
+	private static final class EntityReference extends WeakReference<Object>
+	{
+		private final ClassDescriptor _descriptor;
+		private final Object _id;
+
+		EntityReference(Object entity, ClassDescriptor descriptor, Object id, ReferenceQueue<Object> queue)
+		{
+			super(entity, queue);
+			_descriptor = descriptor;
+			_id = id;
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package org.jpark;
+
+/**
+ * как {@link EntityManager#merge} поступает со строкой, если такой ключ (первичный или уникальный) уже есть в таблице
+ */
+public enum MergeMode
+{
+	/**
+	 * INSERT ... ON DUPLICATE KEY UPDATE: обновить в существующей строке вставляемые и обновляемые колонки
+	 */
+	UPDATE,
+
+	/**
+	 * INSERT IGNORE: существующую строку не трогать
+	 */
+	IGNORE,
+
+	/**
+	 * REPLACE: удалить существующую строку и вставить новую, не вставляемые колонки получат значения по умолчанию
+	 */
+	REPLACE
+}
@@ -0,0 +1,175 @@
+package org.jpark;
+
+import java.sql.Connection;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * поиск сущностей только для чтения
+ * те же запросы что и в {@link EntityManager}, но сущности не берутся на управление:
+ * не строятся клоны и ничего не пишется в мапу управляемых сущностей
+ * подходит для отображения данных (топы, списки), где сущности не будут сохраняться
+ */
+public class ReadOnlyQueries
+{
+	private final EntityManager _entityManager;
+
+	ReadOnlyQueries(EntityManager entityManager)
+	{
+		_entityManager = entityManager;
+	}
+
+	public <T> T findById(Class<T> entityClass, Object primaryKeyValue)
+	{
+		final Connection connection = _entityManager.acquireConnection();
+		try
+		{
+			return findById(entityClass, connection, primaryKeyValue);
+		}
+		finally
+		{
+			_entityManager.releaseConnection(connection);
+		}
+	}
+
+	public <T> T findById(Class<T> entityClass, Connection connection, Object primaryKeyValue)
+	{
+		return _entityManager.findById(entityClass, connection, primaryKeyValue, false);
+	}
+
+	public <T> List<T> findAllById(Class<T> entityClass, Collection<?> primaryKeyValues)
+	{
+		return findAllById(entityClass, primaryKeyValues, null);
+	}
+
+	public <T> List<T> findAllById(Class<T> entityClass, Collection<?> primaryKeyValues, Consumer<Object> missing)
+	{
+		final Connection connection = _entityManager.acquireConnection();
+		try
+		{
+			return findAllById(entityClass, connection, primaryKeyValues, missing);
+		}
+		finally
+		{
+			_entityManager.releaseConnection(connection);
+		}
+	}
+
+	public <T> List<T> findAllById(Class<T> entityClass, Connection connection, Collection<?> primaryKeyValues)
+	{
+		return findAllById(entityClass, connection, primaryKeyValues, null);
+	}
+
+	public <T> List<T> findAllById(Class<T> entityClass, Connection connection, Collection<?> primaryKeyValues, Consumer<Object> missing)
+	{
+		return _entityManager.findAllById(entityClass, connection, primaryKeyValues, missing, false);
+	}
+
+	public <T> T findOne(Class<T> entityClass, String field, Object primaryKeyValue)
+	{
+		final Connection connection = _entityManager.acquireConnection();
+		try
+		{
+			return findOne(entityClass, connection, field, primaryKeyValue);
+		}
+		finally
+		{
+			_entityManager.releaseConnection(connection);
+		}
+	}
+
+	public <T> T findOne(Class<T> entityClass, Connection connection, String field, Object primaryKeyValue)
+	{
+		return _entityManager.findOne(entityClass, connection, field, primaryKeyValue, false);
+	}
+
+	public <T> List<T> findAll(Class<T> entityClass, String sql, Object... params)
+	{
+		final Connection connection = _entityManager.acquireConnection();
+		try
+		{
+			return findAll(entityClass, connection, sql, params);
+		}
+		finally
+		{
+			_entityManager.releaseConnection(connection);
+		}
+	}
+
+	public <T> List<T> findAll(Class<T> entityClass, Connection connection, String sql, Object... params)
+	{
+		return _entityManager.findAll(entityClass, connection, false, sql, params);
+	}
+
+	public <T> List<T> findAllCached(Class<T> entityClass, String sql, Object... params)
+	{
+		final Connection connection = _entityManager.acquireConnection();
+		try
+		{
+			return findAllCached(entityClass, connection, sql, params);
+		}
+		finally
+		{
+			_entityManager.releaseConnection(connection);
+		}
+	}
+
+	public <T> List<T> findAllCached(Class<T> entityClass, Connection connection, String sql, Object... params)
+	{
+		return _entityManager.findAllCached(entityClass, connection, false, sql, params);
+	}
+
+	public <T> void forEach(Class<T> entityClass, String sql, Consumer<? super T> consumer, Object... params)
+	{
+		try (Stream<T> stream = stream(entityClass, sql, params))
+		{
+			stream.forEach(consumer);
+		}
+	}
+
+	/**
+	 * потоковое чтение без регистрации сущностей, см {@link EntityManager#stream(Class, String, Object...)}
+	 */
+	public <T> Stream<T> stream(Class<T> entityClass, String sql, Object... params)
+	{
+		final Connection connection = _entityManager.acquireConnection();
+		try
+		{
+			return _entityManager.openStream(entityClass, connection, !_entityManager.isScopeConnection(connection), false, sql, params);
+		}
+		catch (RuntimeException e)
+		{
+			_entityManager.releaseConnection(connection);
+			throw e;
+		}
+	}
+
+	public <T> Stream<T> stream(Class<T> entityClass, Connection connection, String sql, Object... params)
+	{
+		return _entityManager.openStream(entityClass, connection, false, false, sql, params);
+	}
+
+	/**
+	 * перечитать поля сущности из базы, сущность не обязана быть управляемой
+	 * если сущность все же управляемая - ее клон тоже обновится
+	 */
+	public void refresh(Object entity)
+	{
+		final Connection connection = _entityManager.acquireConnection();
+		try
+		{
+			refresh(entity, connection);
+		}
+		finally
+		{
+			_entityManager.releaseConnection(connection);
+		}
+	}
+
+	public void refresh(Object entity, Connection connection)
+	{
+		_entityManager.refresh(entity, connection, false);
+	}
+}
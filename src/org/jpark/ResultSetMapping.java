@@ -0,0 +1,74 @@
+package org.jpark;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * план чтения строки результата в сущность
+ * номера и jdbc типы колонок для полей дескриптора, определяются по метаданным один раз на SQL запрос
+ */
+public final class ResultSetMapping
+{
+	/**
+	 * номер колонки в результате для каждого поля из {@link ClassDescriptor#getFields()}
+	 */
+	private final int[] _columns;
+
+	/**
+	 * jdbc тип колонки для каждого поля
+	 */
+	private final int[] _types;
+
+	private ResultSetMapping(int[] columns, int[] types)
+	{
+		_columns = columns;
+		_types = types;
+	}
+
+	/**
+	 * построить план по метаданным результата
+	 * колонки ищутся по имени без учета регистра, как в {@link ResultSet#findColumn(String)}
+	 */
+	public static ResultSetMapping build(List<DatabaseField> fields, ResultSet resultSet) throws SQLException
+	{
+		final ResultSetMetaData metaData = resultSet.getMetaData();
+		final int count = metaData.getColumnCount();
+
+		// имя колонки -> номер, при дублях берем первую как findColumn
+		Map<String, Integer> byName = new HashMap<>(count * 2);
+		for (int c = count; c >= 1; c--)
+		{
+			byName.put(metaData.getColumnLabel(c).toLowerCase(Locale.ROOT), c);
+		}
+
+		final int[] columns = new int[fields.size()];
+		final int[] types = new int[fields.size()];
+		for (int i = 0; i < fields.size(); i++)
+		{
+			final String name = fields.get(i).getName();
+			final Integer column = byName.get(name.toLowerCase(Locale.ROOT));
+			if (column == null)
+			{
+				throw new SQLException("Column <" + name + "> not found in result set");
+			}
+			columns[i] = column;
+			types[i] = metaData.getColumnType(column);
+		}
+		return new ResultSetMapping(columns, types);
+	}
+
+	public int getColumn(int fieldIndex)
+	{
+		return _columns[fieldIndex];
+	}
+
+	public int getType(int fieldIndex)
+	{
+		return _types[fieldIndex];
+	}
+}
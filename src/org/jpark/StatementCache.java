@@ -0,0 +1,299 @@
+package org.jpark;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * кэш подготовленных запросов по коннекту и тексту SQL
+ * на каждый коннект держим LRU не больше maxSize запросов, вытесненные запросы закрываются
+ * запрос выдается в монопольное пользование ({@link CachedStatement}) и возвращается в кэш при закрытии,
+ * поэтому вложенные запросы с тем же SQL на том же коннекте получат разные стейтменты
+ * имеет смысл вместе с пулом коннектов, на новом коннекте кэш всегда промахивается
+ * пул выдает коннект каждый раз в новой обертке, поэтому кэш держим по физическому коннекту ({@link Connection#unwrap})
+ */
+public class StatementCache
+{
+	private static final Logger _log = LoggerFactory.getLogger(StatementCache.class.getName());
+
+	private final int _maxSize;
+
+	/**
+	 * коннект -> LRU свободных запросов этого коннекта
+	 * слабые ключи тут не помогут: стейтменты в значениях держат свой коннект,
+	 * поэтому закрытые коннекты вычищаем сами при появлении нового коннекта
+	 */
+	private final Map<Connection, LinkedHashMap<StatementKey, PreparedStatement>> _statements = new IdentityHashMap<>();
+
+	/**
+	 * лок только на операции с картами, вызовы JDBC под ним не делаем
+	 */
+	private final ReentrantLock _lock = new ReentrantLock();
+
+	private final LongAdder _hits = new LongAdder();
+	private final LongAdder _misses = new LongAdder();
+	private final LongAdder _evictions = new LongAdder();
+
+	/**
+	 * @param maxSize сколько запросов держим на один коннект
+	 */
+	public StatementCache(int maxSize)
+	{
+		if (maxSize <= 0)
+		{
+			throw new IllegalArgumentException("Wrong statement cache size: " + maxSize);
+		}
+		_maxSize = maxSize;
+	}
+
+	/**
+	 * взять подготовленный запрос из кэша или подготовить новый
+	 * @param returnGeneratedKeys подготовить с {@link Statement#RETURN_GENERATED_KEYS}, кэшируется отдельно от обычного
+	 */
+	public CachedStatement prepare(Connection connection, String sql, boolean returnGeneratedKeys) throws SQLException
+	{
+		final StatementKey key = new StatementKey(sql, returnGeneratedKeys);
+		final Connection physical = physicalConnection(connection);
+
+		PreparedStatement statement = null;
+		boolean newConnection = false;
+		_lock.lock();
+		try
+		{
+			final LinkedHashMap<StatementKey, PreparedStatement> statements = _statements.get(physical);
+			if (statements != null)
+			{
+				statement = statements.remove(key);
+			}
+			else
+			{
+				newConnection = true;
+			}
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+
+		if (newConnection)
+		{
+			purgeClosedConnections();
+		}
+
+		if (statement != null && !statement.isClosed())
+		{
+			_hits.increment();
+			return new CachedStatement(this, physical, key, statement);
+		}
+
+		_misses.increment();
+		statement = returnGeneratedKeys ?
+				connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) :
+				connection.prepareStatement(sql);
+		return new CachedStatement(this, physical, key, statement);
+	}
+
+	/**
+	 * вернуть запрос в кэш, параметры и батч очищаются
+	 */
+	void release(CachedStatement cached) throws SQLException
+	{
+		final PreparedStatement statement = cached.getStatement();
+		try
+		{
+			if (statement.isClosed())
+			{
+				return;
+			}
+			statement.clearParameters();
+			statement.clearBatch();
+		}
+		catch (SQLException e)
+		{
+			// с таким стейтментом что то не так, в кэш его не возвращаем
+			closeQuietly(statement);
+			throw e;
+		}
+
+		PreparedStatement evicted;
+		_lock.lock();
+		try
+		{
+			LinkedHashMap<StatementKey, PreparedStatement> statements = _statements.get(cached.getConnection());
+			if (statements == null)
+			{
+				statements = new LinkedHashMap<>(16, 0.75f, true);
+				_statements.put(cached.getConnection(), statements);
+			}
+			// если такой запрос уже вернули (вложенное использование) - лишний закрываем
+			evicted = statements.put(cached.getKey(), statement);
+			if (evicted == null && statements.size() > _maxSize)
+			{
+				final Iterator<PreparedStatement> eldest = statements.values().iterator();
+				evicted = eldest.next();
+				eldest.remove();
+				_evictions.increment();
+			}
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+
+		closeQuietly(evicted);
+	}
+
+	/**
+	 * забыть все запросы коннекта и закрыть их
+	 */
+	public void invalidate(Connection connection) throws SQLException
+	{
+		invalidatePhysical(physicalConnection(connection));
+	}
+
+	private void invalidatePhysical(Connection physical)
+	{
+		final LinkedHashMap<StatementKey, PreparedStatement> statements;
+		_lock.lock();
+		try
+		{
+			statements = _statements.remove(physical);
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+
+		if (statements != null)
+		{
+			for (PreparedStatement statement : statements.values())
+			{
+				closeQuietly(statement);
+			}
+		}
+	}
+
+	/**
+	 * выкинуть из кэша уже закрытые коннекты
+	 */
+	private void purgeClosedConnections()
+	{
+		final List<Connection> connections;
+		_lock.lock();
+		try
+		{
+			connections = new ArrayList<>(_statements.keySet());
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+
+		for (Connection connection : connections)
+		{
+			try
+			{
+				if (connection.isClosed())
+				{
+					invalidatePhysical(connection);
+				}
+			}
+			catch (SQLException e)
+			{
+				invalidatePhysical(connection);
+			}
+		}
+	}
+
+	/**
+	 * коннект под оберткой пула или сам коннект, если он не обертка
+	 */
+	private static Connection physicalConnection(Connection connection) throws SQLException
+	{
+		return connection.isWrapperFor(Connection.class) ? connection.unwrap(Connection.class) : connection;
+	}
+
+	public long getHitCount()
+	{
+		return _hits.sum();
+	}
+
+	public long getMissCount()
+	{
+		return _misses.sum();
+	}
+
+	public long getEvictionCount()
+	{
+		return _evictions.sum();
+	}
+
+	public int getMaxSize()
+	{
+		return _maxSize;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "StatementCache{hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "}";
+	}
+
+	private static void closeQuietly(Statement statement)
+	{
+		if (statement != null)
+		{
+			try
+			{
+				statement.close();
+			}
+			catch (SQLException e)
+			{
+				_log.warn("statement close failed", e);
+			}
+		}
+	}
+
+	/**
+	 * ключ запроса в кэше коннекта
+	 */
+	static final class StatementKey
+	{
+		private final String _sql;
+		private final boolean _returnGeneratedKeys;
+
+		StatementKey(String sql, boolean returnGeneratedKeys)
+		{
+			_sql = sql;
+			_returnGeneratedKeys = returnGeneratedKeys;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o)
+			{
+				return true;
+			}
+			if (!(o instanceof StatementKey))
+			{
+				return false;
+			}
+			final StatementKey other = (StatementKey) o;
+			return _returnGeneratedKeys == other._returnGeneratedKeys && _sql.equals(other._sql);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return _sql.hashCode() * 31 + (_returnGeneratedKeys ? 1 : 0);
+		}
+	}
+}
@@ -42,4 +42,10 @@ public @interface TableExtended
 	 * надо ли делать миграцию структуры этой таблицы при деплое?
 	 */
 	boolean migrate() default true;
+
+	/**
+	 * время жизни сущности в кэше второго уровня ({@link org.jpark.cache.EntityCache}), сек
+	 * 0 - сущность не кэшируется, -1 - кэшируется без ограничения по времени
+	 */
+	int cacheTtl() default 0;
 }
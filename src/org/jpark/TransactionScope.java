@@ -0,0 +1,96 @@
+package org.jpark;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * транзакция привязанная к потоку, см {@link EntityManager#beginScope()}
+ * использовать в try-with-resources:
+ * <pre>
+ * try (TransactionScope scope = em.beginScope())
+ * {
+ *     em.persist(a);
+ *     em.remove(b);
+ *     scope.commit();
+ * }
+ * </pre>
+ * если до close() не было коммита - транзакция откатывается
+ */
+public class TransactionScope implements AutoCloseable
+{
+	private final EntityManager _entityManager;
+	private final Connection _connection;
+	private boolean _finished;
+
+	TransactionScope(EntityManager entityManager, Connection connection)
+	{
+		_entityManager = entityManager;
+		_connection = connection;
+	}
+
+	/**
+	 * коннект транзакции, его можно передавать и в методы с явным коннектом
+	 */
+	public Connection getConnection()
+	{
+		return _connection;
+	}
+
+	public boolean isFinished()
+	{
+		return _finished;
+	}
+
+	/**
+	 * записать отложенные апдейты, закоммитить и закрыть коннект
+	 */
+	public void commit()
+	{
+		checkNotFinished();
+		_finished = true;
+		_entityManager.unbindScope(this);
+		try
+		{
+			_entityManager.commit(_connection);
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException("SQLException", e);
+		}
+	}
+
+	/**
+	 * откатить транзакцию и закрыть коннект
+	 */
+	public void rollback()
+	{
+		checkNotFinished();
+		_finished = true;
+		_entityManager.unbindScope(this);
+		try
+		{
+			_entityManager.rollback(_connection);
+		}
+		catch (SQLException e)
+		{
+			throw new RuntimeException("SQLException", e);
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		if (!_finished)
+		{
+			rollback();
+		}
+	}
+
+	private void checkNotFinished()
+	{
+		if (_finished)
+		{
+			throw new IllegalStateException("Transaction scope already finished");
+		}
+	}
+}
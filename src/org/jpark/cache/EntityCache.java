@@ -0,0 +1,332 @@
+package org.jpark.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * общий кэш сущностей второго уровня по (класс сущности, ид)
+ * хранит не сами сущности, а снимки значений полей, на каждый хит менеджер строит новый инстанс
+ * вытеснение W-TinyLFU: новые ключи попадают в маленькое окно LRU, вытесненный из окна кандидат
+ * попадает в основную часть только если по {@link FrequencySketch} к нему обращались чаще,
+ * чем к самому старому ключу основной части. так разовые выборки не вымывают горячие сущности
+ * чтобы чтение, начатое до записи, не положило в кэш устаревшую строку, у каждого класса есть версия:
+ * ее читают до запроса ({@link #getVersion}) и передают в {@link #put}, при несовпадении снимок не кэшируется
+ */
+public class EntityCache
+{
+	/**
+	 * какая часть кэша отдана под окно
+	 */
+	private static final double WINDOW_RATIO = 0.01;
+
+	private final int _maximumSize;
+	private final int _windowSize;
+
+	/**
+	 * окно и основная часть, обе в порядке доступа (LRU первым)
+	 */
+	private final LinkedHashMap<Key, Entry> _window = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<Key, Entry> _main = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final FrequencySketch _sketch;
+
+	/**
+	 * класс сущности -> версия, растет при каждой инвалидации сущностей класса
+	 */
+	private final Map<Class<?>, Long> _versions = new HashMap<>();
+
+	private final ReentrantLock _lock = new ReentrantLock();
+
+	private final LongAdder _hits = new LongAdder();
+	private final LongAdder _misses = new LongAdder();
+	private final LongAdder _evictions = new LongAdder();
+
+	/**
+	 * @param maximumSize сколько сущностей держим всего
+	 */
+	public EntityCache(int maximumSize)
+	{
+		if (maximumSize <= 0)
+		{
+			throw new IllegalArgumentException("Wrong entity cache size: " + maximumSize);
+		}
+		_maximumSize = maximumSize;
+		_windowSize = Math.max(1, (int) (maximumSize * WINDOW_RATIO));
+		_sketch = new FrequencySketch(maximumSize);
+	}
+
+	/**
+	 * текущая версия класса сущности, читать до выполнения запроса
+	 */
+	public long getVersion(Class<?> entityClass)
+	{
+		_lock.lock();
+		try
+		{
+			return _versions.getOrDefault(entityClass, 0L);
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * снимок полей сущности или null если его нет или он протух
+	 * возвращенный массив менять нельзя
+	 */
+	public Object[] get(Class<?> entityClass, Object id)
+	{
+		final Key key = new Key(entityClass, id);
+		_lock.lock();
+		try
+		{
+			_sketch.increment(key);
+			Entry entry = _window.get(key);
+			if (entry == null)
+			{
+				entry = _main.get(key);
+			}
+			if (entry == null)
+			{
+				_misses.increment();
+				return null;
+			}
+			if (entry.isExpired(System.nanoTime()))
+			{
+				remove(key);
+				_misses.increment();
+				return null;
+			}
+			_hits.increment();
+			return entry._values;
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * положить снимок полей сущности
+	 * @param version версия класса, прочитанная до выполнения запроса
+	 * @param ttl время жизни в мс, 0 или меньше - без ограничения
+	 */
+	public void put(Class<?> entityClass, Object id, Object[] values, long version, long ttl)
+	{
+		final Key key = new Key(entityClass, id);
+		final Entry entry = new Entry(values, ttl > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl) : 0);
+		_lock.lock();
+		try
+		{
+			// пока выполняли запрос сущности класса меняли, снимок мог устареть
+			if (_versions.getOrDefault(entityClass, 0L) != version)
+			{
+				return;
+			}
+			if (_main.containsKey(key))
+			{
+				_main.put(key, entry);
+				return;
+			}
+			_window.put(key, entry);
+			if (_window.size() > _windowSize)
+			{
+				final Iterator<Map.Entry<Key, Entry>> eldest = _window.entrySet().iterator();
+				final Map.Entry<Key, Entry> candidate = eldest.next();
+				eldest.remove();
+				admit(candidate.getKey(), candidate.getValue());
+			}
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * кандидат из окна борется за место в основной части с самым старым ее ключом
+	 */
+	private void admit(Key candidate, Entry entry)
+	{
+		final int mainSize = _maximumSize - _windowSize;
+		if (_main.size() < mainSize)
+		{
+			_main.put(candidate, entry);
+			return;
+		}
+
+		final Iterator<Map.Entry<Key, Entry>> eldest = _main.entrySet().iterator();
+		if (!eldest.hasNext())
+		{
+			// основной части нет совсем (кэш размером с окно)
+			_evictions.increment();
+			return;
+		}
+		final Map.Entry<Key, Entry> victim = eldest.next();
+		if (_sketch.frequency(candidate) > _sketch.frequency(victim.getKey()))
+		{
+			eldest.remove();
+			_main.put(candidate, entry);
+		}
+		_evictions.increment();
+	}
+
+	/**
+	 * выкинуть сущность из кэша
+	 */
+	public void invalidate(Class<?> entityClass, Object id)
+	{
+		final Key key = new Key(entityClass, id);
+		_lock.lock();
+		try
+		{
+			_versions.merge(entityClass, 1L, Long::sum);
+			remove(key);
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * выкинуть из кэша все сущности класса
+	 */
+	public void invalidateAll(Class<?> entityClass)
+	{
+		_lock.lock();
+		try
+		{
+			_versions.merge(entityClass, 1L, Long::sum);
+			_window.keySet().removeIf(k -> k._entityClass == entityClass);
+			_main.keySet().removeIf(k -> k._entityClass == entityClass);
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	public void clear()
+	{
+		_lock.lock();
+		try
+		{
+			// версии не сбрасываем, иначе запрос в полете сможет положить устаревший снимок
+			_versions.replaceAll((entityClass, version) -> version + 1);
+			_window.clear();
+			_main.clear();
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	private void remove(Key key)
+	{
+		if (_window.remove(key) == null)
+		{
+			_main.remove(key);
+		}
+	}
+
+	public int size()
+	{
+		_lock.lock();
+		try
+		{
+			return _window.size() + _main.size();
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	public int getMaximumSize()
+	{
+		return _maximumSize;
+	}
+
+	public long getHitCount()
+	{
+		return _hits.sum();
+	}
+
+	public long getMissCount()
+	{
+		return _misses.sum();
+	}
+
+	public long getEvictionCount()
+	{
+		return _evictions.sum();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "EntityCache{size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "}";
+	}
+
+	private static final class Entry
+	{
+		private final Object[] _values;
+
+		/**
+		 * System.nanoTime() когда протухает, 0 - никогда
+		 */
+		private final long _expiresAt;
+
+		Entry(Object[] values, long expiresAt)
+		{
+			_values = values;
+			_expiresAt = expiresAt;
+		}
+
+		boolean isExpired(long now)
+		{
+			return _expiresAt != 0 && now - _expiresAt >= 0;
+		}
+	}
+
+	private static final class Key
+	{
+		private final Class<?> _entityClass;
+		private final Object _id;
+
+		Key(Class<?> entityClass, Object id)
+		{
+			_entityClass = entityClass;
+			_id = id;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o)
+			{
+				return true;
+			}
+			if (!(o instanceof Key))
+			{
+				return false;
+			}
+			final Key other = (Key) o;
+			return _entityClass == other._entityClass && _id.equals(other._id);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return _entityClass.hashCode() * 31 + _id.hashCode();
+		}
+	}
+}
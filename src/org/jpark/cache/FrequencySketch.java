@@ -0,0 +1,108 @@
+package org.jpark.cache;
+
+/**
+ * приблизительный счетчик частоты обращений к ключам (count-min sketch)
+ * 4 счетчика по 4 бита на ключ, при насыщении все счетчики делятся пополам,
+ * так старая популярность со временем забывается
+ * не потокобезопасен, защищается локом владельца
+ */
+final class FrequencySketch
+{
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+	/**
+	 * каждый long - 16 счетчиков по 4 бита
+	 */
+	private final long[] _table;
+	private final int _tableMask;
+
+	/**
+	 * после стольких инкрементов счетчики делятся пополам
+	 */
+	private final int _sampleSize;
+	private int _additions;
+
+	FrequencySketch(int maximumSize)
+	{
+		final int size = Math.max(8, ceilingPowerOfTwo(maximumSize));
+		_table = new long[size];
+		_tableMask = size - 1;
+		_sampleSize = 10 * Math.max(1, maximumSize);
+	}
+
+	/**
+	 * оценка частоты ключа, 0..15
+	 */
+	int frequency(Object key)
+	{
+		final int hash = spread(key.hashCode());
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < 4; i++)
+		{
+			final int index = indexOf(hash, i);
+			final int offset = counterOffset(hash, i);
+			frequency = Math.min(frequency, (int) ((_table[index] >>> offset) & 0xfL));
+		}
+		return frequency;
+	}
+
+	/**
+	 * учесть обращение к ключу
+	 */
+	void increment(Object key)
+	{
+		final int hash = spread(key.hashCode());
+		boolean added = false;
+		for (int i = 0; i < 4; i++)
+		{
+			final int index = indexOf(hash, i);
+			final int offset = counterOffset(hash, i);
+			if (((_table[index] >>> offset) & 0xfL) != 0xfL)
+			{
+				_table[index] += 1L << offset;
+				added = true;
+			}
+		}
+		if (added && ++_additions >= _sampleSize)
+		{
+			reset();
+		}
+	}
+
+	private void reset()
+	{
+		for (int i = 0; i < _table.length; i++)
+		{
+			_table[i] = (_table[i] >>> 1) & RESET_MASK;
+		}
+		_additions >>>= 1;
+	}
+
+	private int indexOf(int hash, int i)
+	{
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += h >>> 32;
+		return ((int) h) & _tableMask;
+	}
+
+	/**
+	 * смещение 4-битного счетчика внутри long, для каждой из 4 функций свое
+	 */
+	private static int counterOffset(int hash, int i)
+	{
+		return (((hash >>> (i << 3)) & 3) << 2) + (i << 4) & 63;
+	}
+
+	private static int spread(int x)
+	{
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+
+	private static int ceilingPowerOfTwo(int x)
+	{
+		return x <= 1 ? 1 : Integer.highestOneBit(x - 1) << 1;
+	}
+}
@@ -0,0 +1,368 @@
+package org.jpark.cache;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * кэш результатов запросов по (класс сущности, SQL, параметры)
+ * хранит снимки значений полей найденных строк, на каждый хит менеджер строит новые инстансы
+ * запись в таблицу через менеджер выкидывает все запросы по этой таблице
+ * чтобы запрос, начатый до записи, не положил в кэш устаревший результат, у каждой таблицы есть версия:
+ * ее читают до запроса ({@link #getVersion}) и передают в {@link #put}, при несовпадении результат не кэшируется
+ * размер ограничен примерной оценкой занимаемой памяти, вытесняются давно не использованные запросы
+ */
+public class QueryCache
+{
+	/**
+	 * время жизни запроса в кэше, мс
+	 */
+	private final long _ttl;
+
+	/**
+	 * сколько байт (по грубой оценке) можно занять под результаты
+	 */
+	private final long _memoryBudget;
+
+	private long _memoryUsed;
+
+	private final LinkedHashMap<Key, Entry> _entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * таблица -> запросы по ней
+	 */
+	private final Map<String, Set<Key>> _byTable = new HashMap<>();
+
+	/**
+	 * таблица -> версия, растет при каждой записи в таблицу
+	 */
+	private final Map<String, Long> _versions = new HashMap<>();
+
+	private final ReentrantLock _lock = new ReentrantLock();
+
+	private final LongAdder _hits = new LongAdder();
+	private final LongAdder _misses = new LongAdder();
+	private final LongAdder _evictions = new LongAdder();
+	private final LongAdder _invalidations = new LongAdder();
+
+	/**
+	 * @param ttl время жизни запроса в кэше, мс
+	 * @param memoryBudget сколько памяти можно занять под результаты, байт
+	 */
+	public QueryCache(long ttl, long memoryBudget)
+	{
+		if (ttl <= 0 || memoryBudget <= 0)
+		{
+			throw new IllegalArgumentException("Wrong query cache ttl/budget: " + ttl + "/" + memoryBudget);
+		}
+		_ttl = ttl;
+		_memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * текущая версия таблицы, читать до выполнения запроса
+	 */
+	public long getVersion(String table)
+	{
+		_lock.lock();
+		try
+		{
+			return _versions.getOrDefault(table, 0L);
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * закэшированные строки запроса или null
+	 * возвращенный список и массивы в нем менять нельзя
+	 */
+	public List<Object[]> get(Class<?> entityClass, String sql, Object[] params)
+	{
+		final Key key = new Key(entityClass, sql, params);
+		_lock.lock();
+		try
+		{
+			final Entry entry = _entries.get(key);
+			if (entry == null)
+			{
+				_misses.increment();
+				return null;
+			}
+			if (System.nanoTime() - entry._expiresAt >= 0)
+			{
+				remove(key);
+				_misses.increment();
+				return null;
+			}
+			_hits.increment();
+			return entry._rows;
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * положить результат запроса
+	 * @param table таблица сущности
+	 * @param version версия таблицы, прочитанная до выполнения запроса
+	 */
+	public void put(Class<?> entityClass, String sql, Object[] params, String table, long version, List<Object[]> rows)
+	{
+		final Key key = new Key(entityClass, sql, params);
+		final long size = estimateSize(sql, params, rows);
+		if (size > _memoryBudget)
+		{
+			return;
+		}
+		final Entry entry = new Entry(Collections.unmodifiableList(rows), table, size, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_ttl));
+
+		_lock.lock();
+		try
+		{
+			// пока выполняли запрос в таблицу писали, результат мог устареть
+			if (_versions.getOrDefault(table, 0L) != version)
+			{
+				return;
+			}
+			remove(key);
+			_entries.put(key, entry);
+			_byTable.computeIfAbsent(table, t -> new HashSet<>()).add(key);
+			_memoryUsed += size;
+
+			final Iterator<Map.Entry<Key, Entry>> eldest = _entries.entrySet().iterator();
+			while (_memoryUsed > _memoryBudget && eldest.hasNext())
+			{
+				final Map.Entry<Key, Entry> e = eldest.next();
+				eldest.remove();
+				unlink(e.getKey(), e.getValue());
+				_evictions.increment();
+			}
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * в таблицу записали - выкидываем все запросы по ней
+	 */
+	public void invalidateTable(String table)
+	{
+		_lock.lock();
+		try
+		{
+			_versions.merge(table, 1L, Long::sum);
+			final Set<Key> keys = _byTable.remove(table);
+			if (keys != null)
+			{
+				for (Key key : keys)
+				{
+					final Entry entry = _entries.remove(key);
+					if (entry != null)
+					{
+						_memoryUsed -= entry._size;
+					}
+				}
+				_invalidations.add(keys.size());
+			}
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	public void clear()
+	{
+		_lock.lock();
+		try
+		{
+			// версии не сбрасываем, иначе запрос в полете сможет положить устаревший результат
+			for (String table : _byTable.keySet())
+			{
+				_versions.merge(table, 1L, Long::sum);
+			}
+			_entries.clear();
+			_byTable.clear();
+			_memoryUsed = 0;
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	private void remove(Key key)
+	{
+		final Entry entry = _entries.remove(key);
+		if (entry != null)
+		{
+			unlink(key, entry);
+		}
+	}
+
+	private void unlink(Key key, Entry entry)
+	{
+		_memoryUsed -= entry._size;
+		final Set<Key> keys = _byTable.get(entry._table);
+		if (keys != null)
+		{
+			keys.remove(key);
+			if (keys.isEmpty())
+			{
+				_byTable.remove(entry._table);
+			}
+		}
+	}
+
+	/**
+	 * грубая оценка памяти под результат запроса
+	 */
+	private static long estimateSize(String sql, Object[] params, List<Object[]> rows)
+	{
+		long size = 64 + 2L * sql.length() + 16L * params.length;
+		for (Object[] row : rows)
+		{
+			size += 16 + 8L * row.length;
+			for (Object value : row)
+			{
+				size += estimateValueSize(value);
+			}
+		}
+		return size;
+	}
+
+	private static long estimateValueSize(Object value)
+	{
+		if (value == null)
+		{
+			return 0;
+		}
+		if (value instanceof String)
+		{
+			return 40 + 2L * ((String) value).length();
+		}
+		if (value instanceof byte[])
+		{
+			return 16 + ((byte[]) value).length;
+		}
+		return 24;
+	}
+
+	public int size()
+	{
+		_lock.lock();
+		try
+		{
+			return _entries.size();
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	/**
+	 * сколько памяти по оценке занято результатами, байт
+	 */
+	public long getMemoryUsed()
+	{
+		_lock.lock();
+		try
+		{
+			return _memoryUsed;
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	public long getHitCount()
+	{
+		return _hits.sum();
+	}
+
+	public long getMissCount()
+	{
+		return _misses.sum();
+	}
+
+	public long getEvictionCount()
+	{
+		return _evictions.sum();
+	}
+
+	public long getInvalidationCount()
+	{
+		return _invalidations.sum();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "QueryCache{size=" + size() + ", memory=" + getMemoryUsed() + ", hits=" + getHitCount() + ", misses=" + getMissCount() +
+				", evictions=" + getEvictionCount() + ", invalidations=" + getInvalidationCount() + "}";
+	}
+
+	private static final class Entry
+	{
+		private final List<Object[]> _rows;
+		private final String _table;
+		private final long _size;
+		private final long _expiresAt;
+
+		Entry(List<Object[]> rows, String table, long size, long expiresAt)
+		{
+			_rows = rows;
+			_table = table;
+			_size = size;
+			_expiresAt = expiresAt;
+		}
+	}
+
+	private static final class Key
+	{
+		private final Class<?> _entityClass;
+		private final String _sql;
+		private final Object[] _params;
+		private final int _hash;
+
+		Key(Class<?> entityClass, String sql, Object[] params)
+		{
+			_entityClass = entityClass;
+			_sql = sql;
+			// параметры копируем, вызывающий может переиспользовать массив
+			_params = params.clone();
+			_hash = (entityClass.hashCode() * 31 + sql.hashCode()) * 31 + Arrays.deepHashCode(_params);
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o)
+			{
+				return true;
+			}
+			if (!(o instanceof Key))
+			{
+				return false;
+			}
+			final Key other = (Key) o;
+			return _hash == other._hash && _entityClass == other._entityClass && _sql.equals(other._sql) && Arrays.deepEquals(_params, other._params);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return _hash;
+		}
+	}
+}
@@ -0,0 +1,646 @@
+package org.jpark.helper;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+/**
+ * однопоточная замена {@link IdentityWeakHashMap} с меньшим числом аллокаций:
+ * ключи сравниваются по ссылке и держатся слабо, значения держатся сильно
+ * (кроме случая ключ == значение, тогда значение не мешает GC собрать ключ). null не допускается:
+ * put бросает {@link IllegalArgumentException}, а get/containsKey/remove по null просто ничего не находят
+ * <p>
+ * открытая адресация с линейным пробированием по двум параллельным массивам: слабые ссылки на ключи и значения.
+ * на запись приходится одна аллокация - сама слабая ссылка на ключ, она же хранит хэш и уходит в
+ * {@link ReferenceQueue}, когда GC собирает ключ. отдельных объектов записи и обертки для значения нет
+ * <p>
+ * расширение таблицы инкрементальное: при переполнении заводится новая таблица, а старая переносится в нее
+ * порциями по {@link #MIGRATION_STEP} ячеек на каждую вставку и удаление, так что одна вставка никогда
+ * не перекладывает всю мапу. пока перенос не закончен, поиск идет по обеим таблицам
+ */
+public class CompactIdentityWeakHashMap<K, V> extends AbstractMap<K, V>
+{
+	private static final int DEFAULT_INITIAL_CAPACITY = 32;
+	private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+	/**
+	 * сколько ячеек старой таблицы переносится за одну операцию записи
+	 */
+	private static final int MIGRATION_STEP = 16;
+
+	/**
+	 * метка удаленной ячейки, нужна чтобы не рвать цепочки пробирования
+	 */
+	private static final KeyReference<Object> TOMBSTONE = new KeyReference<>(null, 0, null);
+
+	/**
+	 * значение в ячейке, когда ключ и значение один объект
+	 */
+	private static final Object SELF = new Object();
+
+	private KeyReference<K>[] _keys;
+	private Object[] _values;
+
+	/**
+	 * старая таблица, которая еще переносится, или null
+	 */
+	private KeyReference<K>[] _oldKeys;
+	private Object[] _oldValues;
+	private int _migrated;
+
+	/**
+	 * живые записи в обеих таблицах
+	 */
+	private int _size;
+
+	/**
+	 * занятые ячейки текущей таблицы вместе с метками удаления
+	 */
+	private int _used;
+	private int _threshold;
+	private int _modCount;
+
+	private final ReferenceQueue<K> _queue = new ReferenceQueue<>();
+
+	public CompactIdentityWeakHashMap()
+	{
+		this(DEFAULT_INITIAL_CAPACITY);
+	}
+
+	public CompactIdentityWeakHashMap(int initialCapacity)
+	{
+		if (initialCapacity < 0)
+		{
+			throw new IllegalArgumentException("Illegal initialCapacity: " + initialCapacity);
+		}
+		int capacity = 2;
+		// таблица держится заполненной не больше чем на 2/3
+		while (capacity < MAXIMUM_CAPACITY && capacity * 2 / 3 < initialCapacity)
+		{
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity)
+	{
+		@SuppressWarnings("unchecked")
+		final KeyReference<K>[] keys = (KeyReference<K>[]) new KeyReference<?>[capacity];
+		_keys = keys;
+		_values = new Object[capacity];
+		_used = 0;
+		_threshold = capacity * 2 / 3;
+	}
+
+	private static int hash(Object key)
+	{
+		int h = System.identityHashCode(key);
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		h *= 0xc2b2ae35;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * ячейка ключа в таблице или -1
+	 */
+	private static int indexOf(KeyReference<?>[] keys, Object key, int hash)
+	{
+		final int mask = keys.length - 1;
+		int i = hash & mask;
+		KeyReference<?> ref;
+		while ((ref = keys[i]) != null)
+		{
+			if (ref.hash == hash && ref.get() == key)
+			{
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private static int indexOfReference(KeyReference<?>[] keys, KeyReference<?> reference)
+	{
+		final int mask = keys.length - 1;
+		int i = reference.hash & mask;
+		KeyReference<?> ref;
+		while ((ref = keys[i]) != null)
+		{
+			if (ref == reference)
+			{
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private V valueAt(KeyReference<K>[] keys, Object[] values, int i)
+	{
+		final Object value = values[i];
+		// в значениях лежат только V или SELF, тогда значение - сам ключ
+		@SuppressWarnings("unchecked")
+		final V result = (V) (value == SELF ? keys[i].get() : value);
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K> KeyReference<K> tombstone()
+	{
+		return (KeyReference<K>) TOMBSTONE;
+	}
+
+	@Override
+	public V get(Object key)
+	{
+		if (key == null)
+		{
+			return null;
+		}
+		expunge();
+		final int hash = hash(key);
+		int i = indexOf(_keys, key, hash);
+		if (i >= 0)
+		{
+			return valueAt(_keys, _values, i);
+		}
+		if (_oldKeys != null)
+		{
+			i = indexOf(_oldKeys, key, hash);
+			if (i >= 0)
+			{
+				return valueAt(_oldKeys, _oldValues, i);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public boolean containsKey(Object key)
+	{
+		return get(key) != null;
+	}
+
+	@Override
+	public V put(K key, V value)
+	{
+		if (key == null || value == null)
+		{
+			throw new IllegalArgumentException("Null not supported  CompactIdentityWeakHashMap");
+		}
+		expunge();
+		final Object stored = key == value ? SELF : value;
+		final int hash = hash(key);
+
+		int i = indexOf(_keys, key, hash);
+		if (i >= 0)
+		{
+			final V old = valueAt(_keys, _values, i);
+			_values[i] = stored;
+			return old;
+		}
+		if (_oldKeys != null)
+		{
+			i = indexOf(_oldKeys, key, hash);
+			if (i >= 0)
+			{
+				final V old = valueAt(_oldKeys, _oldValues, i);
+				_oldValues[i] = stored;
+				return old;
+			}
+		}
+
+		// перенос двигает записи между таблицами, поэтому только вместе со структурным изменением
+		_modCount++;
+		migrateStep();
+		if (_used >= _threshold)
+		{
+			resize();
+		}
+		insert(new KeyReference<>(key, hash, _queue), stored);
+		_size++;
+		return null;
+	}
+
+	/**
+	 * вставить запись, которой точно нет в таблицах
+	 */
+	private void insert(KeyReference<K> reference, Object value)
+	{
+		final KeyReference<K>[] keys = _keys;
+		final int mask = keys.length - 1;
+		int i = reference.hash & mask;
+		KeyReference<K> ref;
+		while ((ref = keys[i]) != null && ref != TOMBSTONE)
+		{
+			i = (i + 1) & mask;
+		}
+		if (ref == null)
+		{
+			_used++;
+		}
+		keys[i] = reference;
+		_values[i] = value;
+	}
+
+	@Override
+	public V remove(Object key)
+	{
+		if (key == null)
+		{
+			return null;
+		}
+		expunge();
+		final int hash = hash(key);
+		V old = null;
+		int i = indexOf(_keys, key, hash);
+		if (i >= 0)
+		{
+			old = removeAt(_keys, _values, i);
+		}
+		else if (_oldKeys != null)
+		{
+			i = indexOf(_oldKeys, key, hash);
+			if (i >= 0)
+			{
+				old = removeAt(_oldKeys, _oldValues, i);
+			}
+		}
+		if (old != null)
+		{
+			_modCount++;
+			migrateStep();
+		}
+		return old;
+	}
+
+	private V removeAt(KeyReference<K>[] keys, Object[] values, int i)
+	{
+		final V old = valueAt(keys, values, i);
+		keys[i] = tombstone();
+		values[i] = null;
+		_size--;
+		return old;
+	}
+
+	/**
+	 * начать перенос в новую таблицу. если таблица забита в основном метками удаления - того же размера
+	 */
+	private void resize()
+	{
+		if (_oldKeys != null)
+		{
+			// предыдущий перенос не успел закончиться, доделываем его целиком
+			while (_oldKeys != null)
+			{
+				migrateStep();
+			}
+			if (_used < _threshold)
+			{
+				return;
+			}
+		}
+
+		final int capacity = _keys.length;
+		int newCapacity = capacity;
+		if (_size >= _threshold / 2)
+		{
+			if (capacity >= MAXIMUM_CAPACITY)
+			{
+				throw new IllegalStateException("CompactIdentityWeakHashMap capacity exceeded");
+			}
+			newCapacity = capacity << 1;
+		}
+		_oldKeys = _keys;
+		_oldValues = _values;
+		_migrated = 0;
+		allocate(newCapacity);
+	}
+
+	/**
+	 * перенести очередную порцию ячеек старой таблицы. ссылки на ключи переезжают как есть, без новых аллокаций
+	 */
+	private void migrateStep()
+	{
+		final KeyReference<K>[] oldKeys = _oldKeys;
+		if (oldKeys == null)
+		{
+			return;
+		}
+		// записи переезжают в новую таблицу, идущий обход мог бы увидеть их дважды
+		_modCount++;
+		final int end = Math.min(_migrated + MIGRATION_STEP, oldKeys.length);
+		for (int i = _migrated; i < end; i++)
+		{
+			final KeyReference<K> ref = oldKeys[i];
+			if (ref == null || ref == TOMBSTONE)
+			{
+				continue;
+			}
+			if (ref.get() != null)
+			{
+				insert(ref, _oldValues[i]);
+			}
+			else
+			{
+				// ключ уже собран, ссылка потом придет из очереди и не найдется ни в одной таблице
+				_size--;
+			}
+			// ячейку не обнуляем, иначе порвем цепочки пробирования для еще не перенесенных ключей
+			oldKeys[i] = tombstone();
+			_oldValues[i] = null;
+		}
+		_migrated = end;
+		if (end == oldKeys.length)
+		{
+			_oldKeys = null;
+			_oldValues = null;
+		}
+	}
+
+	/**
+	 * вычистить записи, ключи которых собрал GC
+	 */
+	private void expunge()
+	{
+		Reference<? extends K> reference;
+		while ((reference = _queue.poll()) != null)
+		{
+			// в очередь попадают только ссылки этой мапы
+			@SuppressWarnings("unchecked")
+			final KeyReference<K> stale = (KeyReference<K>) reference;
+			int i = indexOfReference(_keys, stale);
+			if (i >= 0)
+			{
+				removeAt(_keys, _values, i);
+				continue;
+			}
+			if (_oldKeys != null)
+			{
+				i = indexOfReference(_oldKeys, stale);
+				if (i >= 0)
+				{
+					removeAt(_oldKeys, _oldValues, i);
+				}
+			}
+		}
+	}
+
+	@Override
+	public int size()
+	{
+		expunge();
+		return _size;
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	@Override
+	public void clear()
+	{
+		_modCount++;
+		allocate(DEFAULT_INITIAL_CAPACITY);
+		_oldKeys = null;
+		_oldValues = null;
+		_size = 0;
+		while (_queue.poll() != null)
+		{
+		}
+	}
+
+	/**
+	 * живой вид на записи мапы, удаление через итератор поддерживается
+	 * изменение мапы в обход итератора во время обхода дает {@link ConcurrentModificationException}
+	 */
+	@Override
+	public Set<Entry<K, V>> entrySet()
+	{
+		return new AbstractSet<Entry<K, V>>()
+		{
+			@Override
+			public Iterator<Entry<K, V>> iterator()
+			{
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size()
+			{
+				return CompactIdentityWeakHashMap.this.size();
+			}
+
+			@Override
+			public void clear()
+			{
+				CompactIdentityWeakHashMap.this.clear();
+			}
+		};
+	}
+
+	/**
+	 * обходит сначала старую таблицу (если идет перенос), затем текущую
+	 */
+	private final class EntryIterator implements Iterator<Entry<K, V>>
+	{
+		private KeyReference<K>[] _tableKeys;
+		private Object[] _tableValues;
+		private final KeyReference<K>[] _currentKeys;
+		private final Object[] _currentValues;
+		private int _index = -1;
+
+		/**
+		 * ключ следующей записи держим сильно, чтобы GC не забрал его между hasNext и next
+		 */
+		private K _nextKey;
+		private int _nextIndex;
+		private KeyReference<K>[] _nextTableKeys;
+		private Object[] _nextTableValues;
+
+		private KeyReference<K>[] _lastKeys;
+		private Object[] _lastValues;
+		private int _lastIndex = -1;
+
+		private int _expectedModCount = _modCount;
+
+		EntryIterator()
+		{
+			_currentKeys = _keys;
+			_currentValues = _values;
+			if (_oldKeys != null)
+			{
+				_tableKeys = _oldKeys;
+				_tableValues = _oldValues;
+			}
+			else
+			{
+				_tableKeys = _currentKeys;
+				_tableValues = _currentValues;
+			}
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			while (_nextKey == null)
+			{
+				_index++;
+				if (_index >= _tableKeys.length)
+				{
+					if (_tableKeys == _currentKeys)
+					{
+						return false;
+					}
+					_tableKeys = _currentKeys;
+					_tableValues = _currentValues;
+					_index = -1;
+					continue;
+				}
+				final KeyReference<K> ref = _tableKeys[_index];
+				if (ref != null && ref != TOMBSTONE)
+				{
+					_nextKey = ref.get();
+					_nextIndex = _index;
+					_nextTableKeys = _tableKeys;
+					_nextTableValues = _tableValues;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public Entry<K, V> next()
+		{
+			if (_modCount != _expectedModCount)
+			{
+				throw new ConcurrentModificationException();
+			}
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+			final K key = _nextKey;
+			_nextKey = null;
+			_lastKeys = _nextTableKeys;
+			_lastValues = _nextTableValues;
+			_lastIndex = _nextIndex;
+			return new TableEntry(key, _lastKeys, _lastValues, _lastIndex);
+		}
+
+		@Override
+		public void remove()
+		{
+			if (_lastIndex < 0)
+			{
+				throw new IllegalStateException();
+			}
+			if (_modCount != _expectedModCount)
+			{
+				throw new ConcurrentModificationException();
+			}
+			// запись могла уже уйти по GC, тогда в ячейке метка удаления
+			final KeyReference<K> ref = _lastKeys[_lastIndex];
+			if (ref != null && ref != TOMBSTONE)
+			{
+				removeAt(_lastKeys, _lastValues, _lastIndex);
+			}
+			_lastIndex = -1;
+			_expectedModCount = ++_modCount;
+		}
+	}
+
+	private final class TableEntry implements Entry<K, V>
+	{
+		private final K _key;
+		private final KeyReference<K>[] _tableKeys;
+		private final Object[] _tableValues;
+		private final int _index;
+
+		TableEntry(K key, KeyReference<K>[] tableKeys, Object[] tableValues, int index)
+		{
+			_key = key;
+			_tableKeys = tableKeys;
+			_tableValues = tableValues;
+			_index = index;
+		}
+
+		private boolean isLive()
+		{
+			final KeyReference<K> ref = _tableKeys[_index];
+			return ref != TOMBSTONE && ref != null && ref.get() == _key;
+		}
+
+		@Override
+		public K getKey()
+		{
+			return _key;
+		}
+
+		@Override
+		public V getValue()
+		{
+			return isLive() ? valueAt(_tableKeys, _tableValues, _index) : null;
+		}
+
+		@Override
+		public V setValue(V value)
+		{
+			if (value == null)
+			{
+				throw new IllegalArgumentException("Null not supported  CompactIdentityWeakHashMap");
+			}
+			if (!isLive())
+			{
+				throw new IllegalStateException("Entry no longer in map");
+			}
+			final V old = valueAt(_tableKeys, _tableValues, _index);
+			_tableValues[_index] = value == _key ? SELF : value;
+			return old;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Map.Entry))
+			{
+				return false;
+			}
+			final Entry<?, ?> e = (Entry<?, ?>) o;
+			final V value = getValue();
+			return _key == e.getKey() && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+		}
+
+		@Override
+		public int hashCode()
+		{
+			final V value = getValue();
+			return System.identityHashCode(_key) ^ (value == null ? 0 : value.hashCode());
+		}
+
+		@Override
+		public String toString()
+		{
+			return _key + "=" + getValue();
+		}
+	}
+
+	/**
+	 * слабая ссылка на ключ, она же запись таблицы: хранит хэш, чтобы найти ячейку при вычистке и переносе
+	 */
+	static final class KeyReference<K> extends WeakReference<K>
+	{
+		final int hash;
+
+		KeyReference(K key, int hash, ReferenceQueue<K> queue)
+		{
+			super(key, queue);
+			this.hash = hash;
+		}
+	}
+}
@@ -0,0 +1,416 @@
+package org.jpark.helper;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * конкурентная версия {@link IdentityWeakHashMap}: ключи сравниваются по ссылке и держатся слабо,
+ * значения держатся сильно. null не допускается ни в ключах ни в значениях
+ * <p>
+ * мапа разбита на сегменты по identityHashCode ключа, у каждого сегмента своя хэш таблица,
+ * свой лок на запись и своя {@link ReferenceQueue}, из которой под локом сегмента вычищаются
+ * записи с собранными GC ключами. чтение (get/containsKey) идет без локов по volatile таблице сегмента
+ * <p>
+ * итерация идет по снимку и не видит изменения после своего начала
+ */
+public class ConcurrentIdentityWeakHashMap<K, V> extends AbstractMap<K, V>
+{
+	private static final int MAXIMUM_SEGMENTS = 1 << 16;
+	private static final int INITIAL_SEGMENT_CAPACITY = 16;
+	private static final float LOAD_FACTOR = 0.75f;
+
+	private final Segment<K, V>[] _segments;
+	private final int _segmentShift;
+
+	public ConcurrentIdentityWeakHashMap()
+	{
+		this(Runtime.getRuntime().availableProcessors() * 4);
+	}
+
+	/**
+	 * @param concurrencyLevel примерное число потоков, одновременно пишущих в мапу
+	 */
+	public ConcurrentIdentityWeakHashMap(int concurrencyLevel)
+	{
+		int size = 1;
+		int bits = 0;
+		while (size < concurrencyLevel && size < MAXIMUM_SEGMENTS)
+		{
+			size <<= 1;
+			bits++;
+		}
+		@SuppressWarnings("unchecked")
+		final Segment<K, V>[] segments = (Segment<K, V>[]) new Segment<?, ?>[size];
+		for (int i = 0; i < size; i++)
+		{
+			segments[i] = new Segment<>();
+		}
+		_segments = segments;
+		// сегмент выбираем старшими битами хэша, ячейку в сегменте - младшими
+		_segmentShift = 32 - bits;
+	}
+
+	private static int hash(Object key)
+	{
+		if (key == null)
+		{
+			throw new IllegalArgumentException("Null not supported  ConcurrentIdentityWeakHashMap");
+		}
+		int h = System.identityHashCode(key);
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		h *= 0xc2b2ae35;
+		return h ^ (h >>> 16);
+	}
+
+	private Segment<K, V> segmentFor(int hash)
+	{
+		return _segments.length == 1 ? _segments[0] : _segments[hash >>> _segmentShift];
+	}
+
+	@Override
+	public V get(Object key)
+	{
+		final int hash = hash(key);
+		return segmentFor(hash).get(key, hash);
+	}
+
+	@Override
+	public boolean containsKey(Object key)
+	{
+		return get(key) != null;
+	}
+
+	@Override
+	public V put(K key, V value)
+	{
+		if (value == null)
+		{
+			throw new IllegalArgumentException("Null not supported  ConcurrentIdentityWeakHashMap");
+		}
+		final int hash = hash(key);
+		return segmentFor(hash).put(key, hash, value);
+	}
+
+	@Override
+	public V remove(Object key)
+	{
+		final int hash = hash(key);
+		return segmentFor(hash).remove(key, hash);
+	}
+
+	@Override
+	public int size()
+	{
+		long size = 0;
+		for (Segment<K, V> segment : _segments)
+		{
+			size += segment.size();
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		for (Segment<K, V> segment : _segments)
+		{
+			if (segment._count != 0)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void clear()
+	{
+		for (Segment<K, V> segment : _segments)
+		{
+			segment.clear();
+		}
+	}
+
+	/**
+	 * снимок пар ключ-значение, удаление через итератор удаляет из мапы
+	 */
+	@Override
+	public Set<Entry<K, V>> entrySet()
+	{
+		final List<Entry<K, V>> snapshot = new ArrayList<>();
+		for (Segment<K, V> segment : _segments)
+		{
+			segment.collect(snapshot);
+		}
+
+		return new AbstractSet<Entry<K, V>>()
+		{
+			@Override
+			public Iterator<Entry<K, V>> iterator()
+			{
+				final Iterator<Entry<K, V>> iterator = snapshot.iterator();
+				return new Iterator<Entry<K, V>>()
+				{
+					private Entry<K, V> _current;
+
+					@Override
+					public boolean hasNext()
+					{
+						return iterator.hasNext();
+					}
+
+					@Override
+					public Entry<K, V> next()
+					{
+						_current = iterator.next();
+						return _current;
+					}
+
+					@Override
+					public void remove()
+					{
+						if (_current == null)
+						{
+							throw new IllegalStateException();
+						}
+						ConcurrentIdentityWeakHashMap.this.remove(_current.getKey());
+						_current = null;
+					}
+				};
+			}
+
+			@Override
+			public int size()
+			{
+				return snapshot.size();
+			}
+		};
+	}
+
+	/**
+	 * запись сегмента, сама является слабой ссылкой на ключ
+	 */
+	static final class WeakEntry<K, V> extends WeakReference<K>
+	{
+		final int hash;
+		volatile V value;
+		volatile WeakEntry<K, V> next;
+
+		WeakEntry(K key, int hash, V value, WeakEntry<K, V> next, ReferenceQueue<K> queue)
+		{
+			super(key, queue);
+			this.hash = hash;
+			this.value = value;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * сегмент: хэш таблица с цепочками, запись под локом, чтение без лока
+	 * читатель всегда видит согласованную цепочку: новые записи добавляются в голову,
+	 * удаление перекидывает next предыдущей записи, а при расширении таблицы строятся новые записи
+	 */
+	static final class Segment<K, V>
+	{
+		private final ReentrantLock _lock = new ReentrantLock();
+		private final ReferenceQueue<K> _queue = new ReferenceQueue<>();
+		private volatile AtomicReferenceArray<WeakEntry<K, V>> _table = new AtomicReferenceArray<>(INITIAL_SEGMENT_CAPACITY);
+		private volatile int _count;
+		private int _threshold = (int) (INITIAL_SEGMENT_CAPACITY * LOAD_FACTOR);
+
+		V get(Object key, int hash)
+		{
+			final AtomicReferenceArray<WeakEntry<K, V>> table = _table;
+			WeakEntry<K, V> e = table.get(hash & (table.length() - 1));
+			while (e != null)
+			{
+				if (e.hash == hash && e.get() == key)
+				{
+					return e.value;
+				}
+				e = e.next;
+			}
+			return null;
+		}
+
+		V put(K key, int hash, V value)
+		{
+			_lock.lock();
+			try
+			{
+				expunge();
+				AtomicReferenceArray<WeakEntry<K, V>> table = _table;
+				int index = hash & (table.length() - 1);
+				for (WeakEntry<K, V> e = table.get(index); e != null; e = e.next)
+				{
+					if (e.hash == hash && e.get() == key)
+					{
+						final V old = e.value;
+						e.value = value;
+						return old;
+					}
+				}
+
+				if (_count + 1 > _threshold)
+				{
+					table = rehash(table);
+					index = hash & (table.length() - 1);
+				}
+				table.set(index, new WeakEntry<>(key, hash, value, table.get(index), _queue));
+				_count = _count + 1;
+				return null;
+			}
+			finally
+			{
+				_lock.unlock();
+			}
+		}
+
+		V remove(Object key, int hash)
+		{
+			_lock.lock();
+			try
+			{
+				expunge();
+				final AtomicReferenceArray<WeakEntry<K, V>> table = _table;
+				final int index = hash & (table.length() - 1);
+				WeakEntry<K, V> prev = null;
+				for (WeakEntry<K, V> e = table.get(index); e != null; prev = e, e = e.next)
+				{
+					if (e.hash == hash && e.get() == key)
+					{
+						unlink(table, index, prev, e);
+						return e.value;
+					}
+				}
+				return null;
+			}
+			finally
+			{
+				_lock.unlock();
+			}
+		}
+
+		int size()
+		{
+			_lock.lock();
+			try
+			{
+				expunge();
+				return _count;
+			}
+			finally
+			{
+				_lock.unlock();
+			}
+		}
+
+		void clear()
+		{
+			_lock.lock();
+			try
+			{
+				_table = new AtomicReferenceArray<>(INITIAL_SEGMENT_CAPACITY);
+				_threshold = (int) (INITIAL_SEGMENT_CAPACITY * LOAD_FACTOR);
+				_count = 0;
+				// старые записи из очереди больше не нужны
+				while (_queue.poll() != null)
+				{
+				}
+			}
+			finally
+			{
+				_lock.unlock();
+			}
+		}
+
+		void collect(List<Entry<K, V>> result)
+		{
+			final AtomicReferenceArray<WeakEntry<K, V>> table = _table;
+			for (int i = 0; i < table.length(); i++)
+			{
+				for (WeakEntry<K, V> e = table.get(i); e != null; e = e.next)
+				{
+					final K key = e.get();
+					if (key != null)
+					{
+						result.add(new AbstractMap.SimpleImmutableEntry<>(key, e.value));
+					}
+				}
+			}
+		}
+
+		/**
+		 * вычистить записи, ключи которых собрал GC. только под локом
+		 */
+		private void expunge()
+		{
+			Reference<? extends K> reference;
+			while ((reference = _queue.poll()) != null)
+			{
+				// в очередь попадают только записи этого сегмента
+				@SuppressWarnings("unchecked")
+				final WeakEntry<K, V> stale = (WeakEntry<K, V>) reference;
+				final AtomicReferenceArray<WeakEntry<K, V>> table = _table;
+				final int index = stale.hash & (table.length() - 1);
+				WeakEntry<K, V> prev = null;
+				for (WeakEntry<K, V> e = table.get(index); e != null; prev = e, e = e.next)
+				{
+					// запись могла уже уйти при удалении или расширении таблицы
+					if (e == stale)
+					{
+						unlink(table, index, prev, e);
+						break;
+					}
+				}
+			}
+		}
+
+		private void unlink(AtomicReferenceArray<WeakEntry<K, V>> table, int index, WeakEntry<K, V> prev, WeakEntry<K, V> e)
+		{
+			if (prev == null)
+			{
+				table.set(index, e.next);
+			}
+			else
+			{
+				prev.next = e.next;
+			}
+			_count = _count - 1;
+		}
+
+		/**
+		 * расширить таблицу вдвое, записи копируются в новые, старая таблица остается целой для читателей
+		 */
+		private AtomicReferenceArray<WeakEntry<K, V>> rehash(AtomicReferenceArray<WeakEntry<K, V>> table)
+		{
+			final int capacity = table.length() << 1;
+			final AtomicReferenceArray<WeakEntry<K, V>> newTable = new AtomicReferenceArray<>(capacity);
+			int count = 0;
+			for (int i = 0; i < table.length(); i++)
+			{
+				for (WeakEntry<K, V> e = table.get(i); e != null; e = e.next)
+				{
+					final K key = e.get();
+					if (key == null)
+					{
+						continue;
+					}
+					final int index = e.hash & (capacity - 1);
+					newTable.set(index, new WeakEntry<>(key, e.hash, e.value, newTable.get(index), _queue));
+					count++;
+				}
+			}
+			_threshold = (int) (capacity * LOAD_FACTOR);
+			_count = count;
+			_table = newTable;
+			return newTable;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package org.jpark.pool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * обертка коннекта пула, которую получает пользователь, новая на каждую выдачу
+ * close() возвращает коннект в пул один раз, после этого обертка считается закрытой и любой вызов
+ * (кроме close, isClosed, isValid) бросает {@link SQLException}, даже если физический коннект уже выдан другому
+ */
+final class ConnectionHandle implements InvocationHandler
+{
+	private final PooledConnection _pooled;
+	private final Connection _proxy;
+	private final AtomicBoolean _closed = new AtomicBoolean();
+
+	ConnectionHandle(PooledConnection pooled)
+	{
+		_pooled = pooled;
+		_proxy = (Connection) Proxy.newProxyInstance(ConnectionHandle.class.getClassLoader(), new Class<?>[]{Connection.class}, this);
+	}
+
+	Connection getProxy()
+	{
+		return _proxy;
+	}
+
+	PooledConnection getPooled()
+	{
+		return _pooled;
+	}
+
+	/**
+	 * обертка еще владеет физическим коннектом
+	 */
+	private boolean isActive()
+	{
+		return !_closed.get() && _pooled._owner == this;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+	{
+		switch (method.getName())
+		{
+			case "close":
+				// вернуть в пул может только текущий владелец и только один раз
+				if (_closed.compareAndSet(false, true) && _pooled._owner == this)
+				{
+					_pooled.getPool().release(_pooled);
+				}
+				return null;
+			case "isClosed":
+				return !isActive() || _pooled.getPhysical().isClosed();
+			case "isValid":
+				if (!isActive())
+				{
+					return false;
+				}
+				break;
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return "PooledConnection{" + _pooled.getPhysical() + (isActive() ? "" : ", closed") + "}";
+			default:
+				break;
+		}
+
+		if (!isActive())
+		{
+			throw new SQLException("Connection is closed", "08003");
+		}
+
+		final Connection physical = _pooled.getPhysical();
+		switch (method.getName())
+		{
+			case "unwrap":
+				// кэш запросов держит запросы по физическому коннекту, а не по обертке
+				if (((Class<?>) args[0]).isInstance(physical))
+				{
+					return physical;
+				}
+				break;
+			case "isWrapperFor":
+				if (((Class<?>) args[0]).isInstance(physical))
+				{
+					return true;
+				}
+				break;
+			default:
+				break;
+		}
+
+		try
+		{
+			return method.invoke(physical, args);
+		}
+		catch (InvocationTargetException e)
+		{
+			final Throwable cause = e.getCause();
+			if (cause instanceof SQLException)
+			{
+				_pooled.checkBroken((SQLException) cause);
+			}
+			throw cause;
+		}
+	}
+}
@@ -0,0 +1,503 @@
+package org.jpark.pool;
+
+import org.jpark.EntityManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * простой пул коннектов
+ * выдача и возврат без локов: свободные коннекты лежат в {@link ConcurrentLinkedDeque} (LIFO, чтобы чаще
+ * выдавать "теплые" коннекты), число выданных коннектов ограничено семафором
+ * фоновый поток (хаускипер) закрывает долго простаивающие коннекты сверх minSize, добирает пул до minSize
+ * и пишет в лог стек того, кто держит коннект дольше leakDetectionThreshold
+ * коннект проверяется при выдаче только если простаивал дольше validationInterval
+ * каждая выдача получает свою обертку коннекта, закрытая обертка больше не работает
+ */
+public class ConnectionPool implements EntityManager.ConnectionFactory, AutoCloseable
+{
+	private static final Logger _log = LoggerFactory.getLogger(ConnectionPool.class.getName());
+
+	/**
+	 * фабрика физических коннектов
+	 */
+	private final EntityManager.ConnectionFactory _factory;
+
+	private final int _minSize;
+	private final int _maxSize;
+
+	/**
+	 * сколько ждем свободный коннект, мс
+	 */
+	private long _borrowTimeout = 30_000;
+
+	/**
+	 * через сколько простоя закрываем коннект сверх minSize, мс, 0 - не закрываем
+	 */
+	private long _idleTimeout = 600_000;
+
+	/**
+	 * коннект простоявший дольше этого проверяется isValid() перед выдачей, мс
+	 */
+	private long _validationInterval = 5_000;
+
+	/**
+	 * таймаут isValid(), сек
+	 */
+	private int _validationTimeout = 5;
+
+	/**
+	 * коннект не вернули дольше этого - пишем в лог утечку со стеком, мс, 0 - не ищем утечки
+	 */
+	private long _leakDetectionThreshold = 0;
+
+	/**
+	 * период хаускипера, мс
+	 */
+	private long _housekeepingPeriod = 1_000;
+
+	/**
+	 * свободные коннекты
+	 */
+	private final ConcurrentLinkedDeque<PooledConnection> _idle = new ConcurrentLinkedDeque<>();
+
+	/**
+	 * все живые коннекты пула, для хаускипера
+	 */
+	private final Set<PooledConnection> _all = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * физических коннектов открыто (или открывается прямо сейчас)
+	 */
+	private final AtomicInteger _total = new AtomicInteger();
+
+	private final Semaphore _permits;
+
+	private final AtomicBoolean _started = new AtomicBoolean();
+	private volatile boolean _closed;
+	private ScheduledExecutorService _housekeeper;
+
+	/**
+	 * пул поверх произвольной фабрики физических коннектов (в том числе тестовой заглушки)
+	 */
+	public ConnectionPool(EntityManager.ConnectionFactory factory, int minSize, int maxSize)
+	{
+		if (minSize < 0 || maxSize <= 0 || minSize > maxSize)
+		{
+			throw new IllegalArgumentException("Wrong pool size: " + minSize + ".." + maxSize);
+		}
+		_factory = factory;
+		_minSize = minSize;
+		_maxSize = maxSize;
+		_permits = new Semaphore(maxSize, true);
+	}
+
+	/**
+	 * пул коннектов через {@link DriverManager}
+	 */
+	public ConnectionPool(String url, Properties properties, int minSize, int maxSize)
+	{
+		this(() ->
+		{
+			try
+			{
+				return DriverManager.getConnection(url, properties);
+			}
+			catch (SQLException e)
+			{
+				throw new RuntimeException("SQLException", e);
+			}
+		}, minSize, maxSize);
+	}
+
+	public void setBorrowTimeout(long borrowTimeout)
+	{
+		_borrowTimeout = borrowTimeout;
+	}
+
+	public void setIdleTimeout(long idleTimeout)
+	{
+		_idleTimeout = idleTimeout;
+	}
+
+	public void setValidationInterval(long validationInterval)
+	{
+		_validationInterval = validationInterval;
+	}
+
+	public void setValidationTimeout(int validationTimeout)
+	{
+		_validationTimeout = validationTimeout;
+	}
+
+	public void setLeakDetectionThreshold(long leakDetectionThreshold)
+	{
+		_leakDetectionThreshold = leakDetectionThreshold;
+	}
+
+	public void setHousekeepingPeriod(long housekeepingPeriod)
+	{
+		_housekeepingPeriod = housekeepingPeriod;
+	}
+
+	/**
+	 * взять коннект из пула, close() коннекта вернет его обратно
+	 */
+	@Override
+	public Connection get()
+	{
+		if (_closed)
+		{
+			throw new IllegalStateException("Pool is closed");
+		}
+		start();
+
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_borrowTimeout);
+		try
+		{
+			if (!_permits.tryAcquire(_borrowTimeout, TimeUnit.MILLISECONDS))
+			{
+				throw new RuntimeException("SQLException", new SQLException("Connection borrow timeout " + _borrowTimeout + " ms, pool " + this));
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("SQLException", new SQLException("Interrupted while waiting for connection", e));
+		}
+
+		try
+		{
+			while (true)
+			{
+				PooledConnection pooled = _idle.pollFirst();
+				if (pooled != null)
+				{
+					// хаускипер мог успеть забрать коннект себе
+					if (pooled._state.compareAndSet(PooledConnection.IDLE, PooledConnection.IN_USE))
+					{
+						if (validate(pooled))
+						{
+							return borrowed(pooled);
+						}
+						discard(pooled);
+					}
+					continue;
+				}
+
+				if (reserve())
+				{
+					return borrowed(create(PooledConnection.IN_USE));
+				}
+
+				// все места заняты коннектами, которые прямо сейчас возвращаются или добираются хаускипером
+				if (System.nanoTime() > deadline)
+				{
+					throw new RuntimeException("SQLException", new SQLException("Connection borrow timeout " + _borrowTimeout + " ms, pool " + this));
+				}
+				LockSupport.parkNanos(100_000);
+			}
+		}
+		catch (RuntimeException e)
+		{
+			_permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * вернуть коннект в пул, вызывается из close() обертки текущего владельца
+	 */
+	void release(PooledConnection pooled)
+	{
+		pooled._owner = null;
+		if (!pooled._state.compareAndSet(PooledConnection.IN_USE, PooledConnection.IDLE))
+		{
+			return;
+		}
+		pooled._borrowStack = null;
+		pooled._leakReported = false;
+
+		boolean reusable = !pooled._broken && !_closed;
+		if (reusable)
+		{
+			try
+			{
+				// незавершенную транзакцию откатываем, чтобы следующий пользователь получил чистый коннект
+				final Connection physical = pooled.getPhysical();
+				if (!physical.getAutoCommit())
+				{
+					physical.rollback();
+					physical.setAutoCommit(true);
+				}
+			}
+			catch (SQLException e)
+			{
+				_log.warn("connection reset failed, discard", e);
+				reusable = false;
+			}
+		}
+
+		if (reusable)
+		{
+			pooled._lastUsed = System.nanoTime();
+			_idle.offerFirst(pooled);
+			// close() мог пройти между проверкой _closed и возвратом в очередь и уже вычистить ее
+			if (_closed && pooled._state.compareAndSet(PooledConnection.IDLE, PooledConnection.REMOVED))
+			{
+				_idle.remove(pooled);
+				discard(pooled);
+			}
+		}
+		else if (pooled._state.compareAndSet(PooledConnection.IDLE, PooledConnection.REMOVED))
+		{
+			discard(pooled);
+		}
+		_permits.release();
+	}
+
+	/**
+	 * проверить коннект перед выдачей, если он давно не использовался
+	 */
+	private boolean validate(PooledConnection pooled)
+	{
+		if (System.nanoTime() - pooled._lastUsed < TimeUnit.MILLISECONDS.toNanos(_validationInterval))
+		{
+			return true;
+		}
+		try
+		{
+			if (pooled.getPhysical().isValid(_validationTimeout))
+			{
+				pooled._lastUsed = System.nanoTime();
+				return true;
+			}
+		}
+		catch (SQLException e)
+		{
+			_log.debug("connection validation failed", e);
+		}
+		return false;
+	}
+
+	private Connection borrowed(PooledConnection pooled)
+	{
+		pooled._borrowedAt = System.nanoTime();
+		if (_leakDetectionThreshold > 0)
+		{
+			pooled._borrowStack = new Throwable("Connection borrowed here");
+		}
+		return pooled.newHandle();
+	}
+
+	/**
+	 * занять место под новый физический коннект, не больше maxSize
+	 */
+	private boolean reserve()
+	{
+		while (true)
+		{
+			final int total = _total.get();
+			if (total >= _maxSize)
+			{
+				return false;
+			}
+			if (_total.compareAndSet(total, total + 1))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * открыть физический коннект под уже занятое место
+	 */
+	private PooledConnection create(int state)
+	{
+		final Connection physical;
+		try
+		{
+			physical = _factory.get();
+		}
+		catch (RuntimeException e)
+		{
+			_total.decrementAndGet();
+			throw e;
+		}
+		final PooledConnection pooled = new PooledConnection(this, physical);
+		pooled._state.set(state);
+		_all.add(pooled);
+		_log.debug("pool connection opened, total " + _total.get());
+		return pooled;
+	}
+
+	/**
+	 * закрыть физический коннект и освободить его место
+	 */
+	private void discard(PooledConnection pooled)
+	{
+		pooled._state.set(PooledConnection.REMOVED);
+		if (_all.remove(pooled))
+		{
+			_total.decrementAndGet();
+			try
+			{
+				pooled.getPhysical().close();
+			}
+			catch (SQLException e)
+			{
+				_log.warn("connection close failed", e);
+			}
+			_log.debug("pool connection closed, total " + _total.get());
+		}
+	}
+
+	private void start()
+	{
+		if (_started.get() || !_started.compareAndSet(false, true))
+		{
+			return;
+		}
+		_housekeeper = Executors.newSingleThreadScheduledExecutor(r ->
+		{
+			final Thread thread = new Thread(r, "jpark-pool-housekeeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		_housekeeper.scheduleWithFixedDelay(this::housekeep, 0, _housekeepingPeriod, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * фоновая работа: утечки, закрытие простаивающих, добор до minSize
+	 */
+	private void housekeep()
+	{
+		try
+		{
+			final long now = System.nanoTime();
+
+			if (_leakDetectionThreshold > 0)
+			{
+				final long threshold = TimeUnit.MILLISECONDS.toNanos(_leakDetectionThreshold);
+				for (PooledConnection pooled : _all)
+				{
+					final Throwable stack = pooled._borrowStack;
+					if (pooled._state.get() == PooledConnection.IN_USE && stack != null && !pooled._leakReported
+							&& now - pooled._borrowedAt > threshold)
+					{
+						pooled._leakReported = true;
+						_log.warn("Connection leak detection triggered, connection is not returned for " +
+								TimeUnit.NANOSECONDS.toMillis(now - pooled._borrowedAt) + " ms", stack);
+					}
+				}
+			}
+
+			if (_idleTimeout > 0)
+			{
+				final long timeout = TimeUnit.MILLISECONDS.toNanos(_idleTimeout);
+				for (PooledConnection pooled : _idle)
+				{
+					if (_total.get() <= _minSize)
+					{
+						break;
+					}
+					if (now - pooled._lastUsed > timeout && pooled._state.compareAndSet(PooledConnection.IDLE, PooledConnection.REMOVED))
+					{
+						_idle.remove(pooled);
+						discard(pooled);
+					}
+				}
+			}
+
+			while (!_closed && _total.get() < _minSize && reserve())
+			{
+				final PooledConnection pooled = create(PooledConnection.IDLE);
+				_idle.offerLast(pooled);
+			}
+		}
+		catch (Throwable e)
+		{
+			// хаускипер не должен умирать от ошибки одного прохода
+			_log.error("pool housekeeping failed", e);
+		}
+	}
+
+	/**
+	 * закрыть пул: свободные коннекты закрываются сразу, выданные - при возврате
+	 */
+	@Override
+	public void close()
+	{
+		_closed = true;
+		if (_housekeeper != null)
+		{
+			_housekeeper.shutdownNow();
+		}
+		PooledConnection pooled;
+		while ((pooled = _idle.pollFirst()) != null)
+		{
+			if (pooled._state.compareAndSet(PooledConnection.IDLE, PooledConnection.REMOVED))
+			{
+				discard(pooled);
+			}
+		}
+	}
+
+	/**
+	 * открыто физических коннектов
+	 */
+	public int getTotalCount()
+	{
+		return _total.get();
+	}
+
+	/**
+	 * свободных коннектов в пуле
+	 */
+	public int getIdleCount()
+	{
+		return _idle.size();
+	}
+
+	/**
+	 * выдано коннектов
+	 */
+	public int getActiveCount()
+	{
+		return _maxSize - _permits.availablePermits();
+	}
+
+	/**
+	 * потоков ждет коннект
+	 */
+	public int getWaitingCount()
+	{
+		return _permits.getQueueLength();
+	}
+
+	public int getMinSize()
+	{
+		return _minSize;
+	}
+
+	public int getMaxSize()
+	{
+		return _maxSize;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ConnectionPool{total=" + getTotalCount() + ", idle=" + getIdleCount() + ", active=" + getActiveCount() +
+				", waiting=" + getWaitingCount() + ", max=" + _maxSize + "}";
+	}
+}
@@ -0,0 +1,94 @@
+package org.jpark.pool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * физический коннект пула
+ * пользователь получает не его, а {@link ConnectionHandle}: новую обертку на каждую выдачу,
+ * поэтому обертка, оставшаяся у прошлого пользователя, не может ни вернуть коннект в пул, ни работать с ним
+ */
+final class PooledConnection
+{
+	static final int IDLE = 0;
+	static final int IN_USE = 1;
+	static final int REMOVED = 2;
+
+	private final ConnectionPool _pool;
+	private final Connection _physical;
+
+	/**
+	 * состояние меняем только через CAS, так борьба пользователя и хаускипера за коннект обходится без локов
+	 */
+	final AtomicInteger _state = new AtomicInteger(IN_USE);
+
+	/**
+	 * когда коннект последний раз вернули в пул или проверили, System.nanoTime()
+	 */
+	volatile long _lastUsed;
+
+	/**
+	 * когда коннект выдали, System.nanoTime()
+	 */
+	volatile long _borrowedAt;
+
+	/**
+	 * стек того, кто взял коннект, только при включенном поиске утечек
+	 */
+	volatile Throwable _borrowStack;
+
+	/**
+	 * об утечке уже сообщили, второй раз не пишем
+	 */
+	volatile boolean _leakReported;
+
+	/**
+	 * драйвер вернул ошибку соединения (SQLState 08xxx), в пул такой коннект не возвращаем
+	 */
+	volatile boolean _broken;
+
+	/**
+	 * обертка текущего пользователя, только она может работать с коннектом
+	 */
+	volatile ConnectionHandle _owner;
+
+	PooledConnection(ConnectionPool pool, Connection physical)
+	{
+		_pool = pool;
+		_physical = physical;
+		_lastUsed = System.nanoTime();
+	}
+
+	ConnectionPool getPool()
+	{
+		return _pool;
+	}
+
+	Connection getPhysical()
+	{
+		return _physical;
+	}
+
+	/**
+	 * выдать коннект новому пользователю: новая обертка, старые перестают работать
+	 */
+	Connection newHandle()
+	{
+		final ConnectionHandle handle = new ConnectionHandle(this);
+		_owner = handle;
+		return handle.getProxy();
+	}
+
+	/**
+	 * ошибка драйвера: SQLState 08xxx значит, что соединение потеряно
+	 */
+	void checkBroken(SQLException e)
+	{
+		final String state = e.getSQLState();
+		if (state != null && state.startsWith("08"))
+		{
+			_broken = true;
+		}
+	}
+}
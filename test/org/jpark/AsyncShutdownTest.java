@@ -0,0 +1,53 @@
+package org.jpark;
+
+import org.jpark.entity.Player;
+import org.jpark.stub.StubDriver;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AsyncShutdownTest
+{
+	@Test
+	public void callsAfterShutdownFailTheirFutures() throws Exception
+	{
+		final StubDriver driver = new StubDriver();
+		driver.setHandler(new StubDriver.Handler()
+		{
+			@Override
+			public StubDriver.Rows query(String sql, List<Object> params)
+			{
+				return new StubDriver.Rows("id", "name", "level").add(1, "player", 1);
+			}
+
+			@Override
+			public int update(String sql, List<Object> params)
+			{
+				return 1;
+			}
+		});
+		final EntityManager em = new EntityManager(true);
+		em.setConnectionFactory(driver);
+		em.findEntities("org.jpark.entity");
+
+		assertEquals(1, em.findByIdAsync(Player.class, 1).get(5, TimeUnit.SECONDS).getId());
+
+		em.shutdownAsync();
+		final CompletableFuture<Player> future = em.findByIdAsync(Player.class, 1);
+		try
+		{
+			future.get(5, TimeUnit.SECONDS);
+			fail();
+		}
+		catch (ExecutionException e)
+		{
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package org.jpark;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BoundedExecutorTest
+{
+	@Test
+	public void limitsTasksInFlight() throws InterruptedException
+	{
+		final ExecutorService pool = Executors.newFixedThreadPool(8);
+		try
+		{
+			final BoundedExecutor executor = new BoundedExecutor(pool, 2);
+			final AtomicInteger running = new AtomicInteger();
+			final AtomicInteger maxRunning = new AtomicInteger();
+			final CountDownLatch done = new CountDownLatch(50);
+			for (int i = 0; i < 50; i++)
+			{
+				executor.execute(() ->
+				{
+					maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+					try
+					{
+						Thread.sleep(1);
+					}
+					catch (InterruptedException ignored)
+					{
+					}
+					running.decrementAndGet();
+					done.countDown();
+				}, e -> fail());
+			}
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertTrue(maxRunning.get() <= 2);
+			assertEquals(0, executor.getQueuedCount());
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void rejectedTaskIsReportedNotRunOnCaller()
+	{
+		final ExecutorService pool = Executors.newSingleThreadExecutor();
+		pool.shutdown();
+		final BoundedExecutor executor = new BoundedExecutor(pool, 1);
+		final List<RejectedExecutionException> rejected = new ArrayList<>();
+		final AtomicInteger ran = new AtomicInteger();
+		for (int i = 0; i < 3; i++)
+		{
+			executor.execute(ran::incrementAndGet, rejected::add);
+		}
+		assertEquals(0, ran.get());
+		assertEquals(3, rejected.size());
+		assertEquals("slots are released after rejection", 0, executor.getInFlightCount());
+		assertEquals(0, executor.getQueuedCount());
+	}
+}
@@ -0,0 +1,107 @@
+package org.jpark;
+
+import org.jpark.entity.Item;
+import org.jpark.entity.VersionedPlayer;
+import org.jpark.stub.StubDriver;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BulkLoadTest
+{
+	private StubDriver _driver;
+	private EntityManager _em;
+
+	/**
+	 * содержимое потока каждой загрузки
+	 */
+	private final List<String> _loaded = new ArrayList<>();
+
+	@Before
+	public void setUp()
+	{
+		_driver = new StubDriver();
+		_driver.setHandler(new StubDriver.Handler()
+		{
+			@Override
+			public StubDriver.Rows query(String sql, List<Object> params)
+			{
+				return new StubDriver.Rows("id");
+			}
+
+			@Override
+			public int update(String sql, List<Object> params)
+			{
+				final String data = (String) params.get(0);
+				_loaded.add(data);
+				// строки с дублями ключей LOCAL загрузка пропускает, пусть последняя строка будет дублем
+				return (int) data.chars().filter(c -> c == '\n').count() - 1;
+			}
+		});
+		_em = new EntityManager();
+		_em.setConnectionFactory(_driver);
+		_em.findEntities("org.jpark.entity");
+		_driver.clearLog();
+	}
+
+	private static String value(Object value)
+	{
+		final StringBuilder out = new StringBuilder();
+		DatabasePlatform.appendLoadDataValue(out, value);
+		return out.toString();
+	}
+
+	@Test
+	public void valuesAreEscaped()
+	{
+		assertEquals("\\N", value(null));
+		assertEquals("a\\tb\\nc\\\\d\\re\\0", value("a\tb\nc\\d\re\0"));
+		assertEquals("\\\\N", value("\\N"));
+		assertEquals("", value(""));
+		assertEquals("00017FFFAB", value(new byte[]{0, 1, 127, -1, (byte) 0xab}));
+		assertEquals("", value(new byte[0]));
+		assertEquals("1", value(true));
+		assertEquals("-12.50", value(new java.math.BigDecimal("-12.50")));
+	}
+
+	@Test
+	public void loadsRowsThroughStream()
+	{
+		final Item plain = new Item("plain");
+		plain.setData(new byte[]{1, (byte) 0xfe});
+		final Item special = new Item("tab\tline\nslash\\");
+		final Item empty = new Item(null);
+
+		final int rows = _em.bulkLoad(Item.class, Arrays.asList(plain, special, empty));
+
+		assertEquals(Collections.singletonList("LOAD DATA LOCAL INFILE 'stream' INTO TABLE items CHARACTER SET utf8mb4" +
+				" FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n' (id, name, @v2) SET data=UNHEX(@v2)"), _driver.getLog());
+		assertEquals(Collections.singletonList(
+				"0\tplain\t01FE\n" +
+				"0\ttab\\tline\\nslash\\\\\t\\N\n" +
+				"0\t\\N\t\\N\n"), _loaded);
+		assertEquals("row count reported by the database", 2, rows);
+		assertFalse(_em.contains(plain));
+	}
+
+	@Test
+	public void newRowsStartWithInitialVersion()
+	{
+		final VersionedPlayer player = new VersionedPlayer();
+		player.setLevel(7);
+		_em.bulkLoad(VersionedPlayer.class, Collections.singletonList(player));
+		assertEquals(Collections.singletonList("0\t7\t0\n"), _loaded);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void wrongEntityClassIsRejected()
+	{
+		_em.bulkLoad(Item.class, Collections.singletonList(new VersionedPlayer()));
+	}
+}
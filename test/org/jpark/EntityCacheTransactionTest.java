@@ -0,0 +1,172 @@
+package org.jpark;
+
+import org.jpark.cache.EntityCache;
+import org.jpark.entity.CachedItem;
+import org.jpark.entity.CachedPlayer;
+import org.jpark.stub.StubDriver;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EntityCacheTransactionTest
+{
+	private StubDriver _driver;
+	private EntityManager _em;
+
+	/**
+	 * закоммиченное в "базе" значение уровня игрока 1
+	 */
+	private final AtomicInteger _committedLevel = new AtomicInteger(1);
+
+	/**
+	 * выполнить в базе во время следующего SELECT, уже после того как строка прочитана
+	 */
+	private Runnable _duringSelect;
+
+	@Before
+	public void setUp()
+	{
+		_driver = new StubDriver();
+		_driver.setHandler(new StubDriver.Handler()
+		{
+			@Override
+			public StubDriver.Rows query(String sql, List<Object> params)
+			{
+				if (sql.contains("cached_items"))
+				{
+					return new StubDriver.Rows("id", "name").add(params.get(0), "item" + _committedLevel.get());
+				}
+				final StubDriver.Rows rows = new StubDriver.Rows("id", "level").add(1, _committedLevel.get());
+				final Runnable duringSelect = _duringSelect;
+				_duringSelect = null;
+				if (duringSelect != null)
+				{
+					duringSelect.run();
+				}
+				return rows;
+			}
+
+			@Override
+			public int update(String sql, List<Object> params)
+			{
+				return 1;
+			}
+		});
+		_em = new EntityManager();
+		_em.setConnectionFactory(_driver);
+		_em.setEntityCache(new EntityCache(100));
+		_em.findEntities("org.jpark.entity");
+	}
+
+	@Test
+	public void autoCommitReadIsCached()
+	{
+		_em.findById(CachedPlayer.class, 1);
+		final long executed = _driver.getExecutedCount();
+		assertEquals(1, _em.findById(CachedPlayer.class, 1).getLevel());
+		assertEquals(executed, _driver.getExecutedCount());
+	}
+
+	@Test
+	public void transactionDoesNotReadCache() throws SQLException
+	{
+		_em.findById(CachedPlayer.class, 1);
+		final Connection connection = _em.beginTransaction();
+		final long executed = _driver.getExecutedCount();
+		_em.findById(CachedPlayer.class, connection, 1);
+		_em.findAllById(CachedPlayer.class, connection, Collections.singletonList(1));
+		assertEquals(executed + 2, _driver.getExecutedCount());
+		_em.commit(connection);
+	}
+
+	@Test
+	public void updateByIdIsInvalidatedAfterCommit() throws SQLException
+	{
+		_em.findById(CachedPlayer.class, 1);
+		final Connection connection = _em.beginTransaction();
+		_em.update(CachedPlayer.class, connection, 1, Collections.singletonMap("level", 5));
+
+		// другой поток до коммита снова кладет в кэш старое значение
+		assertEquals(1, _em.findById(CachedPlayer.class, 1).getLevel());
+
+		_committedLevel.set(5);
+		_em.commit(connection);
+		assertEquals(5, _em.findById(CachedPlayer.class, 1).getLevel());
+	}
+
+	@Test
+	public void flushedEntityIsInvalidatedAfterCommit() throws SQLException
+	{
+		final CachedPlayer player = _em.findById(CachedPlayer.class, 1);
+		final Connection connection = _em.beginTransaction();
+		player.setLevel(7);
+		_em.persist(player, connection);
+		_em.flush(connection);
+
+		assertEquals(1, _em.findById(CachedPlayer.class, 1).getLevel());
+
+		_committedLevel.set(7);
+		_em.commit(connection);
+		assertEquals(7, _em.findById(CachedPlayer.class, 1).getLevel());
+	}
+
+	@Test
+	public void removeByIdIsInvalidatedAfterCommit() throws SQLException
+	{
+		_em.findById(CachedPlayer.class, 1);
+		final Connection connection = _em.beginTransaction();
+		_em.removeById(CachedPlayer.class, connection, 1);
+
+		assertEquals(1, _em.findById(CachedPlayer.class, 1).getLevel());
+
+		_committedLevel.set(9);
+		_em.commit(connection);
+		assertEquals(9, _em.findById(CachedPlayer.class, 1).getLevel());
+	}
+
+	@Test
+	public void readStartedBeforeUpdateIsNotCached()
+	{
+		// другой поток меняет строку, пока этот читает ее старое значение
+		_duringSelect = () ->
+		{
+			_em.update(CachedPlayer.class, 1, Collections.singletonMap("level", 5));
+			_committedLevel.set(5);
+		};
+		assertEquals(1, _em.findById(CachedPlayer.class, 1).getLevel());
+		assertEquals(5, _em.findById(CachedPlayer.class, 1).getLevel());
+
+		_em.getEntityCache().clear();
+		_duringSelect = () ->
+		{
+			_em.update(CachedPlayer.class, 1, Collections.singletonMap("level", 6));
+			_committedLevel.set(6);
+		};
+		assertEquals(5, _em.findAllById(CachedPlayer.class, Collections.singletonList(1)).get(0).getLevel());
+		assertEquals(6, _em.findById(CachedPlayer.class, 1).getLevel());
+	}
+
+	@Test
+	public void classInvalidationSurvivesLaterIdInvalidation() throws SQLException
+	{
+		assertEquals("item1", _em.findById(CachedItem.class, 1L).getName());
+		final Connection connection = _em.beginTransaction();
+		// строка без ид: какую задели - неизвестно, выкидывается весь класс; затем строка с ид 2
+		_em.mergeAll(Arrays.asList(new CachedItem(0, "new"), new CachedItem(2, "two")), connection);
+
+		// другой поток до коммита снова кладет в кэш старое значение ид 1
+		assertEquals("item1", _em.findById(CachedItem.class, 1L).getName());
+
+		_committedLevel.set(5);
+		_em.commit(connection);
+		assertEquals("item5", _em.findById(CachedItem.class, 1L).getName());
+	}
+}
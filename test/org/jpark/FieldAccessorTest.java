@@ -0,0 +1,56 @@
+package org.jpark;
+
+import org.jpark.entity.Item;
+import org.jpark.entity.Player;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.*;
+
+public class FieldAccessorTest
+{
+	private static FieldAccessor accessor(Class<?> clazz, String name) throws NoSuchFieldException
+	{
+		final Field field = clazz.getDeclaredField(name);
+		field.setAccessible(true);
+		return FieldAccessor.build(field);
+	}
+
+	@Test
+	public void nullIntoPrimitiveFieldIsRejected() throws Exception
+	{
+		final FieldAccessor level = accessor(Player.class, "_level");
+		final Player player = new Player(1, "player", 5);
+		try
+		{
+			level.set(player, null);
+			fail();
+		}
+		catch (IllegalArgumentException expected)
+		{
+		}
+		assertEquals("field is left unchanged", 5, player.getLevel());
+	}
+
+	@Test
+	public void primitiveAndObjectFieldsRoundTrip() throws Exception
+	{
+		final FieldAccessor id = accessor(Item.class, "_id");
+		final FieldAccessor name = accessor(Item.class, "_name");
+		final Item item = new Item("a");
+
+		id.set(item, 7L);
+		assertEquals(7L, id.getLong(item));
+		assertEquals(7L, id.get(item));
+
+		name.set(item, null);
+		assertNull(item.getName());
+
+		final Item clone = new Item("b");
+		id.copy(item, clone);
+		name.copy(item, clone);
+		assertTrue(id.isSame(item, clone));
+		assertTrue(name.isSame(item, clone));
+	}
+}
@@ -0,0 +1,64 @@
+package org.jpark;
+
+import org.jpark.entity.Player;
+import org.jpark.stub.StubDriver;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FieldCodecTest
+{
+	private EntityManager _em;
+
+	/**
+	 * уровень игрока в "базе", null - колонка NULL
+	 */
+	private Integer _level;
+
+	@Before
+	public void setUp()
+	{
+		final StubDriver driver = new StubDriver();
+		driver.setHandler(new StubDriver.Handler()
+		{
+			@Override
+			public StubDriver.Rows query(String sql, List<Object> params)
+			{
+				return new StubDriver.Rows("id", "name", "level").add(params.get(0), "player", _level);
+			}
+
+			@Override
+			public int update(String sql, List<Object> params)
+			{
+				return 1;
+			}
+		});
+		_em = new EntityManager();
+		_em.setConnectionFactory(driver);
+		_em.findEntities("org.jpark.entity");
+	}
+
+	@Test
+	public void nullColumnIntoPrimitiveFieldIsRejected()
+	{
+		try
+		{
+			_em.findById(Player.class, 1);
+			fail("NULL must not be read as 0");
+		}
+		catch (IllegalArgumentException expected)
+		{
+			assertTrue(expected.getMessage(), expected.getMessage().contains("_level"));
+		}
+	}
+
+	@Test
+	public void zeroColumnIsRead()
+	{
+		_level = 0;
+		assertEquals(0, _em.findById(Player.class, 1).getLevel());
+	}
+}
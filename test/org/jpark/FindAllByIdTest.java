@@ -0,0 +1,72 @@
+package org.jpark;
+
+import org.jpark.entity.Player;
+import org.jpark.stub.StubDriver;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FindAllByIdTest
+{
+	private StubDriver _driver;
+	private EntityManager _em;
+
+	@Before
+	public void setUp()
+	{
+		_driver = new StubDriver();
+		_driver.setHandler(new StubDriver.Handler()
+		{
+			@Override
+			public StubDriver.Rows query(String sql, List<Object> params)
+			{
+				final StubDriver.Rows rows = new StubDriver.Rows("id", "name", "level");
+				// в таблице есть только четные ид, ид может прийти строкой - MySQL приведет его сам
+				params.stream().map(id -> Integer.parseInt(String.valueOf(id))).distinct().filter(id -> id % 2 == 0)
+						.forEach(id -> rows.add(id, "player" + id, 1));
+				return rows;
+			}
+
+			@Override
+			public int update(String sql, List<Object> params)
+			{
+				return 1;
+			}
+		});
+		_em = new EntityManager();
+		_em.setConnectionFactory(_driver);
+		_em.findEntities("org.jpark.entity");
+	}
+
+	@Test
+	public void missingIdsAreReportedOnceInRequestOrder()
+	{
+		final List<Object> missing = new ArrayList<>();
+		final List<Player> players = _em.findAllById(Player.class, Arrays.asList(2, 3, 4, 5, 3, 6), missing::add);
+
+		assertEquals(6, players.size());
+		assertEquals(2, players.get(0).getId());
+		assertNull(players.get(1));
+		assertEquals(4, players.get(2).getId());
+		assertNull(players.get(3));
+		assertNull(players.get(4));
+		assertEquals(6, players.get(5).getId());
+		assertEquals(Arrays.asList(3, 5), missing);
+	}
+
+	@Test
+	public void stringIdsMatchNumericKeys()
+	{
+		final List<Object> missing = new ArrayList<>();
+		final List<Player> players = _em.findAllById(Player.class, Arrays.asList("2", "3"), missing::add);
+		assertEquals(2, players.get(0).getId());
+		assertNull(players.get(1));
+		assertEquals(Arrays.asList("3"), missing);
+		assertEquals(2, _em.findById(Player.class, "2").getId());
+	}
+}
@@ -0,0 +1,87 @@
+package org.jpark;
+
+import org.jpark.entity.Player;
+import org.jpark.stub.StubDriver;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class KeyBindingTest
+{
+	private final Set<Integer> _table = new TreeSet<>(Arrays.asList(1, 2));
+	private StubDriver _driver;
+	private EntityManager _em;
+
+	@Before
+	public void setUp()
+	{
+		_driver = new StubDriver();
+		_driver.setHandler(new StubDriver.Handler()
+		{
+			@Override
+			public StubDriver.Rows query(String sql, List<Object> params)
+			{
+				final StubDriver.Rows rows = new StubDriver.Rows("id", "name", "level");
+				for (int id : _table)
+				{
+					if (params.stream().anyMatch(p -> matches(p, id)))
+					{
+						rows.add(id, "player" + id, 1);
+					}
+				}
+				return rows;
+			}
+
+			@Override
+			public int update(String sql, List<Object> params)
+			{
+				final int size = _table.size();
+				_table.removeIf(id -> params.stream().anyMatch(p -> matches(p, id)));
+				return size - _table.size();
+			}
+		});
+		_em = new EntityManager();
+		_em.setConnectionFactory(_driver);
+		_em.findEntities("org.jpark.entity");
+	}
+
+	/**
+	 * MySQL сравнивает INT колонку с параметром без сужения параметра
+	 */
+	private static boolean matches(Object param, int id)
+	{
+		return new BigDecimal(String.valueOf(param)).compareTo(BigDecimal.valueOf(id)) == 0;
+	}
+
+	@Test
+	public void outOfRangeLongIdFindsNothing()
+	{
+		assertNull(_em.findById(Player.class, 4294967297L));
+		final List<Player> players = _em.findAllById(Player.class, Arrays.asList(4294967297L, 2L));
+		assertNull(players.get(0));
+		assertEquals(2, players.get(1).getId());
+	}
+
+	@Test
+	public void outOfRangeLongIdDeletesNothing()
+	{
+		_em.removeById(Player.class, 4294967298L);
+		_em.removeAllById(Player.class, Arrays.asList(4294967297L, 4294967298L));
+		assertEquals(new TreeSet<>(Arrays.asList(1, 2)), _table);
+	}
+
+	@Test
+	public void inRangeLongIdMatches()
+	{
+		assertEquals(1, _em.findById(Player.class, 1L).getId());
+		_em.removeById(Player.class, 2L);
+		assertEquals(new TreeSet<>(Arrays.asList(1)), _table);
+	}
+}
@@ -0,0 +1,106 @@
+package org.jpark;
+
+import org.jpark.entity.Player;
+import org.jpark.stub.StubDriver;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ManagedIndexTest
+{
+	private EntityManager _em;
+
+	@Before
+	public void setUp()
+	{
+		final StubDriver driver = new StubDriver();
+		driver.setHandler(new StubDriver.Handler()
+		{
+			@Override
+			public StubDriver.Rows query(String sql, List<Object> params)
+			{
+				final StubDriver.Rows rows = new StubDriver.Rows("id", "name", "level");
+				params.stream().map(id -> Integer.parseInt(String.valueOf(id))).distinct()
+						.forEach(id -> rows.add(id, "player" + id, 1));
+				return rows;
+			}
+
+			@Override
+			public int update(String sql, List<Object> params)
+			{
+				return 1;
+			}
+		});
+		_em = new EntityManager();
+		_em.setConnectionFactory(driver);
+		_em.findEntities("org.jpark.entity");
+	}
+
+	@Test
+	public void updateByIdPatchesEveryManagedInstance()
+	{
+		final Player first = _em.findById(Player.class, 1);
+		final Player second = _em.findById(Player.class, 1);
+		final Player other = _em.findById(Player.class, 2);
+
+		assertEquals(1, _em.update(Player.class, 1L, Collections.singletonMap("level", 5)));
+		assertEquals(5, first.getLevel());
+		assertEquals(5, second.getLevel());
+		assertEquals(1, other.getLevel());
+	}
+
+	@Test
+	public void detachedInstanceIsNotPatched()
+	{
+		final Player managed = _em.findById(Player.class, 1);
+		final Player detached = _em.findById(Player.class, 1);
+		_em.detach(detached);
+
+		_em.update(Player.class, 1, Collections.singletonMap("level", 7));
+		assertEquals(7, managed.getLevel());
+		assertEquals(1, detached.getLevel());
+	}
+
+	@Test
+	public void removeByIdDetachesManagedInstances()
+	{
+		final Player first = _em.findById(Player.class, 1);
+		final Player second = _em.findById(Player.class, "1");
+		final Player other = _em.findById(Player.class, 2);
+
+		_em.removeById(Player.class, 1);
+		assertFalse(_em.contains(first));
+		assertFalse(_em.contains(second));
+		assertTrue(_em.contains(other));
+
+		_em.removeAllById(Player.class, Arrays.asList(2, 3));
+		assertFalse(_em.contains(other));
+	}
+
+	@Test
+	public void collectedEntitiesLeaveIndex() throws Exception
+	{
+		for (int i = 0; i < 100; i++)
+		{
+			_em.findById(Player.class, i);
+		}
+		final Player live = _em.findById(Player.class, 1000);
+
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (_em.getManagedIndexSize() > 1 && System.nanoTime() < deadline)
+		{
+			System.gc();
+			Thread.sleep(10);
+			// вычистка идет на следующей вставке в индекс
+			_em.findById(Player.class, 1000);
+		}
+		assertEquals(1, _em.getManagedIndexSize());
+		assertTrue(_em.contains(live));
+	}
+}
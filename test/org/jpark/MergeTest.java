@@ -0,0 +1,161 @@
+package org.jpark;
+
+import org.jpark.entity.Item;
+import org.jpark.entity.VersionedPlayer;
+import org.jpark.stub.StubDriver;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MergeTest
+{
+	private StubDriver _driver;
+	private EntityManager _em;
+
+	/**
+	 * сколько строк "изменит" каждое следующее выполнение, по умолчанию 1
+	 */
+	private final Deque<Integer> _affected = new ArrayDeque<>();
+	private long _generatedKey = 42;
+
+	@Before
+	public void setUp()
+	{
+		_driver = new StubDriver();
+		_driver.setHandler(new StubDriver.Handler()
+		{
+			@Override
+			public StubDriver.Rows query(String sql, List<Object> params)
+			{
+				if (sql.contains("versioned_players"))
+				{
+					return new StubDriver.Rows("id", "level", "version").add(params.get(0), 1, 3);
+				}
+				return new StubDriver.Rows("id");
+			}
+
+			@Override
+			public int update(String sql, List<Object> params)
+			{
+				final Integer affected = _affected.poll();
+				return affected == null ? 1 : affected;
+			}
+
+			@Override
+			public StubDriver.Rows generatedKeys(String sql, List<List<Object>> params)
+			{
+				return new StubDriver.Rows("GENERATED_KEY").add(_generatedKey);
+			}
+		});
+		_em = new EntityManager();
+		_em.setConnectionFactory(_driver);
+		_em.findEntities("org.jpark.entity");
+		_driver.clearLog();
+	}
+
+	private String lastSql()
+	{
+		final List<String> log = _driver.getLog();
+		return log.get(log.size() - 1);
+	}
+
+	@Test
+	public void updateModeReadsIdOfInsertedOrExistingRow()
+	{
+		final Item item = new Item("a");
+		// 2 строки - MySQL обновил существующую, LAST_INSERT_ID(id) вернул ее ид
+		_affected.add(2);
+		_em.merge(item);
+
+		assertEquals("INSERT INTO items (id, name, data) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE id=LAST_INSERT_ID(id), name=VALUES(name), data=VALUES(data)", lastSql());
+		assertEquals(42, item.getId());
+		assertTrue(_em.contains(item));
+	}
+
+	@Test
+	public void updateModeIncrementsVersionOfExistingRow()
+	{
+		final VersionedPlayer player = new VersionedPlayer();
+		player.setLevel(3);
+		_em.merge(player);
+
+		assertEquals("INSERT INTO versioned_players (id, level, version) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE level=VALUES(level), version=COALESCE(version, 0)+1", lastSql());
+		assertEquals(Integer.valueOf(0), player.getVersion());
+		// версия в базе неизвестна, сущность не управляется
+		assertFalse(_em.contains(player));
+	}
+
+	@Test
+	public void managedVersionedEntityIsDetachedAfterUpdateMerge()
+	{
+		final VersionedPlayer player = _em.findById(VersionedPlayer.class, 1);
+		assertTrue(_em.contains(player));
+
+		player.setLevel(4);
+		_em.merge(player);
+
+		// в базе теперь версия 4, клон с версией 3 дал бы ложный конфликт версии на следующем persist
+		assertFalse(_em.contains(player));
+		assertEquals(Integer.valueOf(3), player.getVersion());
+		_driver.clearLog();
+		assertEquals(Integer.valueOf(3), _em.findById(VersionedPlayer.class, 1).getVersion());
+		assertEquals(1, _driver.getLog().size());
+	}
+
+	@Test
+	public void ignoredRowIsNotManaged()
+	{
+		final Item ignored = new Item("a");
+		ignored.setId(5);
+		_affected.add(0);
+		_em.merge(ignored, MergeMode.IGNORE);
+		assertTrue(lastSql().startsWith("INSERT IGNORE INTO items (id, name, data) VALUES"));
+		assertFalse(lastSql().contains("ON DUPLICATE KEY"));
+		assertFalse(_em.contains(ignored));
+
+		final Item inserted = new Item("b");
+		inserted.setId(6);
+		_affected.add(1);
+		_em.merge(inserted, MergeMode.IGNORE);
+		assertTrue(_em.contains(inserted));
+	}
+
+	@Test
+	public void ignoredRowsOfBatchAreNotManaged()
+	{
+		final Item inserted = new Item("a");
+		inserted.setId(5);
+		final Item ignored = new Item("b");
+		ignored.setId(6);
+		_affected.addAll(Arrays.asList(1, 0));
+		_em.mergeAll(Arrays.asList(inserted, ignored), MergeMode.IGNORE);
+
+		assertEquals(1, _driver.getLog().size());
+		assertTrue(_em.contains(inserted));
+		assertFalse(_em.contains(ignored));
+	}
+
+	@Test
+	public void replacedRowIsManaged()
+	{
+		final Item item = new Item("a");
+		// REPLACE существующей строки: удаление и вставка
+		_affected.add(2);
+		_em.merge(item, MergeMode.REPLACE);
+
+		assertEquals("REPLACE INTO items (id, name, data) VALUES (?, ?, ?)", lastSql());
+		assertEquals(42, item.getId());
+		assertTrue(_em.contains(item));
+
+		final VersionedPlayer player = new VersionedPlayer();
+		_em.merge(player, MergeMode.REPLACE);
+		assertFalse(lastSql().contains("version, 0)+1"));
+		assertTrue(_em.contains(player));
+	}
+}
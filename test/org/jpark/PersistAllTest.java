@@ -0,0 +1,111 @@
+package org.jpark;
+
+import org.jpark.entity.Item;
+import org.jpark.entity.Player;
+import org.jpark.stub.StubDriver;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class PersistAllTest
+{
+	private StubDriver _driver;
+	private EntityManager _em;
+
+	/**
+	 * строк в каждом выполненном INSERT items, по порядку
+	 */
+	private final List<Integer> _itemBatches = new ArrayList<>();
+	private long _nextId = 100;
+
+	@Before
+	public void setUp()
+	{
+		_driver = new StubDriver();
+		_driver.setHandler(new StubDriver.Handler()
+		{
+			@Override
+			public StubDriver.Rows query(String sql, List<Object> params)
+			{
+				return new StubDriver.Rows("id");
+			}
+
+			@Override
+			public int update(String sql, List<Object> params)
+			{
+				return 1;
+			}
+
+			@Override
+			public StubDriver.Rows generatedKeys(String sql, List<List<Object>> params)
+			{
+				_itemBatches.add(params.size());
+				final StubDriver.Rows keys = new StubDriver.Rows("GENERATED_KEY");
+				for (int i = 0; i < params.size(); i++)
+				{
+					keys.add(_nextId++);
+				}
+				return keys;
+			}
+		});
+		_em = new EntityManager();
+		_em.setConnectionFactory(_driver);
+		_em.setBatchSize(2);
+		_em.findEntities("org.jpark.entity");
+		_driver.clearLog();
+	}
+
+	private List<String> inserts()
+	{
+		return _driver.getLog().stream().filter(sql -> sql.startsWith("INSERT")).map(sql -> sql.substring(0, sql.indexOf(" (")))
+				.collect(Collectors.toList());
+	}
+
+	@Test
+	public void groupsByClassAndAssignsKeysInInsertOrder()
+	{
+		final Item a = new Item("a");
+		final Item b = new Item("b");
+		final Item c = new Item("c");
+		_em.persistAll(Arrays.asList(a, new Player(1, "p1", 1), b, c, new Player(2, "p2", 1)));
+
+		assertEquals(Arrays.asList("INSERT INTO items", "INSERT INTO items", "INSERT INTO players"), inserts());
+		assertEquals(Arrays.asList(2, 1), _itemBatches);
+		assertEquals(100, a.getId());
+		assertEquals(101, b.getId());
+		assertEquals(102, c.getId());
+	}
+
+	@Test
+	public void duplicateNewEntityIsInsertedOnce()
+	{
+		final Item a = new Item("a");
+		final Item b = new Item("b");
+		_em.persistAll(Arrays.asList(a, a, b, a));
+
+		assertEquals(Arrays.asList("INSERT INTO items"), inserts());
+		assertEquals(Arrays.asList(2), _itemBatches);
+		assertEquals(100, a.getId());
+		assertEquals(101, b.getId());
+	}
+
+	@Test
+	public void managedEntityIsUpdatedNotInserted()
+	{
+		final Item a = new Item("a");
+		_em.persistAll(Arrays.asList(a));
+		_driver.clearLog();
+
+		a.setName("renamed");
+		_em.persistAll(Arrays.asList(a, new Item("b")));
+
+		assertEquals(Arrays.asList("INSERT INTO items"), inserts());
+		assertTrue(_driver.getLog().stream().anyMatch(sql -> sql.startsWith("UPDATE items")));
+	}
+}
@@ -0,0 +1,71 @@
+package org.jpark;
+
+import org.jpark.pool.ConnectionPool;
+import org.jpark.stub.StubDriver;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import static org.junit.Assert.*;
+
+public class StatementCacheTest
+{
+	@Test
+	public void hitsAcrossPoolBorrows() throws SQLException
+	{
+		final StubDriver driver = new StubDriver();
+		final StatementCache cache = new StatementCache(16);
+		try (ConnectionPool pool = new ConnectionPool(driver, 0, 1))
+		{
+			PreparedStatement first;
+			try (Connection connection = pool.get(); CachedStatement cached = cache.prepare(connection, "SELECT 1", false))
+			{
+				first = cached.getStatement();
+			}
+			try (Connection connection = pool.get(); CachedStatement cached = cache.prepare(connection, "SELECT 1", false))
+			{
+				assertSame("new handle of the same physical connection hits the cache", first, cached.getStatement());
+			}
+			assertEquals(1, cache.getHitCount());
+			assertEquals(1, cache.getMissCount());
+			assertEquals(1, driver.getPreparedCount());
+		}
+	}
+
+	@Test
+	public void nestedUseGetsSeparateStatements() throws SQLException
+	{
+		final StubDriver driver = new StubDriver();
+		final StatementCache cache = new StatementCache(16);
+		try (Connection connection = driver.get())
+		{
+			try (CachedStatement outer = cache.prepare(connection, "SELECT 1", false);
+				 CachedStatement inner = cache.prepare(connection, "SELECT 1", false))
+			{
+				assertNotSame(outer.getStatement(), inner.getStatement());
+			}
+			assertEquals(2, driver.getPreparedCount());
+		}
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() throws SQLException
+	{
+		final StubDriver driver = new StubDriver();
+		final StatementCache cache = new StatementCache(2);
+		try (Connection connection = driver.get())
+		{
+			PreparedStatement first;
+			try (CachedStatement cached = cache.prepare(connection, "SELECT 1", false))
+			{
+				first = cached.getStatement();
+			}
+			cache.prepare(connection, "SELECT 2", false).close();
+			cache.prepare(connection, "SELECT 3", false).close();
+			assertEquals(1, cache.getEvictionCount());
+			assertTrue(first.isClosed());
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package org.jpark;
+
+import org.jpark.entity.Player;
+import org.jpark.entity.VersionedPlayer;
+import org.jpark.stub.StubDriver;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.Table;
+import javax.persistence.Version;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TransactionRollbackTest
+{
+	private StubDriver _driver;
+	private EntityManager _em;
+
+	/**
+	 * выполненные апдейты: SQL и параметры
+	 */
+	private final List<String> _updates = new ArrayList<>();
+	private final List<List<Object>> _updateParams = new ArrayList<>();
+
+	/**
+	 * сколько строк заденет апдейт, 0 - конфликт версии
+	 */
+	private volatile int _updatedRows = 1;
+
+	@Before
+	public void setUp()
+	{
+		_driver = new StubDriver();
+		_driver.setHandler(new StubDriver.Handler()
+		{
+			@Override
+			public StubDriver.Rows query(String sql, List<Object> params)
+			{
+				if (sql.contains("versioned_players"))
+				{
+					return new StubDriver.Rows("id", "level", "version").add(params.get(0), 1, 3);
+				}
+				return new StubDriver.Rows("id", "name", "level").add(params.get(0), "player", 1);
+			}
+
+			@Override
+			public int update(String sql, List<Object> params)
+			{
+				if (sql.startsWith("UPDATE"))
+				{
+					_updates.add(sql);
+					_updateParams.add(new ArrayList<>(params));
+					return _updatedRows;
+				}
+				return 1;
+			}
+		});
+		_em = new EntityManager();
+		_em.setConnectionFactory(_driver);
+		_em.findEntities("org.jpark.entity");
+	}
+
+	@Entity
+	@Table(name = "versioned_ids")
+	public static class VersionedId
+	{
+		@Id
+		@Version
+		@Column(name = "id", columnDefinition = "INT(11) NOT NULL")
+		private int _id;
+	}
+
+	@Test
+	public void versionOnIdIsRejected() throws Exception
+	{
+		try
+		{
+			new ClassDescriptor(VersionedId.class);
+			fail("@Version on @Id would silently turn optimistic locking off");
+		}
+		catch (IllegalArgumentException expected)
+		{
+			assertTrue(expected.getMessage(), expected.getMessage().startsWith("Version field can not be an id field"));
+		}
+	}
+
+	@Test
+	public void versionCheckIsNullSafe() throws Exception
+	{
+		final ClassDescriptor descriptor = new ClassDescriptor(VersionedPlayer.class);
+		final BitSet level = new BitSet();
+		for (int i = 0; i < descriptor.getFields().size(); i++)
+		{
+			if (descriptor.getFields().get(i).getName().equals("level"))
+			{
+				level.set(i);
+			}
+		}
+		assertTrue(descriptor.getUpdateSql(level), descriptor.getUpdateSql(level).endsWith(" AND version<=>?"));
+		assertTrue(descriptor.getPartialUpdateSql(level), descriptor.getPartialUpdateSql(level).contains("version=COALESCE(version, 0)+1"));
+	}
+
+	@Test
+	public void rollbackAfterFlushRestoresVersionAndChanges() throws SQLException
+	{
+		final VersionedPlayer player = _em.findById(VersionedPlayer.class, 1);
+		final Connection connection = _em.beginTransaction();
+		player.setLevel(5);
+		_em.persist(player, connection);
+		_em.flush(connection);
+		assertEquals(Integer.valueOf(4), player.getVersion());
+		_em.rollback(connection);
+
+		assertEquals("version is back in sync with the database", Integer.valueOf(3), player.getVersion());
+		assertTrue(_em.contains(player));
+
+		_updates.clear();
+		_updateParams.clear();
+		_em.persist(player);
+		assertEquals("rolled back change is written again", 1, _updates.size());
+		final List<Object> params = _updateParams.get(0);
+		assertEquals(5, ((Number) params.get(0)).intValue());
+		assertEquals("expected version", 3, ((Number) params.get(params.size() - 1)).intValue());
+		assertEquals(Integer.valueOf(4), player.getVersion());
+	}
+
+	@Test
+	public void rollbackAfterFlushKeepsChangesOfUnversionedEntity() throws SQLException
+	{
+		final Player player = _em.findById(Player.class, 1);
+		final Connection connection = _em.beginTransaction();
+		player.setLevel(5);
+		_em.persist(player, connection);
+		_em.flush(connection);
+		_em.rollback(connection);
+
+		_updates.clear();
+		_em.persist(player);
+		assertEquals("change lost by the rollback is not skipped by the diff", 1, _updates.size());
+	}
+
+	@Test
+	public void failedCommitRestoresAlreadyFlushedEntities() throws SQLException
+	{
+		final VersionedPlayer flushed = _em.findById(VersionedPlayer.class, 1);
+		final VersionedPlayer conflicting = _em.findById(VersionedPlayer.class, 2);
+		final Connection connection = _em.beginTransaction();
+		flushed.setLevel(5);
+		_em.persist(flushed, connection);
+		_em.flush(connection);
+
+		conflicting.setLevel(6);
+		_em.persist(conflicting, connection);
+		_updatedRows = 0;
+		try
+		{
+			_em.commit(connection);
+			fail();
+		}
+		catch (OptimisticLockException expected)
+		{
+		}
+		_updatedRows = 1;
+
+		assertEquals(Integer.valueOf(3), flushed.getVersion());
+		_updates.clear();
+		_em.persist(flushed);
+		assertEquals(1, _updates.size());
+	}
+
+	@Test
+	public void updateByIdIsRolledBackInManagedEntities() throws SQLException
+	{
+		final VersionedPlayer player = _em.findById(VersionedPlayer.class, 1);
+		final Connection connection = _em.beginTransaction();
+		_em.update(VersionedPlayer.class, connection, 1, Collections.singletonMap("level", 9));
+		assertEquals(9, player.getLevel());
+		assertEquals(Integer.valueOf(4), player.getVersion());
+		_em.rollback(connection);
+
+		assertEquals(Integer.valueOf(3), player.getVersion());
+		_updates.clear();
+		_em.persist(player);
+		assertEquals("entity still holds the rolled back value, the diff writes it again", 1, _updates.size());
+	}
+
+	@Test
+	public void removeByIdIsRolledBack() throws SQLException
+	{
+		final Player player = _em.findById(Player.class, 1);
+		final Connection connection = _em.beginTransaction();
+		_em.removeById(Player.class, connection, 1);
+		assertFalse(_em.contains(player));
+		_em.rollback(connection);
+		assertTrue(_em.contains(player));
+	}
+
+	@Test
+	public void committedTransactionKeepsNewSnapshots() throws SQLException
+	{
+		final VersionedPlayer player = _em.findById(VersionedPlayer.class, 1);
+		final Connection connection = _em.beginTransaction();
+		player.setLevel(5);
+		_em.persist(player, connection);
+		_em.commit(connection);
+
+		assertEquals(Integer.valueOf(4), player.getVersion());
+		_updates.clear();
+		_em.persist(player);
+		assertTrue(_updates.isEmpty());
+	}
+}
@@ -0,0 +1,43 @@
+package org.jpark.entity;
+
+import org.jpark.ColumnExtended;
+import org.jpark.TableExtended;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+@Entity
+@Table(name = "cached_items")
+@TableExtended(cacheTtl = -1)
+public class CachedItem
+{
+	@Id
+	@ColumnExtended(updateInsertId = true)
+	@Column(name = "id", columnDefinition = "BIGINT(20) NOT NULL AUTO_INCREMENT")
+	private long _id;
+
+	@Column(name = "name", columnDefinition = "VARCHAR(64)")
+	private String _name;
+
+	public CachedItem()
+	{
+	}
+
+	public CachedItem(long id, String name)
+	{
+		_id = id;
+		_name = name;
+	}
+
+	public long getId()
+	{
+		return _id;
+	}
+
+	public String getName()
+	{
+		return _name;
+	}
+}
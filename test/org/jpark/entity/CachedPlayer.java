@@ -0,0 +1,46 @@
+package org.jpark.entity;
+
+import org.jpark.TableExtended;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+@Entity
+@Table(name = "cached_players")
+@TableExtended(cacheTtl = -1)
+public class CachedPlayer
+{
+	@Id
+	@Column(name = "id", columnDefinition = "INT(11) NOT NULL")
+	private int _id;
+
+	@Column(name = "level", columnDefinition = "INT(11) NOT NULL")
+	private int _level;
+
+	public CachedPlayer()
+	{
+	}
+
+	public CachedPlayer(int id, int level)
+	{
+		_id = id;
+		_level = level;
+	}
+
+	public int getId()
+	{
+		return _id;
+	}
+
+	public int getLevel()
+	{
+		return _level;
+	}
+
+	public void setLevel(int level)
+	{
+		_level = level;
+	}
+}
@@ -0,0 +1,63 @@
+package org.jpark.entity;
+
+import org.jpark.ColumnExtended;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+@Entity
+@Table(name = "items")
+public class Item
+{
+	@Id
+	@ColumnExtended(updateInsertId = true)
+	@Column(name = "id", columnDefinition = "BIGINT(20) NOT NULL AUTO_INCREMENT")
+	private long _id;
+
+	@Column(name = "name", columnDefinition = "VARCHAR(64)")
+	private String _name;
+
+	@Column(name = "data", columnDefinition = "VARBINARY(64)")
+	private byte[] _data;
+
+	public Item()
+	{
+	}
+
+	public Item(String name)
+	{
+		_name = name;
+	}
+
+	public long getId()
+	{
+		return _id;
+	}
+
+	public void setId(long id)
+	{
+		_id = id;
+	}
+
+	public String getName()
+	{
+		return _name;
+	}
+
+	public void setName(String name)
+	{
+		_name = name;
+	}
+
+	public byte[] getData()
+	{
+		return _data;
+	}
+
+	public void setData(byte[] data)
+	{
+		_data = data;
+	}
+}
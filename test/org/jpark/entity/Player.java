@@ -0,0 +1,57 @@
+package org.jpark.entity;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+@Entity
+@Table(name = "players")
+public class Player
+{
+	@Id
+	@Column(name = "id", columnDefinition = "INT(11) NOT NULL")
+	private int _id;
+
+	@Column(name = "name", columnDefinition = "VARCHAR(64) NOT NULL", nullable = false)
+	private String _name;
+
+	@Column(name = "level", columnDefinition = "INT(11) NOT NULL")
+	private int _level;
+
+	public Player()
+	{
+	}
+
+	public Player(int id, String name, int level)
+	{
+		_id = id;
+		_name = name;
+		_level = level;
+	}
+
+	public int getId()
+	{
+		return _id;
+	}
+
+	public String getName()
+	{
+		return _name;
+	}
+
+	public void setName(String name)
+	{
+		_name = name;
+	}
+
+	public int getLevel()
+	{
+		return _level;
+	}
+
+	public void setLevel(int level)
+	{
+		_level = level;
+	}
+}
@@ -0,0 +1,43 @@
+package org.jpark.entity;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Version;
+
+@Entity
+@Table(name = "versioned_players")
+public class VersionedPlayer
+{
+	@Id
+	@Column(name = "id", columnDefinition = "INT(11) NOT NULL")
+	private int _id;
+
+	@Column(name = "level", columnDefinition = "INT(11) NOT NULL")
+	private int _level;
+
+	@Version
+	@Column(name = "version", columnDefinition = "INT(11)")
+	private Integer _version;
+
+	public int getId()
+	{
+		return _id;
+	}
+
+	public int getLevel()
+	{
+		return _level;
+	}
+
+	public void setLevel(int level)
+	{
+		_level = level;
+	}
+
+	public Integer getVersion()
+	{
+		return _version;
+	}
+}
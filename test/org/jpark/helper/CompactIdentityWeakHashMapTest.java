@@ -0,0 +1,268 @@
+package org.jpark.helper;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CompactIdentityWeakHashMapTest
+{
+	@Test
+	public void keysAreComparedByIdentity()
+	{
+		final CompactIdentityWeakHashMap<String, Integer> map = new CompactIdentityWeakHashMap<>();
+		final String a = new String("key");
+		final String b = new String("key");
+		map.put(a, 1);
+		map.put(b, 2);
+		assertEquals(2, map.size());
+		assertEquals(Integer.valueOf(1), map.put(a, 3));
+		assertEquals(Integer.valueOf(3), map.get(a));
+		assertEquals(Integer.valueOf(3), map.remove(a));
+		assertNull(map.get(a));
+		assertEquals(Integer.valueOf(2), map.get(b));
+	}
+
+	@Test
+	public void nullLookupsFindNothing()
+	{
+		final CompactIdentityWeakHashMap<Object, Object> map = new CompactIdentityWeakHashMap<>();
+		map.put(new Object(), 1);
+		assertNull(map.get(null));
+		assertFalse(map.containsKey(null));
+		assertNull(map.remove(null));
+		try
+		{
+			map.put(null, 1);
+			fail();
+		}
+		catch (IllegalArgumentException expected)
+		{
+		}
+		try
+		{
+			map.put(new Object(), null);
+			fail();
+		}
+		catch (IllegalArgumentException expected)
+		{
+		}
+	}
+
+	@Test
+	public void keyMappedToItselfIsNotHeldStrongly() throws InterruptedException
+	{
+		final CompactIdentityWeakHashMap<Object, Object> map = new CompactIdentityWeakHashMap<>();
+		final Object live = new Object();
+		map.put(live, live);
+		for (int i = 0; i < 100; i++)
+		{
+			final Object self = new Object();
+			map.put(self, self);
+		}
+		assertSame(live, map.get(live));
+		awaitSize(map, 1);
+		assertSame(live, map.get(live));
+	}
+
+	@Test
+	public void collectedKeysAreExpunged() throws InterruptedException
+	{
+		final CompactIdentityWeakHashMap<Object, Integer> map = new CompactIdentityWeakHashMap<>(4);
+		final Object live = new Object();
+		map.put(live, -1);
+		for (int i = 0; i < 1_000; i++)
+		{
+			map.put(new Object(), i);
+		}
+		awaitSize(map, 1);
+		assertEquals(Integer.valueOf(-1), map.get(live));
+		assertEquals(1, map.entrySet().size());
+	}
+
+	@Test
+	public void tombstonesKeepProbeChainsAndAreReused() throws Exception
+	{
+		final CompactIdentityWeakHashMap<Object, Integer> map = new CompactIdentityWeakHashMap<>(64);
+		final List<Object> keys = new ArrayList<>();
+		for (int i = 0; i < 40; i++)
+		{
+			final Object key = new Object();
+			keys.add(key);
+			map.put(key, i);
+		}
+		final int capacity = keys(map).length;
+
+		// удаляем через одну: метки удаления не должны рвать цепочки до оставшихся ключей
+		for (int i = 0; i < keys.size(); i += 2)
+		{
+			assertEquals(Integer.valueOf(i), map.remove(keys.get(i)));
+		}
+		for (int i = 1; i < keys.size(); i += 2)
+		{
+			assertEquals(Integer.valueOf(i), map.get(keys.get(i)));
+		}
+
+		// постоянная замена ключей при неизменном размере не растит таблицу
+		for (int round = 0; round < 10_000; round++)
+		{
+			final Object key = new Object();
+			map.put(key, round);
+			map.remove(key);
+		}
+		finishMigration(map);
+		assertEquals(20, map.size());
+		assertEquals(capacity, keys(map).length);
+		for (int i = 1; i < keys.size(); i += 2)
+		{
+			assertEquals(Integer.valueOf(i), map.get(keys.get(i)));
+		}
+	}
+
+	@Test
+	public void lookupsSpanBothTablesDuringMigration() throws Exception
+	{
+		final CompactIdentityWeakHashMap<Object, Integer> map = new CompactIdentityWeakHashMap<>(64);
+		final List<Object> keys = new ArrayList<>();
+		for (int i = 0; !migrating(map); i++)
+		{
+			final Object key = new Object();
+			keys.add(key);
+			map.put(key, i);
+		}
+		assertTrue("one insert moves only a part of the old table", migrating(map));
+		for (int i = 0; i < keys.size(); i++)
+		{
+			assertEquals(Integer.valueOf(i), map.get(keys.get(i)));
+		}
+
+		// удаление и замена значения ключа, еще лежащего в старой таблице
+		assertEquals(Integer.valueOf(0), map.put(keys.get(0), 100));
+		assertEquals(Integer.valueOf(100), map.get(keys.get(0)));
+		assertEquals(Integer.valueOf(1), map.remove(keys.get(1)));
+		assertNull(map.get(keys.get(1)));
+
+		finishMigration(map);
+		assertEquals(keys.size() - 1, map.size());
+		assertEquals(Integer.valueOf(100), map.get(keys.get(0)));
+		for (int i = 2; i < keys.size(); i++)
+		{
+			assertEquals(Integer.valueOf(i), map.get(keys.get(i)));
+		}
+	}
+
+	@Test
+	public void iteratorSeesEveryKeyOnceWhileValuesAreReplacedDuringMigration() throws Exception
+	{
+		final CompactIdentityWeakHashMap<Object, Integer> map = new CompactIdentityWeakHashMap<>(64);
+		final List<Object> keys = new ArrayList<>();
+		for (int i = 0; !migrating(map); i++)
+		{
+			final Object key = new Object();
+			keys.add(key);
+			map.put(key, i);
+		}
+
+		final Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (Map.Entry<Object, Integer> entry : map.entrySet())
+		{
+			assertTrue("key returned twice", seen.add(entry.getKey()));
+			// замена значения - не структурное изменение и не двигает перенос
+			map.put(entry.getKey(), entry.getValue() + 1);
+		}
+		assertEquals(keys.size(), seen.size());
+		for (int i = 0; i < keys.size(); i++)
+		{
+			assertEquals(Integer.valueOf(i + 1), map.get(keys.get(i)));
+		}
+	}
+
+	@Test(expected = ConcurrentModificationException.class)
+	public void insertDuringIterationFailsFast()
+	{
+		final CompactIdentityWeakHashMap<Object, Integer> map = new CompactIdentityWeakHashMap<>();
+		map.put(new Object(), 1);
+		map.put(new Object(), 2);
+		final Iterator<Map.Entry<Object, Integer>> iterator = map.entrySet().iterator();
+		iterator.next();
+		map.put(new Object(), 3);
+		iterator.next();
+	}
+
+	@Test
+	public void iteratorRemovesFromMap()
+	{
+		final CompactIdentityWeakHashMap<Object, Integer> map = new CompactIdentityWeakHashMap<>();
+		final List<Object> keys = new ArrayList<>();
+		for (int i = 0; i < 100; i++)
+		{
+			final Object key = new Object();
+			keys.add(key);
+			map.put(key, i);
+		}
+		final Iterator<Map.Entry<Object, Integer>> iterator = map.entrySet().iterator();
+		while (iterator.hasNext())
+		{
+			if (iterator.next().getValue() % 2 == 0)
+			{
+				iterator.remove();
+			}
+		}
+		assertEquals(50, map.size());
+		for (int i = 0; i < keys.size(); i++)
+		{
+			assertEquals(i % 2 != 0, map.containsKey(keys.get(i)));
+		}
+	}
+
+	private static void awaitSize(Map<?, ?> map, int size) throws InterruptedException
+	{
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (map.size() > size && System.nanoTime() < deadline)
+		{
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertEquals(size, map.size());
+	}
+
+	private static Object[] keys(CompactIdentityWeakHashMap<?, ?> map) throws Exception
+	{
+		return (Object[]) field("_keys").get(map);
+	}
+
+	private static boolean migrating(CompactIdentityWeakHashMap<?, ?> map) throws Exception
+	{
+		return field("_oldKeys").get(map) != null;
+	}
+
+	/**
+	 * перенос идет только на вставках и удалениях, догоняем его парами put/remove
+	 */
+	private static void finishMigration(CompactIdentityWeakHashMap<Object, Integer> map) throws Exception
+	{
+		while (migrating(map))
+		{
+			final Object key = new Object();
+			map.put(key, 0);
+			map.remove(key);
+		}
+	}
+
+	private static Field field(String name) throws NoSuchFieldException
+	{
+		final Field field = CompactIdentityWeakHashMap.class.getDeclaredField(name);
+		field.setAccessible(true);
+		return field;
+	}
+}
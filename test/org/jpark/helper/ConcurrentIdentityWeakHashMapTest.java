@@ -0,0 +1,248 @@
+package org.jpark.helper;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentIdentityWeakHashMapTest
+{
+	@Test
+	public void keysAreComparedByIdentity()
+	{
+		final ConcurrentIdentityWeakHashMap<String, Integer> map = new ConcurrentIdentityWeakHashMap<>(4);
+		final String a = new String("key");
+		final String b = new String("key");
+		map.put(a, 1);
+		map.put(b, 2);
+		assertEquals(2, map.size());
+		assertEquals(Integer.valueOf(1), map.get(a));
+		assertEquals(Integer.valueOf(2), map.get(b));
+		assertEquals(Integer.valueOf(1), map.put(a, 3));
+		assertEquals(Integer.valueOf(3), map.remove(a));
+		assertFalse(map.containsKey(a));
+		assertTrue(map.containsKey(b));
+	}
+
+	@Test
+	public void nullsAreRejected()
+	{
+		final ConcurrentIdentityWeakHashMap<Object, Object> map = new ConcurrentIdentityWeakHashMap<>();
+		for (Runnable call : new Runnable[]{() -> map.get(null), () -> map.containsKey(null), () -> map.remove(null),
+				() -> map.put(null, 1), () -> map.put(new Object(), null)})
+		{
+			try
+			{
+				call.run();
+				fail();
+			}
+			catch (IllegalArgumentException expected)
+			{
+			}
+		}
+	}
+
+	@Test
+	public void rehashKeepsAllEntries()
+	{
+		final ConcurrentIdentityWeakHashMap<Object, Integer> map = new ConcurrentIdentityWeakHashMap<>(1);
+		final List<Object> keys = new ArrayList<>();
+		for (int i = 0; i < 10_000; i++)
+		{
+			final Object key = new Object();
+			keys.add(key);
+			map.put(key, i);
+		}
+		assertEquals(keys.size(), map.size());
+		for (int i = 0; i < keys.size(); i++)
+		{
+			assertEquals(Integer.valueOf(i), map.get(keys.get(i)));
+		}
+	}
+
+	@Test
+	public void collectedKeysAreExpunged() throws InterruptedException
+	{
+		final ConcurrentIdentityWeakHashMap<Object, Integer> map = new ConcurrentIdentityWeakHashMap<>(4);
+		final Object live = new Object();
+		map.put(live, -1);
+		for (int i = 0; i < 1_000; i++)
+		{
+			map.put(new Object(), i);
+		}
+
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (map.size() > 1 && System.nanoTime() < deadline)
+		{
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertEquals(1, map.size());
+		assertEquals(Integer.valueOf(-1), map.get(live));
+		assertEquals(1, map.entrySet().size());
+	}
+
+	@Test
+	public void iteratorRemovesFromMap()
+	{
+		final ConcurrentIdentityWeakHashMap<Object, Integer> map = new ConcurrentIdentityWeakHashMap<>(4);
+		final List<Object> keys = new ArrayList<>();
+		for (int i = 0; i < 100; i++)
+		{
+			final Object key = new Object();
+			keys.add(key);
+			map.put(key, i);
+		}
+		final Iterator<Map.Entry<Object, Integer>> iterator = map.entrySet().iterator();
+		while (iterator.hasNext())
+		{
+			if (iterator.next().getValue() % 2 == 0)
+			{
+				iterator.remove();
+			}
+		}
+		assertEquals(50, map.size());
+		for (int i = 0; i < keys.size(); i++)
+		{
+			assertEquals(i % 2 != 0, map.containsKey(keys.get(i)));
+		}
+	}
+
+	@Test
+	public void readsDoNotTakeSegmentLock() throws Exception
+	{
+		final ConcurrentIdentityWeakHashMap<Object, Integer> map = new ConcurrentIdentityWeakHashMap<>(1);
+		final Object key = new Object();
+		map.put(key, 1);
+
+		// держим лок единственного сегмента из другого потока, чтение не должно на нем встать
+		final ReentrantLock lock = segmentLock(map);
+		final CountDownLatch locked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread writer = new Thread(() ->
+		{
+			lock.lock();
+			try
+			{
+				locked.countDown();
+				release.await();
+			}
+			catch (InterruptedException ignored)
+			{
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		});
+		writer.start();
+		try
+		{
+			assertTrue(locked.await(5, TimeUnit.SECONDS));
+			final ExecutorService reader = Executors.newSingleThreadExecutor();
+			try
+			{
+				final Future<Integer> value = reader.submit(() -> map.get(key));
+				assertEquals(Integer.valueOf(1), value.get(5, TimeUnit.SECONDS));
+				assertTrue(reader.submit(() -> map.containsKey(key)).get(5, TimeUnit.SECONDS));
+			}
+			finally
+			{
+				reader.shutdownNow();
+			}
+		}
+		finally
+		{
+			release.countDown();
+			writer.join();
+		}
+	}
+
+	@Test
+	public void readersSeeStableKeysWhileWritersRehash() throws Exception
+	{
+		final ConcurrentIdentityWeakHashMap<Object, Integer> map = new ConcurrentIdentityWeakHashMap<>(2);
+		final List<Object> stable = new ArrayList<>();
+		for (int i = 0; i < 64; i++)
+		{
+			final Object key = new Object();
+			stable.add(key);
+			map.put(key, i);
+		}
+
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final List<Thread> threads = new ArrayList<>();
+		for (int w = 0; w < 2; w++)
+		{
+			threads.add(new Thread(() ->
+			{
+				// постоянно растим таблицы сегментов и удаляем свои ключи
+				final List<Object> own = new ArrayList<>();
+				for (int i = 0; i < 50_000; i++)
+				{
+					final Object key = new Object();
+					own.add(key);
+					map.put(key, i);
+					if (own.size() > 1_000)
+					{
+						map.remove(own.remove(0));
+					}
+				}
+				running.set(false);
+			}));
+		}
+		for (int r = 0; r < 4; r++)
+		{
+			threads.add(new Thread(() ->
+			{
+				try
+				{
+					while (running.get())
+					{
+						for (int i = 0; i < stable.size(); i++)
+						{
+							assertEquals(Integer.valueOf(i), map.get(stable.get(i)));
+						}
+					}
+				}
+				catch (Throwable e)
+				{
+					failure.compareAndSet(null, e);
+				}
+			}));
+		}
+		for (Thread thread : threads)
+		{
+			thread.start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		assertNull(failure.get());
+	}
+
+	private static ReentrantLock segmentLock(ConcurrentIdentityWeakHashMap<?, ?> map) throws Exception
+	{
+		final Field segments = ConcurrentIdentityWeakHashMap.class.getDeclaredField("_segments");
+		segments.setAccessible(true);
+		final Object segment = ((Object[]) segments.get(map))[0];
+		final Field lock = segment.getClass().getDeclaredField("_lock");
+		lock.setAccessible(true);
+		return (ReentrantLock) lock.get(segment);
+	}
+}
@@ -0,0 +1,394 @@
+package org.jpark.pool;
+
+import org.jpark.EntityManager;
+import org.jpark.stub.StubDriver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest
+{
+	private StubDriver _driver;
+	private ConnectionPool _pool;
+
+	@Before
+	public void setUp()
+	{
+		_driver = new StubDriver();
+		_pool = new ConnectionPool(_driver, 0, 2);
+		_pool.setBorrowTimeout(200);
+	}
+
+	@After
+	public void tearDown()
+	{
+		_pool.close();
+	}
+
+	@Test
+	public void returnedConnectionIsReused() throws SQLException
+	{
+		final Connection first = _pool.get();
+		final Connection physical = first.unwrap(Connection.class);
+		first.close();
+
+		final Connection second = _pool.get();
+		assertSame(physical, second.unwrap(Connection.class));
+		assertNotSame("every borrow gets its own handle", first, second);
+		second.close();
+
+		assertEquals(1, _driver.getOpenedCount());
+		assertEquals(1, _pool.getIdleCount());
+		assertEquals(0, _pool.getActiveCount());
+	}
+
+	@Test
+	public void staleHandleCloseDoesNotReleaseNextBorrower() throws SQLException
+	{
+		final Connection stale = _pool.get();
+		stale.close();
+
+		final Connection current = _pool.get();
+		current.setAutoCommit(false);
+		final int rollbacks = _driver.getRollbackCount();
+
+		// второй close() от прошлого владельца, например commit() внутри try-with-resources
+		stale.close();
+
+		assertEquals(1, _pool.getActiveCount());
+		assertEquals(0, _pool.getIdleCount());
+		assertEquals("transaction of the current borrower is not rolled back", rollbacks, _driver.getRollbackCount());
+		assertFalse(current.isClosed());
+		assertFalse(current.getAutoCommit());
+
+		// коннект не ушел в пул и не может достаться третьему
+		final Connection other = _pool.get();
+		assertNotSame(current.unwrap(Connection.class), other.unwrap(Connection.class));
+		other.close();
+		current.close();
+	}
+
+	@Test
+	public void releasedHandleRejectsCalls() throws SQLException
+	{
+		final Connection stale = _pool.get();
+		stale.close();
+		final Connection current = _pool.get();
+
+		assertTrue("released handle reports closed while the physical connection is open", stale.isClosed());
+		assertFalse(stale.isValid(1));
+		assertFalse(current.isClosed());
+
+		try
+		{
+			stale.prepareStatement("SELECT 1");
+			fail();
+		}
+		catch (SQLException expected)
+		{
+		}
+		try
+		{
+			stale.unwrap(Connection.class);
+			fail();
+		}
+		catch (SQLException expected)
+		{
+		}
+		try
+		{
+			stale.setAutoCommit(false);
+			fail();
+		}
+		catch (SQLException expected)
+		{
+		}
+		assertTrue(current.getAutoCommit());
+		current.close();
+	}
+
+	@Test
+	public void openTransactionIsRolledBackOnRelease() throws SQLException
+	{
+		final Connection connection = _pool.get();
+		connection.setAutoCommit(false);
+		connection.close();
+		assertEquals(1, _driver.getRollbackCount());
+
+		final Connection next = _pool.get();
+		assertTrue(next.getAutoCommit());
+		next.close();
+	}
+
+	@Test
+	public void connectionReturnedDuringCloseIsClosed() throws SQLException
+	{
+		// пул закрывается, пока коннект откатывается при возврате: уже после проверки закрытия, но до возврата в очередь
+		final AtomicReference<ConnectionPool> pool = new AtomicReference<>();
+		final EntityManager.ConnectionFactory factory = () ->
+		{
+			final Connection physical = _driver.get();
+			return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) ->
+			{
+				final Object result = method.invoke(physical, args);
+				if (method.getName().equals("rollback"))
+				{
+					pool.get().close();
+				}
+				return result;
+			});
+		};
+		pool.set(new ConnectionPool(factory, 0, 2));
+
+		final Connection connection = pool.get().get();
+		connection.setAutoCommit(false);
+		connection.close();
+
+		assertEquals(0, pool.get().getIdleCount());
+		assertEquals(0, pool.get().getTotalCount());
+		assertEquals(1, _driver.getClosedCount());
+	}
+
+	@Test
+	public void borrowTimesOutWhenPoolIsExhausted()
+	{
+		final Connection a = _pool.get();
+		final Connection b = _pool.get();
+		final long start = System.nanoTime();
+		try
+		{
+			_pool.get();
+			fail();
+		}
+		catch (RuntimeException e)
+		{
+			assertTrue(e.getCause() instanceof SQLException);
+		}
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+		assertEquals(2, _driver.getOpenedCount());
+		closeQuietly(a);
+		closeQuietly(b);
+	}
+
+	@Test
+	public void waiterGetsReturnedConnection() throws Exception
+	{
+		_pool.setBorrowTimeout(5_000);
+		final Connection a = _pool.get();
+		final Connection b = _pool.get();
+		final AtomicReference<Connection> borrowed = new AtomicReference<>();
+		final Thread waiter = new Thread(() -> borrowed.set(_pool.get()));
+		waiter.start();
+		while (_pool.getWaitingCount() == 0)
+		{
+			Thread.sleep(1);
+		}
+		a.close();
+		waiter.join(5_000);
+		assertNotNull(borrowed.get());
+		assertEquals(2, _driver.getOpenedCount());
+		borrowed.get().close();
+		b.close();
+	}
+
+	@Test
+	public void invalidIdleConnectionIsReplacedOnBorrow() throws SQLException
+	{
+		_pool.setValidationInterval(0);
+		final Connection first = _pool.get();
+		first.close();
+
+		_driver.setValid(false);
+		final Connection second = _pool.get();
+		assertEquals("stale connection discarded and a new one opened", 2, _driver.getOpenedCount());
+		assertEquals(1, _driver.getClosedCount());
+		second.close();
+	}
+
+	@Test
+	public void recentlyUsedConnectionIsNotValidated() throws SQLException
+	{
+		_pool.setValidationInterval(60_000);
+		_pool.get().close();
+		_driver.setValid(false);
+		final Connection connection = _pool.get();
+		assertEquals(1, _driver.getOpenedCount());
+		connection.close();
+	}
+
+	@Test
+	public void brokenConnectionIsNotReturned() throws SQLException
+	{
+		final Connection connection = _pool.get();
+		_driver.setBroken(true);
+		try
+		{
+			connection.setAutoCommit(false);
+			fail();
+		}
+		catch (SQLException expected)
+		{
+			assertEquals("08S01", expected.getSQLState());
+		}
+		_driver.setBroken(false);
+		connection.close();
+
+		assertEquals(0, _pool.getIdleCount());
+		assertEquals(0, _pool.getTotalCount());
+		assertEquals(1, _driver.getClosedCount());
+	}
+
+	@Test
+	public void idleConnectionsAboveMinSizeAreEvicted() throws Exception
+	{
+		final ConnectionPool pool = new ConnectionPool(_driver, 1, 3);
+		pool.setIdleTimeout(20);
+		pool.setHousekeepingPeriod(10);
+		try
+		{
+			final Connection a = pool.get();
+			final Connection b = pool.get();
+			final Connection c = pool.get();
+			a.close();
+			b.close();
+			c.close();
+			final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (pool.getTotalCount() > 1 && System.nanoTime() < deadline)
+			{
+				Thread.sleep(5);
+			}
+			assertEquals(1, pool.getTotalCount());
+		}
+		finally
+		{
+			pool.close();
+		}
+	}
+
+	@Test
+	public void housekeeperFillsMinSize() throws Exception
+	{
+		final ConnectionPool pool = new ConnectionPool(_driver, 2, 4);
+		pool.setHousekeepingPeriod(10);
+		try
+		{
+			pool.get().close();
+			final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (pool.getIdleCount() < 2 && System.nanoTime() < deadline)
+			{
+				Thread.sleep(5);
+			}
+			assertEquals(2, pool.getTotalCount());
+			assertEquals(2, pool.getIdleCount());
+		}
+		finally
+		{
+			pool.close();
+		}
+		assertEquals(_driver.getOpenedCount(), _driver.getClosedCount());
+	}
+
+	@Test
+	public void leakIsReportedWithBorrowerStack() throws Exception
+	{
+		final ConnectionPool pool = new ConnectionPool(_driver, 0, 1);
+		pool.setLeakDetectionThreshold(10);
+		pool.setHousekeepingPeriod(10);
+		try
+		{
+			final Connection leaked = pool.get();
+			final PooledConnection pooled = ((ConnectionHandle) Proxy.getInvocationHandler(leaked)).getPooled();
+			assertNotNull("borrower stack is captured", pooled._borrowStack);
+			final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (!pooled._leakReported && System.nanoTime() < deadline)
+			{
+				Thread.sleep(5);
+			}
+			assertTrue(pooled._leakReported);
+			leaked.close();
+			assertNull(pooled._borrowStack);
+		}
+		finally
+		{
+			pool.close();
+		}
+	}
+
+	@Test
+	public void concurrentBorrowNeverExceedsMaxSize() throws Exception
+	{
+		final ConnectionPool pool = new ConnectionPool(_driver, 0, 4);
+		pool.setBorrowTimeout(10_000);
+		final int threads = 16;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger inUse = new AtomicInteger();
+		final AtomicInteger maxInUse = new AtomicInteger();
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++)
+		{
+			final Thread worker = new Thread(() ->
+			{
+				try
+				{
+					start.await();
+					for (int i = 0; i < 500; i++)
+					{
+						try (Connection connection = pool.get())
+						{
+							maxInUse.accumulateAndGet(inUse.incrementAndGet(), Math::max);
+							connection.setAutoCommit(true);
+							inUse.decrementAndGet();
+						}
+					}
+				}
+				catch (Throwable e)
+				{
+					failure.compareAndSet(null, e);
+				}
+			});
+			workers.add(worker);
+			worker.start();
+		}
+		start.countDown();
+		for (Thread worker : workers)
+		{
+			worker.join();
+		}
+		try
+		{
+			assertNull(failure.get());
+			assertTrue(maxInUse.get() <= 4);
+			assertTrue(_driver.getOpenedCount() <= 4);
+			assertEquals(0, pool.getActiveCount());
+			assertEquals(pool.getTotalCount(), pool.getIdleCount());
+		}
+		finally
+		{
+			pool.close();
+		}
+	}
+
+	private static void closeQuietly(Connection connection)
+	{
+		try
+		{
+			connection.close();
+		}
+		catch (SQLException ignored)
+		{
+		}
+	}
+}
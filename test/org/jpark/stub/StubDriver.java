@@ -0,0 +1,635 @@
+package org.jpark.stub;
+
+import org.jpark.EntityManager;
+
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * JDBC драйвер-заглушка в памяти процесса: отдает коннекты, запросы и результаты на динамических прокси
+ * SELECT по умолчанию возвращает пустой результат, изменения - 1 строку, ответы можно подменить через {@link Handler}
+ * каждый execute ждет заданную задержку через {@link LockSupport#parkNanos}, как сетевой вызов,
+ * поэтому виртуальный поток на нем не пинит несущий поток
+ */
+public class StubDriver implements EntityManager.ConnectionFactory
+{
+	/**
+	 * запрос умеет LOAD DATA LOCAL INFILE из потока, как у MySQL Connector/J
+	 * при выполнении поток читается целиком и уходит в {@link Handler#update} единственным параметром-строкой
+	 */
+	public interface LocalInfileStatement extends PreparedStatement
+	{
+		void setLocalInfileInputStream(InputStream stream);
+	}
+
+	/**
+	 * ответы на запросы
+	 */
+	public interface Handler
+	{
+		/**
+		 * результат SELECT
+		 */
+		Rows query(String sql, List<Object> params) throws SQLException;
+
+		/**
+		 * число измененных строк для INSERT/UPDATE/DELETE
+		 */
+		int update(String sql, List<Object> params) throws SQLException;
+
+		/**
+		 * сгенерированные ключи последнего выполнения запроса, для батча - параметры всех строк по порядку
+		 */
+		default Rows generatedKeys(String sql, List<List<Object>> params) throws SQLException
+		{
+			return new Rows("GENERATED_KEY");
+		}
+	}
+
+	/**
+	 * результат запроса: имена колонок и строки
+	 */
+	public static final class Rows
+	{
+		final String[] _columns;
+		final List<Object[]> _rows = new ArrayList<>();
+
+		public Rows(String... columns)
+		{
+			_columns = columns;
+		}
+
+		public Rows add(Object... row)
+		{
+			if (row.length != _columns.length)
+			{
+				throw new IllegalArgumentException("Wrong row size " + row.length + ", expected " + _columns.length);
+			}
+			_rows.add(row);
+			return this;
+		}
+	}
+
+	private static final Handler DEFAULT_HANDLER = new Handler()
+	{
+		@Override
+		public Rows query(String sql, List<Object> params)
+		{
+			return new Rows();
+		}
+
+		@Override
+		public int update(String sql, List<Object> params)
+		{
+			return 1;
+		}
+	};
+
+	private volatile Handler _handler = DEFAULT_HANDLER;
+	private volatile long _latencyNanos;
+	private volatile boolean _valid = true;
+	private volatile boolean _broken;
+
+	private final AtomicInteger _opened = new AtomicInteger();
+	private final AtomicInteger _closed = new AtomicInteger();
+	private final AtomicInteger _commits = new AtomicInteger();
+	private final AtomicInteger _rollbacks = new AtomicInteger();
+	private final AtomicInteger _prepared = new AtomicInteger();
+	private final AtomicLong _executed = new AtomicLong();
+	private final AtomicInteger _active = new AtomicInteger();
+	private final AtomicInteger _maxActive = new AtomicInteger();
+	private final Queue<String> _log = new ConcurrentLinkedQueue<>();
+	private volatile boolean _logging = true;
+
+	@Override
+	public Connection get()
+	{
+		_opened.incrementAndGet();
+		return (Connection) Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class<?>[]{Connection.class}, new StubConnection());
+	}
+
+	public void setHandler(Handler handler)
+	{
+		_handler = handler == null ? DEFAULT_HANDLER : handler;
+	}
+
+	public void setLatency(long latency, TimeUnit unit)
+	{
+		_latencyNanos = unit.toNanos(latency);
+	}
+
+	/**
+	 * что отвечать на isValid() уже открытых и новых коннектов
+	 */
+	public void setValid(boolean valid)
+	{
+		_valid = valid;
+	}
+
+	/**
+	 * соединение с базой потеряно: вызовы коннектов (кроме close/isClosed) бросают ошибку с SQLState 08S01
+	 */
+	public void setBroken(boolean broken)
+	{
+		_broken = broken;
+	}
+
+	public int getOpenedCount()
+	{
+		return _opened.get();
+	}
+
+	public int getClosedCount()
+	{
+		return _closed.get();
+	}
+
+	public int getCommitCount()
+	{
+		return _commits.get();
+	}
+
+	public int getRollbackCount()
+	{
+		return _rollbacks.get();
+	}
+
+	public int getPreparedCount()
+	{
+		return _prepared.get();
+	}
+
+	public long getExecutedCount()
+	{
+		return _executed.get();
+	}
+
+	/**
+	 * больше всего запросов, выполнявшихся одновременно
+	 */
+	public int getMaxConcurrentExecutions()
+	{
+		return _maxActive.get();
+	}
+
+	/**
+	 * выполненные SQL по порядку
+	 */
+	public List<String> getLog()
+	{
+		return new ArrayList<>(_log);
+	}
+
+	public void clearLog()
+	{
+		_log.clear();
+	}
+
+	/**
+	 * писать ли выполненные SQL в лог, в нагрузочных тестах лог не нужен
+	 */
+	public void setLogging(boolean logging)
+	{
+		_logging = logging;
+	}
+
+	private void execute()
+	{
+		_executed.incrementAndGet();
+		final int active = _active.incrementAndGet();
+		_maxActive.accumulateAndGet(active, Math::max);
+		try
+		{
+			final long latency = _latencyNanos;
+			if (latency > 0)
+			{
+				final long deadline = System.nanoTime() + latency;
+				long left;
+				while ((left = deadline - System.nanoTime()) > 0)
+				{
+					LockSupport.parkNanos(left);
+				}
+			}
+		}
+		finally
+		{
+			_active.decrementAndGet();
+		}
+	}
+
+	private void log(String sql)
+	{
+		if (_logging)
+		{
+			_log.add(sql);
+		}
+	}
+
+	private static Object defaultValue(Class<?> type)
+	{
+		if (type == boolean.class)
+		{
+			return false;
+		}
+		if (type == int.class)
+		{
+			return 0;
+		}
+		if (type == long.class)
+		{
+			return 0L;
+		}
+		if (type == short.class)
+		{
+			return (short) 0;
+		}
+		if (type == byte.class)
+		{
+			return (byte) 0;
+		}
+		if (type == double.class)
+		{
+			return 0d;
+		}
+		if (type == float.class)
+		{
+			return 0f;
+		}
+		if (type == char.class)
+		{
+			return (char) 0;
+		}
+		return null;
+	}
+
+	private static SQLException closed()
+	{
+		return new SQLException("Connection is closed", "08003");
+	}
+
+	private final class StubConnection implements InvocationHandler
+	{
+		private boolean _closedFlag;
+		private boolean _autoCommit = true;
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			switch (method.getName())
+			{
+				case "close":
+					if (!_closedFlag)
+					{
+						_closedFlag = true;
+						_closed.incrementAndGet();
+					}
+					return null;
+				case "isClosed":
+					return _closedFlag;
+				case "isValid":
+					return !_closedFlag && _valid;
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "toString":
+					return "StubConnection@" + Integer.toHexString(System.identityHashCode(proxy));
+				case "unwrap":
+					if (((Class<?>) args[0]).isInstance(proxy))
+					{
+						return proxy;
+					}
+					throw new SQLException("Not a wrapper for " + args[0]);
+				case "isWrapperFor":
+					return ((Class<?>) args[0]).isInstance(proxy);
+				default:
+					break;
+			}
+			if (_closedFlag)
+			{
+				throw closed();
+			}
+			if (_broken)
+			{
+				throw new SQLException("Communications link failure", "08S01");
+			}
+			switch (method.getName())
+			{
+				case "getAutoCommit":
+					return _autoCommit;
+				case "setAutoCommit":
+					_autoCommit = (Boolean) args[0];
+					return null;
+				case "commit":
+					_commits.incrementAndGet();
+					return null;
+				case "rollback":
+					_rollbacks.incrementAndGet();
+					return null;
+				case "prepareStatement":
+				case "createStatement":
+					_prepared.incrementAndGet();
+					final String sql = args == null || args.length == 0 ? null : (String) args[0];
+					return Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class<?>[]{LocalInfileStatement.class},
+							new StubStatement((Connection) proxy, sql));
+				default:
+					return defaultValue(method.getReturnType());
+			}
+		}
+	}
+
+	private final class StubStatement implements InvocationHandler
+	{
+		private final Connection _connection;
+		private final String _sql;
+		private final List<Object> _params = new ArrayList<>();
+		private final List<List<Object>> _batch = new ArrayList<>();
+		private List<List<Object>> _lastExecuted = new ArrayList<>();
+		private InputStream _localInfile;
+		private boolean _closedFlag;
+
+		StubStatement(Connection connection, String sql)
+		{
+			_connection = connection;
+			_sql = sql;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			final String name = method.getName();
+			switch (name)
+			{
+				case "close":
+					_closedFlag = true;
+					return null;
+				case "isClosed":
+					return _closedFlag;
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "toString":
+					return "StubStatement{" + _sql + "}";
+				default:
+					break;
+			}
+			if (_closedFlag || _connection.isClosed())
+			{
+				throw new SQLException("Statement is closed");
+			}
+			if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer)
+			{
+				final int index = (Integer) args[0];
+				while (_params.size() < index)
+				{
+					_params.add(null);
+				}
+				_params.set(index - 1, name.equals("setNull") ? null : args[1]);
+				return null;
+			}
+			switch (name)
+			{
+				case "getConnection":
+					return _connection;
+				case "setLocalInfileInputStream":
+					_localInfile = (InputStream) args[0];
+					return null;
+				case "clearParameters":
+					_params.clear();
+					return null;
+				case "clearBatch":
+					_batch.clear();
+					return null;
+				case "addBatch":
+					_batch.add(new ArrayList<>(_params));
+					return null;
+				case "executeQuery":
+				{
+					final String sql = args != null && args.length > 0 ? (String) args[0] : _sql;
+					log(sql);
+					execute();
+					return resultSet(_handler.query(sql, new ArrayList<>(_params)));
+				}
+				case "executeUpdate":
+				case "execute":
+				{
+					final String sql = args != null && args.length > 0 ? (String) args[0] : _sql;
+					log(sql);
+					execute();
+					if (_localInfile != null)
+					{
+						_params.clear();
+						_params.add(new String(_localInfile.readAllBytes(), StandardCharsets.UTF_8));
+						_localInfile = null;
+					}
+					_lastExecuted = Arrays.asList(new ArrayList<>(_params));
+					final int count = _handler.update(sql, new ArrayList<>(_params));
+					return name.equals("execute") ? Boolean.FALSE : (Object) count;
+				}
+				case "executeBatch":
+				{
+					log(_sql);
+					execute();
+					final int[] counts = new int[_batch.size()];
+					for (int i = 0; i < counts.length; i++)
+					{
+						counts[i] = _handler.update(_sql, _batch.get(i));
+					}
+					_lastExecuted = new ArrayList<>(_batch);
+					_batch.clear();
+					return counts;
+				}
+				case "getGeneratedKeys":
+					return resultSet(_handler.generatedKeys(_sql, _lastExecuted));
+				case "getUpdateCount":
+					return -1;
+				default:
+					return defaultValue(method.getReturnType());
+			}
+		}
+	}
+
+	private static ResultSet resultSet(Rows rows)
+	{
+		return (ResultSet) Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class<?>[]{ResultSet.class}, new StubResultSet(rows));
+	}
+
+	private static final class StubResultSet implements InvocationHandler
+	{
+		private final Rows _rows;
+		private int _row = -1;
+		private boolean _wasNull;
+
+		StubResultSet(Rows rows)
+		{
+			_rows = rows;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+		{
+			final String name = method.getName();
+			switch (name)
+			{
+				case "next":
+					return ++_row < _rows._rows.size();
+				case "close":
+					return null;
+				case "wasNull":
+					return _wasNull;
+				case "getMetaData":
+					return Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class<?>[]{ResultSetMetaData.class}, this::metaData);
+				case "findColumn":
+					return findColumn((String) args[0]);
+				default:
+					break;
+			}
+			if (name.startsWith("get") && args != null && args.length >= 1)
+			{
+				final int column = args[0] instanceof String ? findColumn((String) args[0]) : (Integer) args[0];
+				final Object value = _rows._rows.get(_row)[column - 1];
+				_wasNull = value == null;
+				return convert(value, method.getReturnType());
+			}
+			return defaultValue(method.getReturnType());
+		}
+
+		private Object metaData(Object proxy, Method method, Object[] args)
+		{
+			switch (method.getName())
+			{
+				case "getColumnCount":
+					return _rows._columns.length;
+				case "getColumnLabel":
+				case "getColumnName":
+					return _rows._columns[(Integer) args[0] - 1];
+				case "getColumnType":
+					return columnType((Integer) args[0]);
+				default:
+					return defaultValue(method.getReturnType());
+			}
+		}
+
+		private int findColumn(String label) throws SQLException
+		{
+			for (int i = 0; i < _rows._columns.length; i++)
+			{
+				if (_rows._columns[i].equalsIgnoreCase(label))
+				{
+					return i + 1;
+				}
+			}
+			throw new SQLException("Column not found: " + label + " in " + Arrays.toString(_rows._columns));
+		}
+
+		private int columnType(int column)
+		{
+			for (Object[] row : _rows._rows)
+			{
+				final Object value = row[column - 1];
+				if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+				{
+					return Types.INTEGER;
+				}
+				if (value instanceof Long)
+				{
+					return Types.BIGINT;
+				}
+				if (value instanceof Double || value instanceof Float)
+				{
+					return Types.DOUBLE;
+				}
+				if (value instanceof BigDecimal)
+				{
+					return Types.DECIMAL;
+				}
+				if (value instanceof Boolean)
+				{
+					return Types.BIT;
+				}
+				if (value instanceof Timestamp)
+				{
+					return Types.TIMESTAMP;
+				}
+				if (value instanceof byte[])
+				{
+					return Types.VARBINARY;
+				}
+				if (value != null)
+				{
+					return Types.VARCHAR;
+				}
+			}
+			return Types.VARCHAR;
+		}
+
+		private static Object convert(Object value, Class<?> type)
+		{
+			if (value == null)
+			{
+				return defaultValue(type);
+			}
+			if (type == Object.class || type.isInstance(value))
+			{
+				return value;
+			}
+			if (type == String.class)
+			{
+				return String.valueOf(value);
+			}
+			if (value instanceof Boolean)
+			{
+				value = (Boolean) value ? 1 : 0;
+			}
+			final Number number = value instanceof Number ? (Number) value : new BigDecimal(value.toString());
+			if (type == int.class)
+			{
+				return number.intValue();
+			}
+			if (type == long.class)
+			{
+				return number.longValue();
+			}
+			if (type == short.class)
+			{
+				return number.shortValue();
+			}
+			if (type == byte.class)
+			{
+				return number.byteValue();
+			}
+			if (type == double.class)
+			{
+				return number.doubleValue();
+			}
+			if (type == float.class)
+			{
+				return number.floatValue();
+			}
+			if (type == boolean.class)
+			{
+				return number.intValue() != 0;
+			}
+			if (type == BigDecimal.class)
+			{
+				return new BigDecimal(number.toString());
+			}
+			throw new IllegalArgumentException("Stub can not convert " + value.getClass().getName() + " to " + type.getName());
+		}
+	}
+}